@@ -0,0 +1,9 @@
+-- Хеши хранятся байтами вместо hex, ключ уникального индекса становится вдвое короче.
+-- После миграции SegmentMetadataDAO создается с HashColumnType.BYTEA.
+-- Таблица и индексы переписываются целиком под эксклюзивной блокировкой.
+BEGIN;
+
+ALTER TABLE segments_metadata
+    ALTER COLUMN hash TYPE bytea USING decode(hash, 'hex');
+
+COMMIT;
@@ -0,0 +1,38 @@
+-- Необязательная миграция после 001_hash_to_bytea.sql: секционирование по хешу отпечатка.
+-- Уникальный индекс по hash и поиск по hash = ANY затрагивают только нужные секции.
+BEGIN;
+
+-- Столбец из 005_segment_length.sql, чтобы миграции можно было применять в любом порядке
+ALTER TABLE segments_metadata ADD COLUMN IF NOT EXISTS length integer;
+
+CREATE TABLE segments_metadata_partitioned (
+    id           integer      not null default nextval('segments_metadata_id_seq'),
+    hash         bytea        not null unique,
+    file_name    varchar(100) not null,
+    file_offset  bigint       not null,
+    length       integer,
+    reference    integer      not null
+) PARTITION BY HASH (hash);
+
+DO $$
+BEGIN
+    FOR i IN 0..15 LOOP
+        EXECUTE format(
+            'CREATE TABLE segments_metadata_p%s PARTITION OF segments_metadata_partitioned '
+            'FOR VALUES WITH (MODULUS 16, REMAINDER %s)', i, i);
+    END LOOP;
+END $$;
+
+-- Поиск по id проходит по всем секциям, поэтому индекс нужен в каждой
+CREATE INDEX ON segments_metadata_partitioned (id);
+
+INSERT INTO segments_metadata_partitioned (id, hash, file_name, file_offset, length, reference)
+SELECT id, hash, file_name, file_offset, length, reference FROM segments_metadata;
+
+ALTER SEQUENCE segments_metadata_id_seq OWNED BY segments_metadata_partitioned.id;
+DROP TABLE segments_metadata;
+ALTER TABLE segments_metadata_partitioned RENAME TO segments_metadata;
+-- Индекс из 003_file_name_index.sql удален вместе со старой таблицей
+CREATE INDEX IF NOT EXISTS segments_metadata_file_name_idx ON segments_metadata (file_name);
+
+COMMIT;
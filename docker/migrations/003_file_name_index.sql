@@ -0,0 +1,2 @@
+-- Индекс для поиска сегментов контейнера при его сжатии (SegmentCompactor).
+CREATE INDEX IF NOT EXISTS segments_metadata_file_name_idx ON segments_metadata (file_name);
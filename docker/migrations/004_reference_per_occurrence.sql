@@ -0,0 +1,19 @@
+-- Счетчик reference теперь равен числу вхождений сегмента во все сохраненные файлы,
+-- раньше существующему сегменту добавлялась одна ссылка на файл, сколько бы раз он там ни встречался.
+-- Старые счетчики занижены: удаление файла вычло бы из них больше, чем было добавлено,
+-- и сжатие удалило бы сегменты, которые еще используются.
+-- Пересчитать их можно только по рецептам на диске, поэтому миграция лишь заводит отметку формата:
+-- пустая таблица сразу отмечается, заполненную отмечает StorageService.rebuildReferences() после пересчета.
+-- Пока отметки нет, удаление файлов и сжатие контейнеров отказываются работать.
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS segments_metadata_format (
+    reference_counting varchar(20) not null
+);
+
+INSERT INTO segments_metadata_format (reference_counting)
+SELECT 'occurrence'
+WHERE NOT EXISTS (SELECT 1 FROM segments_metadata)
+  AND NOT EXISTS (SELECT 1 FROM segments_metadata_format);
+
+COMMIT;
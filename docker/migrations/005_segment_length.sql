@@ -0,0 +1,9 @@
+-- Длина сегмента хранится в метаданных, проверка совпадения байтов (Context.verifyMatches)
+-- считает сегмент другой длины коллизией. Столбец обязателен для SegmentMetadataDAO.
+-- У уже записанных сегментов длина остается NULL: вычислить ее по соседним сегментам контейнера
+-- можно только с запасом, а такие сегменты сравниваются по длине новых байтов, как раньше.
+BEGIN;
+
+ALTER TABLE segments_metadata ADD COLUMN IF NOT EXISTS length integer;
+
+COMMIT;
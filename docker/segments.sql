@@ -3,7 +3,18 @@ CREATE TABLE segments_metadata (
     hash         varchar(100) not null unique,
     file_name    varchar(100) not null,
     file_offset  bigint       not null,
+    length       integer,
     reference    integer      not null
 );
 
---create index on segments_metadata using hash(hash);
\ No newline at end of file
+-- Поиск сегментов контейнера при его сжатии (SegmentCompactor), см. migrations/003_file_name_index.sql
+CREATE INDEX segments_metadata_file_name_idx ON segments_metadata (file_name);
+
+-- reference считается по вхождениям сегмента в файлы, см. migrations/004_reference_per_occurrence.sql
+CREATE TABLE segments_metadata_format (
+    reference_counting varchar(20) not null
+);
+INSERT INTO segments_metadata_format (reference_counting) VALUES ('occurrence');
+
+--create index on segments_metadata using hash(hash);
+--bytea hash and partitioning: see migrations/
\ No newline at end of file
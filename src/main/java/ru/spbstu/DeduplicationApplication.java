@@ -3,15 +3,25 @@ package ru.spbstu;
 import org.jetbrains.annotations.NotNull;
 import ru.spbstu.exception.StorageException;
 import ru.spbstu.hash.HashType;
-import ru.spbstu.model.SegmentsMetadataToStore;
+import ru.spbstu.hash.IngestMode;
 import ru.spbstu.service.CompressedStorageService;
+import ru.spbstu.service.DatasetDriver;
+import ru.spbstu.service.IngestPipeline;
+import ru.spbstu.service.SegmentCompactor;
 import ru.spbstu.service.SegmentMetadataService;
 import ru.spbstu.service.SegmentStorageService;
 import ru.spbstu.service.StorageService;
+import ru.spbstu.storage.common.ConnectionPool;
 import ru.spbstu.storage.common.DataSource;
 import ru.spbstu.storage.common.DataSourceFactory;
 import ru.spbstu.storage.compressed.CompressedFilesDiskStorage;
+import ru.spbstu.storage.metadata.EmbeddedSegmentMetadataStore;
+import ru.spbstu.storage.metadata.FingerprintBloomFilter;
+import ru.spbstu.storage.metadata.HashColumnType;
+import ru.spbstu.storage.metadata.MetadataStoreType;
+import ru.spbstu.storage.metadata.SegmentMetadataCache;
 import ru.spbstu.storage.metadata.SegmentMetadataDAO;
+import ru.spbstu.storage.metadata.SegmentMetadataStore;
 import ru.spbstu.storage.segments.SegmentsDiskStorage;
 import ru.spbstu.storage.util.DiskStorageUtil;
 import ru.spbstu.util.Context;
@@ -27,88 +37,105 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.sql.Connection;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 public class DeduplicationApplication {
 
     private static final HashType HASH_TYPE = HashType.SHA256;
+    private static final MetadataStoreType METADATA_STORE_TYPE = MetadataStoreType.POSTGRES;
+    private static final String EMBEDDED_METADATA_DIRECTORY = "embedded";
     private static final String POSTGRESQL_PROPS = "postgres.properties";
     private static final String DATASET_INPUT = "data/input";
+    private static final int METADATA_COPY_THRESHOLD = 10_000;
+    private static final int METADATA_CONNECTION_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    private static final HashColumnType METADATA_HASH_COLUMN_TYPE = HashColumnType.VARCHAR;
+    private static final long METADATA_CACHE_SIZE_IN_BYTES = 64L * 1024 * 1024;
+    private static final long SEGMENT_CONTAINER_SIZE_IN_BYTES = SegmentsDiskStorage.DEFAULT_CONTAINER_SIZE_IN_BYTES;
+    private static final int MAX_MAPPED_SEGMENT_CONTAINERS = SegmentsDiskStorage.DEFAULT_MAX_MAPPED_CONTAINERS;
+    private static final int DATASET_WORKERS = Runtime.getRuntime().availableProcessors();
+    private static final DatasetDriver.WorkerType DATASET_WORKER_TYPE = DatasetDriver.WorkerType.VIRTUAL;
+    // Файлы проходят стадии IngestPipeline вместо параллельных воркеров
+    private static final boolean PIPELINED_STORE = true;
+    private static final int PIPELINE_QUEUE_CAPACITY = IngestPipeline.DEFAULT_QUEUE_CAPACITY;
+    // Бюджет одного окна, в конвейере одновременно живут до 3 * capacity + 4 окон
+    private static final long STORE_MEMORY_BUDGET_IN_BYTES = 16L * 1024 * 1024;
+    // Файлы и так восстанавливаются параллельно, потоки внутри файла нужны только при малом числе воркеров
+    private static final int RESTORE_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors() / DATASET_WORKERS);
+    private static final String BLOOM_FILTER_FILE = "fingerprints.bloom";
+    private static final long BLOOM_FILTER_EXPECTED_SEGMENTS = 10_000_000;
+    private static final double BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final long COMPACTION_DELAY_IN_SECONDS = 60;
 
     public static void main(String[] args) throws Exception {
-        DataSource dataSource = DataSourceFactory.create(PropsReader.read(POSTGRESQL_PROPS));
-        try (Connection connection = dataSource.createConnection()) {
-            Context context = new Context(HashType.SHA256, 32);
-            StatInfo statInfo = new StatInfo();
-            StorageService storageService = createStorageService(connection);
-            storeDataSet(storageService, context, statInfo);
-            decompressData(storageService, statInfo);
-            compareResults();
-            writeStatInfo(context, statInfo);
+        switch (METADATA_STORE_TYPE) {
+            case POSTGRES -> {
+                DataSource dataSource = DataSourceFactory.create(PropsReader.read(POSTGRESQL_PROPS));
+                try (ConnectionPool connectionPool = dataSource.createConnectionPool(METADATA_CONNECTION_POOL_SIZE)) {
+                    SegmentMetadataDAO segmentMetadataDAO = new SegmentMetadataDAO(
+                            connectionPool, METADATA_COPY_THRESHOLD, METADATA_HASH_COLUMN_TYPE);
+                    try (FingerprintBloomFilter bloomFilter = FingerprintBloomFilter.load(
+                            DiskStorageUtil.ofMetadata(BLOOM_FILTER_FILE),
+                            BLOOM_FILTER_EXPECTED_SEGMENTS,
+                            BLOOM_FILTER_FALSE_POSITIVE_RATE,
+                            segmentMetadataDAO)) {
+                        run(segmentMetadataDAO, bloomFilter);
+                    }
+                }
+            }
+            // Локальные запросы и так дешевые, фильтр перед ними не нужен
+            case EMBEDDED -> {
+                try (EmbeddedSegmentMetadataStore metadataStore = EmbeddedSegmentMetadataStore.open(
+                        DiskStorageUtil.ofMetadata(EMBEDDED_METADATA_DIRECTORY))) {
+                    run(metadataStore, FingerprintBloomFilter.disabled());
+                }
+            }
         }
     }
 
-    private static void decompressData(@NotNull StorageService storageService,
-                                       @NotNull StatInfo statInfo) throws URISyntaxException, IOException {
-        Objects.requireNonNull(storageService);
-        ClassLoader loader = Thread.currentThread().getContextClassLoader();
-        URL resource = loader.getResource(DATASET_INPUT);
-        if (resource == null) {
-            throw new StorageException("Fail to get dataset resource");
+    private static void run(@NotNull SegmentMetadataStore metadataStore,
+                            @NotNull FingerprintBloomFilter bloomFilter) throws Exception {
+        Context context = new Context(HashType.SHA256, 32)
+                .withHashParallelism(Runtime.getRuntime().availableProcessors())
+                .withIngestMode(IngestMode.MAPPED)
+                .withMemoryBudget(STORE_MEMORY_BUDGET_IN_BYTES);
+        StatInfo statInfo = new StatInfo();
+        List<IngestPipeline.StageStats> stageStats = List.of();
+        StorageService storageService = createStorageService(metadataStore, bloomFilter);
+        try (SegmentCompactor compactor = storageService.createCompactor()) {
+            compactor.start(COMPACTION_DELAY_IN_SECONDS, TimeUnit.SECONDS);
+            DatasetDriver datasetDriver = new DatasetDriver(storageService, DATASET_WORKERS, DATASET_WORKER_TYPE);
+            Path datasetRoot = datasetRoot();
+            if (PIPELINED_STORE) {
+                stageStats = datasetDriver.storePipelined(datasetRoot, context, PIPELINE_QUEUE_CAPACITY, statInfo);
+            } else {
+                datasetDriver.store(datasetRoot, context, statInfo);
+            }
+            datasetDriver.restore(datasetRoot, RESTORE_PARALLELISM, statInfo);
         }
-        long startInMillis = System.currentTimeMillis();
-        try (Stream<Path> files = Files.list(Path.of(resource.toURI()))) {
-            files.forEach(nextDataSetFile -> {
-                long startLocalInMillis = System.currentTimeMillis();
-                storageService.restore(nextDataSetFile.getFileName().toString());
-                long timeLocalInMillis = System.currentTimeMillis() - startLocalInMillis;
-                if (statInfo.maxBlockReadTimeInMillis < timeLocalInMillis) {
-                    statInfo.maxBlockReadTimeInMillis = timeLocalInMillis;
-                }
-                if (statInfo.minBlockReadTimeInMillis > timeLocalInMillis) {
-                    statInfo.minBlockReadTimeInMillis = timeLocalInMillis;
-                }
-            });
-        }
-        statInfo.fullBlockReadTimeInMillis = System.currentTimeMillis() - startInMillis;
+        compareResults();
+        writeStatInfo(context, statInfo, stageStats);
     }
 
-    private static void storeDataSet(@NotNull StorageService storageService,
-                                     @NotNull Context context,
-                                     @NotNull StatInfo statInfo) throws URISyntaxException, IOException {
-        Objects.requireNonNull(storageService);
+    @NotNull
+    private static Path datasetRoot() throws URISyntaxException {
         ClassLoader loader = Thread.currentThread().getContextClassLoader();
         URL resource = loader.getResource(DATASET_INPUT);
         if (resource == null) {
             throw new StorageException("Fail to get dataset resource");
         }
-        long startInMillis = System.currentTimeMillis();
-        try (Stream<Path> files = Files.list(Path.of(resource.toURI()))) {
-            files.forEach(nextDataSetFile -> {
-                long startLocalInMillis = System.currentTimeMillis();
-                SegmentsMetadataToStore store = storageService.store(nextDataSetFile, context);
-                statInfo.duplicates += store.getDuplicateSegments();
-                statInfo.unique += store.getNewSegmentsMap().size();
-                long timeLocalInMillis = System.currentTimeMillis() - startLocalInMillis;
-                if (statInfo.maxBlockWriteTimeInMillis < timeLocalInMillis) {
-                    statInfo.maxBlockWriteTimeInMillis = timeLocalInMillis;
-                }
-                if (statInfo.minBlockWriteTimeInMillis > timeLocalInMillis) {
-                    statInfo.minBlockWriteTimeInMillis = timeLocalInMillis;
-                }
-            });
-        }
-        statInfo.fullBlockWriteTimeInMillis = System.currentTimeMillis() - startInMillis;
+        return Path.of(resource.toURI());
     }
 
     private static void compareResults() throws IOException {
-        try (Stream<Path> files = Files.list(DiskStorageUtil.input())) {
-            files.forEach(nextInputFile -> {
-                String fileName = nextInputFile.getFileName().toString();
+        Path input = DiskStorageUtil.input();
+        try (Stream<Path> files = Files.walk(input)) {
+            files.filter(Files::isRegularFile).forEach(nextInputFile -> {
+                String fileName = DatasetDriver.storedName(input, nextInputFile);
                 try {
-                    if (Files.mismatch(DiskStorageUtil.ofInput(fileName), DiskStorageUtil.ofDecompressed(fileName)) != -1) {
+                    if (Files.mismatch(nextInputFile, DiskStorageUtil.ofDecompressed(fileName)) != -1) {
                         throw new StorageException(String.format("Files not equals, name=%s", fileName));
                     }
                 } catch (IOException e) {
@@ -118,13 +145,15 @@ public class DeduplicationApplication {
         }
     }
 
-    private static StorageService createStorageService(Connection connection) throws IOException {
+    static StorageService createStorageService(@NotNull SegmentMetadataStore metadataStore,
+                                               @NotNull FingerprintBloomFilter bloomFilter) throws IOException {
         // segment metadata service
-        final SegmentMetadataDAO segmentMetadataDAO = new SegmentMetadataDAO(connection);
-        final SegmentMetadataService segmentMetadataService = new SegmentMetadataService(segmentMetadataDAO);
+        final SegmentMetadataService segmentMetadataService = new SegmentMetadataService(
+                metadataStore, new SegmentMetadataCache(METADATA_CACHE_SIZE_IN_BYTES), bloomFilter);
 
         // segment service
-        final SegmentsDiskStorage segmentsDiskStorage = new SegmentsDiskStorage();
+        final SegmentsDiskStorage segmentsDiskStorage = new SegmentsDiskStorage(
+                SEGMENT_CONTAINER_SIZE_IN_BYTES, MAX_MAPPED_SEGMENT_CONTAINERS);
         final SegmentStorageService segmentStorageService = new SegmentStorageService(segmentsDiskStorage);
 
         // compressed service
@@ -135,37 +164,58 @@ public class DeduplicationApplication {
     }
 
     private static void writeStatInfo(@NotNull Context context,
-                                      @NotNull StatInfo statInfo) {
+                                      @NotNull StatInfo statInfo,
+                                      @NotNull List<IngestPipeline.StageStats> stageStats) {
         String base = "src/main/resources/data/stat";
-        String fileName = base + "/" + context.hashType().name() + "_" + context.segmentSizeInBytes();
+        String fileName = base + "/" + context.hashType().name() + "_" + context.chunkingType().name()
+                + "_" + context.segmentSizeInBytes();
         System.out.println(Path.of(fileName).toAbsolutePath().toString());
         try (Writer writer = new BufferedWriter(new FileWriter(fileName))) {
             writer.append("WRITE STAT INFO:").append("\n");
             writer.append("minBlockWriteTimeInMillis: ")
-                    .append(String.valueOf(statInfo.minBlockWriteTimeInMillis))
+                    .append(String.valueOf(statInfo.getMinBlockWriteTimeInMillis()))
                     .append("\n");
             writer.append("maxBlockWriteTimeInMillis: ")
-                    .append(String.valueOf(statInfo.maxBlockWriteTimeInMillis))
+                    .append(String.valueOf(statInfo.getMaxBlockWriteTimeInMillis()))
                     .append("\n");
             writer.append("fullBlockWriteTimeInMillis: ")
-                    .append(String.valueOf(statInfo.fullBlockWriteTimeInMillis))
+                    .append(String.valueOf(statInfo.getFullBlockWriteTimeInMillis()))
+                    .append("\n");
+            writer.append("writeMegabytesPerSecond: ")
+                    .append(String.format("%.2f", statInfo.getWriteMegabytesPerSecond()))
+                    .append("\n");
+            writer.append("writeFilesPerSecond: ")
+                    .append(String.format("%.2f", statInfo.getWriteFilesPerSecond()))
                     .append("\n");
             writer.append("duplicates: ")
-                    .append(String.valueOf(statInfo.duplicates))
+                    .append(String.valueOf(statInfo.getDuplicates()))
                     .append("\n");
             writer.append("unique: ")
-                    .append(String.valueOf(statInfo.unique))
+                    .append(String.valueOf(statInfo.getUnique()))
                     .append("\n");
+            for (IngestPipeline.StageStats stage : stageStats) {
+                writer.append(stage.stage().name()).append(" stage: ")
+                        .append("processedItems: ").append(String.valueOf(stage.processedItems()))
+                        .append(", busyTimeInMillis: ")
+                        .append(String.valueOf(TimeUnit.NANOSECONDS.toMillis(stage.busyNanos())))
+                        .append("\n");
+            }
 
             writer.append("READ STAT INFO:").append("\n");
             writer.append("minBlockReadTimeInMillis: ")
-                    .append(String.valueOf(statInfo.minBlockReadTimeInMillis))
+                    .append(String.valueOf(statInfo.getMinBlockReadTimeInMillis()))
                     .append("\n");
             writer.append("maxBlockReadTimeInMillis: ")
-                    .append(String.valueOf(statInfo.maxBlockReadTimeInMillis))
+                    .append(String.valueOf(statInfo.getMaxBlockReadTimeInMillis()))
                     .append("\n");
             writer.append("fullBlockReadTimeInMillis: ")
-                    .append(String.valueOf(statInfo.fullBlockReadTimeInMillis))
+                    .append(String.valueOf(statInfo.getFullBlockReadTimeInMillis()))
+                    .append("\n");
+            writer.append("readMegabytesPerSecond: ")
+                    .append(String.format("%.2f", statInfo.getReadMegabytesPerSecond()))
+                    .append("\n");
+            writer.append("readFilesPerSecond: ")
+                    .append(String.format("%.2f", statInfo.getReadFilesPerSecond()))
                     .append("\n");
         } catch (IOException e) {
             throw new RuntimeException(e);
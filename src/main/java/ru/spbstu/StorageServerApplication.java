@@ -0,0 +1,51 @@
+package ru.spbstu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbstu.hash.HashType;
+import ru.spbstu.server.StorageHttpServer;
+import ru.spbstu.service.SegmentCompactor;
+import ru.spbstu.service.StorageService;
+import ru.spbstu.storage.metadata.EmbeddedSegmentMetadataStore;
+import ru.spbstu.storage.metadata.FingerprintBloomFilter;
+import ru.spbstu.storage.util.DiskStorageUtil;
+import ru.spbstu.util.Context;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the storage over HTTP, see {@link StorageHttpServer}, until the process is stopped.
+ */
+public class StorageServerApplication {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StorageServerApplication.class);
+
+    private static final int PORT = 8080;
+    private static final String EMBEDDED_METADATA_DIRECTORY = "embedded";
+    private static final int MAX_CONCURRENT_TRANSFERS = 4 * Runtime.getRuntime().availableProcessors();
+    // Куча под загрузки ограничена MAX_CONCURRENT_TRANSFERS окнами этого размера
+    private static final long UPLOAD_MEMORY_BUDGET_IN_BYTES = 8L * 1024 * 1024;
+    private static final long COMPACTION_DELAY_IN_SECONDS = 60;
+
+    public static void main(String[] args) throws Exception {
+        Context context = new Context(HashType.SHA256, 32)
+                .withMemoryBudget(UPLOAD_MEMORY_BUDGET_IN_BYTES);
+        EmbeddedSegmentMetadataStore metadataStore = EmbeddedSegmentMetadataStore.open(
+                DiskStorageUtil.ofMetadata(EMBEDDED_METADATA_DIRECTORY));
+        StorageService storageService = DeduplicationApplication.createStorageService(
+                metadataStore, FingerprintBloomFilter.disabled());
+        // Удаленные и замененные через HTTP файлы освобождают место только после сжатия контейнеров
+        SegmentCompactor compactor = storageService.createCompactor();
+        compactor.start(COMPACTION_DELAY_IN_SECONDS, TimeUnit.SECONDS);
+        StorageHttpServer server = StorageHttpServer.start(
+                new InetSocketAddress(PORT), storageService, context, MAX_CONCURRENT_TRANSFERS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            compactor.close();
+            metadataStore.close();
+        }, "storage-server-shutdown"));
+        LOGGER.info("Storage server is listening on {}", server.address());
+    }
+
+}
@@ -0,0 +1,13 @@
+package ru.spbstu.exception;
+
+/**
+ * Segment has the hash of a stored segment with other bytes, see {@link ru.spbstu.util.Context#verifyMatches()}.
+ * The store of the whole file is rejected, the colliding segment isn't stored separately.
+ */
+public class HashCollisionException extends StorageException {
+
+    public HashCollisionException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,12 @@
+package ru.spbstu.hash;
+
+public enum ChunkingType {
+    /**
+     * Every segment except the last one has exactly {@code segmentSizeInBytes} bytes.
+     */
+    FIXED,
+    /**
+     * Segment boundaries are chosen by the content (FastCDC), so segment size varies between min and max.
+     */
+    CONTENT_DEFINED
+}
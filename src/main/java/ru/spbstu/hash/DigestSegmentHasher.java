@@ -0,0 +1,25 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.foreign.MemorySegment;
+import java.security.MessageDigest;
+import java.util.Objects;
+
+final class DigestSegmentHasher implements SegmentHasher {
+
+    private final MessageDigest digest;
+
+    DigestSegmentHasher(@NotNull MessageDigest digest) {
+        this.digest = Objects.requireNonNull(digest);
+    }
+
+    @NotNull
+    @Override
+    public byte[] hash(@NotNull MemorySegment segment) {
+        // Heap segments are digested from their backing array, mapped ones through the digest's own buffer
+        digest.update(segment.asByteBuffer());
+        return digest.digest();
+    }
+
+}
@@ -0,0 +1,85 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Content-defined chunking based on FastCDC: gear rolling hash with normalized chunking.
+ * Cut points depend only on the last bytes before them, so an insertion shifts only the nearby boundaries.
+ */
+public class FastCdcChunker implements SegmentChunker {
+
+    private static final long GEAR_SEED = 0x5DEECE66DL;
+    private static final long[] GEAR = createGearTable();
+
+    private final int minSegmentSizeInBytes;
+    private final int avgSegmentSizeInBytes;
+    private final int maxSegmentSizeInBytes;
+    private final long smallMask;
+    private final long largeMask;
+
+    public FastCdcChunker(int minSegmentSizeInBytes,
+                          int avgSegmentSizeInBytes,
+                          int maxSegmentSizeInBytes) {
+        if (minSegmentSizeInBytes <= 0
+                || minSegmentSizeInBytes > avgSegmentSizeInBytes
+                || avgSegmentSizeInBytes > maxSegmentSizeInBytes) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid chunk sizes, min=%d, avg=%d, max=%d",
+                    minSegmentSizeInBytes, avgSegmentSizeInBytes, maxSegmentSizeInBytes));
+        }
+        this.minSegmentSizeInBytes = minSegmentSizeInBytes;
+        this.avgSegmentSizeInBytes = avgSegmentSizeInBytes;
+        this.maxSegmentSizeInBytes = maxSegmentSizeInBytes;
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSegmentSizeInBytes);
+        // Normalized chunking: harder to cut before the average size, easier after it
+        this.smallMask = topBitsMask(bits + 1);
+        this.largeMask = topBitsMask(Math.max(bits - 1, 1));
+    }
+
+    @Override
+    public long nextSegmentSize(@NotNull MemorySegment data, long offset) {
+        long remaining = data.byteSize() - offset;
+        if (remaining <= minSegmentSizeInBytes) {
+            return remaining;
+        }
+        long limit = Math.min(remaining, maxSegmentSizeInBytes);
+        long normalLimit = Math.min(limit, avgSegmentSizeInBytes);
+        long fingerprint = 0;
+        long idx = minSegmentSizeInBytes;
+        for (; idx < normalLimit; ++idx) {
+            fingerprint = (fingerprint << 1) + GEAR[data.get(ValueLayout.JAVA_BYTE, offset + idx) & 0xff];
+            if ((fingerprint & smallMask) == 0) {
+                return idx + 1;
+            }
+        }
+        for (; idx < limit; ++idx) {
+            fingerprint = (fingerprint << 1) + GEAR[data.get(ValueLayout.JAVA_BYTE, offset + idx) & 0xff];
+            if ((fingerprint & largeMask) == 0) {
+                return idx + 1;
+            }
+        }
+        return limit;
+    }
+
+    private static long topBitsMask(int bits) {
+        return -1L << (Long.SIZE - bits);
+    }
+
+    private static long[] createGearTable() {
+        // Table must be stable between runs, otherwise stored segments are never matched again
+        long[] gear = new long[256];
+        long state = GEAR_SEED;
+        for (int idx = 0; idx < gear.length; ++idx) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            gear[idx] = z ^ (z >>> 31);
+        }
+        return gear;
+    }
+
+}
@@ -0,0 +1,103 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Binary segment hash of 16, 32 or 64 bytes. Hex form is only rendered for the varchar hash column.
+ */
+public final class Fingerprint {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final byte[] bytes;
+    private final int hashCode;
+
+    public Fingerprint(@NotNull byte[] bytes) {
+        Objects.requireNonNull(bytes);
+        if (bytes.length != 16 && bytes.length != 32 && bytes.length != 64) {
+            throw new IllegalArgumentException(String.format("Unsupported fingerprint length: %d", bytes.length));
+        }
+        this.bytes = bytes;
+        // Bytes of a digest are already uniformly distributed, no need to mix all of them
+        this.hashCode = (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+    }
+
+    @NotNull
+    public static Fingerprint fromHex(@NotNull String hex) {
+        Objects.requireNonNull(hex);
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int idx = 0; idx < bytes.length; ++idx) {
+            int high = Character.digit(hex.charAt(2 * idx), 16);
+            int low = Character.digit(hex.charAt(2 * idx + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException(String.format("Invalid fingerprint hex: %s", hex));
+            }
+            bytes[idx] = (byte) (high << 4 | low);
+        }
+        return new Fingerprint(bytes);
+    }
+
+    @NotNull
+    public String toHex() {
+        char[] chars = new char[bytes.length * 2];
+        for (int idx = 0; idx < bytes.length; ++idx) {
+            chars[2 * idx] = HEX_DIGITS[(bytes[idx] >> 4) & 0xf];
+            chars[2 * idx + 1] = HEX_DIGITS[bytes[idx] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    @NotNull
+    public byte[] toByteArray() {
+        return bytes.clone();
+    }
+
+    /**
+     * Read-only view of fingerprint bytes.
+     */
+    @NotNull
+    public MemorySegment asSegment() {
+        return MemorySegment.ofArray(bytes).asReadOnly();
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Reads 8 bytes starting at {@code byteOffset} as a big-endian long.
+     */
+    public long longAt(int byteOffset) {
+        long value = 0;
+        for (int idx = byteOffset; idx < byteOffset + Long.BYTES; ++idx) {
+            value = (value << 8) | (bytes[idx] & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Fingerprint that)) {
+            return false;
+        }
+        return hashCode == that.hashCode && Arrays.equals(bytes, that.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+}
@@ -0,0 +1,23 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.foreign.MemorySegment;
+
+public class FixedSizeChunker implements SegmentChunker {
+
+    private final int segmentSizeInBytes;
+
+    public FixedSizeChunker(int segmentSizeInBytes) {
+        if (segmentSizeInBytes <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid segment size: %d", segmentSizeInBytes));
+        }
+        this.segmentSizeInBytes = segmentSizeInBytes;
+    }
+
+    @Override
+    public long nextSegmentSize(@NotNull MemorySegment data, long offset) {
+        return Math.min(segmentSizeInBytes, data.byteSize() - offset);
+    }
+
+}
@@ -2,12 +2,20 @@ package ru.spbstu.hash;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Objects;
 
 public enum HashType {
     SHA256("SHA-256"),
     SHA512("SHA-512"),
-    MD5("MD5");
+    MD5("MD5"),
+    /**
+     * Non-cryptographic 128-bit hash, several times faster than digests on small segments.
+     * Collisions can be crafted, so for untrusted data enable verification of matched segments,
+     * see {@link ru.spbstu.util.Context#verifyMatches()}.
+     */
+    MURMUR3_128("MurmurHash3_x64_128");
 
     private final String algorithm;
 
@@ -20,4 +28,12 @@ public enum HashType {
         return algorithm;
     }
 
+    @NotNull
+    SegmentHasher createHasher() throws NoSuchAlgorithmException {
+        return switch (this) {
+            case MURMUR3_128 -> new Murmur3SegmentHasher();
+            default -> new DigestSegmentHasher(MessageDigest.getInstance(algorithm));
+        };
+    }
+
 }
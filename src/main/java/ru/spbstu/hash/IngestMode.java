@@ -0,0 +1,12 @@
+package ru.spbstu.hash;
+
+public enum IngestMode {
+    /**
+     * File is read through a stream window by window, segments are slices of the heap buffer of their window.
+     */
+    HEAP,
+    /**
+     * File is mapped once, segments are slices of the mapping.
+     */
+    MAPPED
+}
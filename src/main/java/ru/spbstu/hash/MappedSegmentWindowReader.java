@@ -0,0 +1,46 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Window reader over a mapped file, segments are slices of the mapping and the mapping stays off heap.
+ */
+public class MappedSegmentWindowReader implements SegmentWindowReader {
+
+    private final MemorySegment fileSegment;
+    private final SegmentChunker chunker;
+    private final int maxSegmentsPerWindow;
+    private long offset;
+
+    public MappedSegmentWindowReader(@NotNull MemorySegment fileSegment,
+                                     @NotNull SegmentChunker chunker,
+                                     int maxSegmentsPerWindow) {
+        this.fileSegment = Objects.requireNonNull(fileSegment);
+        this.chunker = Objects.requireNonNull(chunker);
+        this.maxSegmentsPerWindow = maxSegmentsPerWindow;
+    }
+
+    @NotNull
+    @Override
+    public List<MemorySegment> nextWindow() {
+        long fileSizeInBytes = fileSegment.byteSize();
+        List<MemorySegment> segments = new ArrayList<>();
+        while (offset < fileSizeInBytes && segments.size() < maxSegmentsPerWindow) {
+            long segmentSize = chunker.nextSegmentSize(fileSegment, offset);
+            segments.add(fileSegment.asSlice(offset, segmentSize));
+            offset += segmentSize;
+        }
+        return segments;
+    }
+
+    @Override
+    public void close() {
+        // mapping is owned by the caller's arena
+    }
+
+}
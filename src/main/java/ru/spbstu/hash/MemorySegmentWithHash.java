@@ -7,19 +7,21 @@ import java.util.Objects;
 
 public class MemorySegmentWithHash {
 
-    private final String hash;
+    private final Fingerprint hash;
     private final MemorySegment memorySegment;
 
-    public MemorySegmentWithHash(@NotNull String hash,
+    public MemorySegmentWithHash(@NotNull Fingerprint hash,
                                  @NotNull MemorySegment memorySegment) {
         this.hash = Objects.requireNonNull(hash);
         this.memorySegment = Objects.requireNonNull(memorySegment);
     }
 
-    public String getHash() {
+    @NotNull
+    public Fingerprint getHash() {
         return hash;
     }
 
+    @NotNull
     public MemorySegment getMemorySegment() {
         return memorySegment;
     }
@@ -0,0 +1,90 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * MurmurHash3 x64 128-bit with zero seed, bytes of the result are the same as of Guava's {@code murmur3_128()}.
+ * Segment is read by 8-byte words straight from the heap array or the mapping, nothing is copied.
+ */
+final class Murmur3SegmentHasher implements SegmentHasher {
+
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    @NotNull
+    @Override
+    public byte[] hash(@NotNull MemorySegment segment) {
+        long length = segment.byteSize();
+        long h1 = 0;
+        long h2 = 0;
+        long offset = 0;
+        for (; length - offset >= 16; offset += 16) {
+            h1 ^= mixK1(segment.get(LONG_LE, offset));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(segment.get(LONG_LE, offset + 8));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = (int) (length - offset);
+        if (tail > 8) {
+            h2 ^= mixK2(tailWord(segment, offset + 8, tail - 8));
+        }
+        if (tail > 0) {
+            h1 ^= mixK1(tailWord(segment, offset, Math.min(tail, 8)));
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] result = new byte[16];
+        MemorySegment resultSegment = MemorySegment.ofArray(result);
+        resultSegment.set(LONG_LE, 0, h1);
+        resultSegment.set(LONG_LE, 8, h2);
+        return result;
+    }
+
+    private static long tailWord(@NotNull MemorySegment segment,
+                                 long offset,
+                                 int count) {
+        long word = 0;
+        for (int idx = count - 1; idx >= 0; --idx) {
+            word = word << 8 | (segment.get(ValueLayout.JAVA_BYTE, offset + idx) & 0xffL);
+        }
+        return word;
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+}
@@ -0,0 +1,43 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+public interface SegmentChunker {
+
+    /**
+     * Returns the size of the segment starting at {@code offset}, never crossing the end of {@code data}.
+     * If the segment ends exactly at the end of {@code data} it may be cut short because the following bytes are unknown.
+     */
+    long nextSegmentSize(@NotNull MemorySegment data, long offset);
+
+    @NotNull
+    default List<MemorySegment> split(@NotNull MemorySegment data) {
+        Objects.requireNonNull(data);
+        List<MemorySegment> segments = new ArrayList<>();
+        long offset = 0;
+        long dataSize = data.byteSize();
+        while (offset < dataSize) {
+            long segmentSize = nextSegmentSize(data, offset);
+            segments.add(data.asSlice(offset, segmentSize));
+            offset += segmentSize;
+        }
+        return segments;
+    }
+
+    @NotNull
+    static SegmentChunker create(@NotNull ChunkingType chunkingType,
+                                 int minSegmentSizeInBytes,
+                                 int avgSegmentSizeInBytes,
+                                 int maxSegmentSizeInBytes) {
+        return switch (Objects.requireNonNull(chunkingType)) {
+            case FIXED -> new FixedSizeChunker(avgSegmentSizeInBytes);
+            case CONTENT_DEFINED -> new FastCdcChunker(minSegmentSizeInBytes, avgSegmentSizeInBytes, maxSegmentSizeInBytes);
+        };
+    }
+
+}
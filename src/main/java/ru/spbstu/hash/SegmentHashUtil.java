@@ -1,51 +1,89 @@
 package ru.spbstu.hash;
 
 import org.jetbrains.annotations.NotNull;
+import ru.spbstu.exception.StorageException;
 
 import java.lang.foreign.MemorySegment;
-import java.lang.foreign.ValueLayout;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 public class SegmentHashUtil {
 
-    private static final ExecutorService executorService
-            = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() / 2);
+    // Smaller ranges cost more in task scheduling than they win in parallel hashing
+    private static final int MIN_SEGMENTS_PER_TASK = 1024;
+
+    private static final ExecutorService executorService = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "segment-hash-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     private SegmentHashUtil() {}
 
     @NotNull
     public static List<MemorySegmentWithHash> calculateHashes(@NotNull List<MemorySegment> fileByteSegments,
                                                               @NotNull HashType hashType) throws NoSuchAlgorithmException {
+        return calculateHashes(fileByteSegments, hashType, 1);
+    }
+
+    /**
+     * Splits segments into contiguous ranges hashed on the worker pool, each range with its own hasher.
+     * Result order is the same as the order of {@code fileByteSegments}.
+     */
+    @NotNull
+    public static List<MemorySegmentWithHash> calculateHashes(@NotNull List<MemorySegment> fileByteSegments,
+                                                              @NotNull HashType hashType,
+                                                              int parallelism) throws NoSuchAlgorithmException {
         Objects.requireNonNull(fileByteSegments);
         Objects.requireNonNull(hashType);
-        MessageDigest md5 = MessageDigest.getInstance(hashType.getAlgorithm());
-        List<MemorySegmentWithHash> results = new ArrayList<>(fileByteSegments.size());
-//        List<Future<MemorySegment>> futures = new ArrayList<>(fileByteSegments.size());
-        for (MemorySegment fileByteSegment : fileByteSegments) {
-            md5.update(fileByteSegment.toArray(ValueLayout.OfByte.JAVA_BYTE));
-            byte[] digest = md5.digest();
-            String hash = bytesToHex(digest);
-            results.add(new MemorySegmentWithHash(hash, fileByteSegment));
+        int segmentsCount = fileByteSegments.size();
+        int tasksCount = Math.min(parallelism, (segmentsCount + MIN_SEGMENTS_PER_TASK - 1) / MIN_SEGMENTS_PER_TASK);
+        MemorySegmentWithHash[] results = new MemorySegmentWithHash[segmentsCount];
+        if (tasksCount <= 1) {
+            hashRange(fileByteSegments, 0, segmentsCount, hashType.createHasher(), results);
+            return Arrays.asList(results);
         }
-        return results;
+
+        int rangeSize = (segmentsCount + tasksCount - 1) / tasksCount;
+        List<Future<?>> futures = new ArrayList<>(tasksCount);
+        for (int from = 0; from < segmentsCount; from += rangeSize) {
+            int rangeFrom = from;
+            int rangeTo = Math.min(from + rangeSize, segmentsCount);
+            SegmentHasher hasher = hashType.createHasher();
+            futures.add(executorService.submit(
+                    () -> hashRange(fileByteSegments, rangeFrom, rangeTo, hasher, results)));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted while calculating segment hashes", e);
+            } catch (ExecutionException e) {
+                throw new StorageException("Fail to calculate segment hashes", e.getCause());
+            }
+        }
+        return Arrays.asList(results);
     }
 
-    @NotNull
-    private static String bytesToHex(@NotNull byte[] bytes) {
-        Objects.requireNonNull(bytes);
-        StringBuilder builder = new StringBuilder();
-        for (var b : bytes) {
-            builder.append(String.format("%02x", b & 0xff));
+    private static void hashRange(@NotNull List<MemorySegment> fileByteSegments,
+                                  int from,
+                                  int to,
+                                  @NotNull SegmentHasher hasher,
+                                  @NotNull MemorySegmentWithHash[] results) {
+        for (int idx = from; idx < to; ++idx) {
+            MemorySegment fileByteSegment = fileByteSegments.get(idx);
+            results[idx] = new MemorySegmentWithHash(new Fingerprint(hasher.hash(fileByteSegment)), fileByteSegment);
         }
-        return builder.toString();
     }
 
 }
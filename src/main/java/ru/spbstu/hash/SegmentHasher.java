@@ -0,0 +1,15 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Hashes segments one by one, an instance isn't thread-safe and is used by one thread at a time.
+ */
+interface SegmentHasher {
+
+    @NotNull
+    byte[] hash(@NotNull MemorySegment segment);
+
+}
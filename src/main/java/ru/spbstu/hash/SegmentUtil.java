@@ -2,34 +2,24 @@ package ru.spbstu.hash;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
 
 public class SegmentUtil {
 
     private SegmentUtil() {}
 
-    public static List<MemorySegment> getSegmentsOfBytes(@NotNull Path path, int segmentSizeInBytes) throws IOException {
-        int fileSegmentsCount = getFileSegmentsCount(Files.size(path), segmentSizeInBytes);
-        List<MemorySegment> fileSegments = new ArrayList<>(fileSegmentsCount);
-        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(path.toFile()))) {
-            while (inputStream.available() > 0) {
-                byte[] nextSegmentBytes = inputStream.readNBytes(segmentSizeInBytes);
-                fileSegments.add(MemorySegment.ofArray(nextSegmentBytes));
-            }
+    /**
+     * Maps the whole file in {@code arena}, returned segments are slices of this mapping and valid while arena is alive.
+     */
+    public static MemorySegment mapFile(@NotNull Path path, @NotNull Arena arena) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
         }
-        return fileSegments;
-    }
-
-    private static int getFileSegmentsCount(long fileSizeInBytes, int segmentSizeInBytes) {
-        return (int) Math.ceil((double) fileSizeInBytes / segmentSizeInBytes);
     }
 
 }
@@ -0,0 +1,22 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.util.List;
+
+/**
+ * Splits a file into segments window by window, so only one window of segments is alive at a time.
+ */
+public interface SegmentWindowReader extends Closeable {
+
+    /**
+     * Returns segments of the next window in file order or empty list when the whole file is read.
+     * Segments of the previous window may be invalidated by this call.
+     */
+    @NotNull
+    List<MemorySegment> nextWindow() throws IOException;
+
+}
@@ -0,0 +1,67 @@
+package ru.spbstu.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Window reader over a stream, every window is read into its own heap buffer and segments are slices of it.
+ * The last segment of a window is carried over to the next one unless the stream is over,
+ * so content-defined boundaries are the same as for the whole file.
+ * Window size must be at least twice the max segment size, so every window but the last gives at least one segment.
+ */
+public class StreamSegmentWindowReader implements SegmentWindowReader {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final InputStream inputStream;
+    private final SegmentChunker chunker;
+    private final int windowSizeInBytes;
+    private byte[] carry = EMPTY;
+    private boolean endOfStream;
+
+    public StreamSegmentWindowReader(@NotNull InputStream inputStream,
+                                     @NotNull SegmentChunker chunker,
+                                     int windowSizeInBytes) {
+        if (windowSizeInBytes <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid window size: %d", windowSizeInBytes));
+        }
+        this.inputStream = Objects.requireNonNull(inputStream);
+        this.chunker = Objects.requireNonNull(chunker);
+        this.windowSizeInBytes = windowSizeInBytes;
+    }
+
+    @NotNull
+    @Override
+    public List<MemorySegment> nextWindow() throws IOException {
+        if (endOfStream) {
+            return List.of();
+        }
+        int bytesToRead = windowSizeInBytes - carry.length;
+        byte[] next = inputStream.readNBytes(bytesToRead);
+        endOfStream = next.length < bytesToRead;
+        byte[] window = new byte[carry.length + next.length];
+        System.arraycopy(carry, 0, window, 0, carry.length);
+        System.arraycopy(next, 0, window, carry.length, next.length);
+
+        List<MemorySegment> segments = chunker.split(MemorySegment.ofArray(window));
+        if (endOfStream || segments.isEmpty()) {
+            carry = EMPTY;
+            return segments;
+        }
+        // Последний сегмент мог быть обрезан концом окна, поэтому он переносится в следующее окно
+        carry = segments.get(segments.size() - 1).toArray(ValueLayout.JAVA_BYTE);
+        return segments.subList(0, segments.size() - 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+}
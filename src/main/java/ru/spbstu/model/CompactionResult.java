@@ -0,0 +1,21 @@
+package ru.spbstu.model;
+
+public record CompactionResult(long compactedContainers,
+                               long relocatedSegments,
+                               long relocatedBytes,
+                               long deletedSegments,
+                               long reclaimedBytes) {
+
+    public static final CompactionResult EMPTY = new CompactionResult(0, 0, 0, 0, 0);
+
+    public CompactionResult merge(CompactionResult other) {
+        return new CompactionResult(
+                compactedContainers + other.compactedContainers,
+                relocatedSegments + other.relocatedSegments,
+                relocatedBytes + other.relocatedBytes,
+                deletedSegments + other.deletedSegments,
+                reclaimedBytes + other.reclaimedBytes
+        );
+    }
+
+}
@@ -1,40 +1,65 @@
 package ru.spbstu.model;
 
 import org.jetbrains.annotations.NotNull;
+import ru.spbstu.hash.Fingerprint;
 
 public class SegmentMetadata {
 
     private static final String FILE_UNKNOWN_NAME = "UNKNOWN";
     private static final long FILE_UNKNOWN_OFFSET = 0;
     private static final int DEFAULT_REFERENCE_COUNT = 1;
+    // Длина не хранилась у сегментов, записанных до ее появления в метаданных
+    public static final int UNKNOWN_LENGTH = 0;
+    // Счетчик ссылок насыщается: такой сегмент больше не освобождается и остается на диске навсегда
+    public static final int MAX_REFERENCES = Integer.MAX_VALUE;
 
     private int id;
 
     @NotNull
-    private String hash;
+    private Fingerprint hash;
 
     @NotNull
     private String fileName;
 
     private long fileOffset;
 
+    private int length;
+
     private int references;
 
     public SegmentMetadata() {}
 
+    /**
+     * Adds references saturating at {@link #MAX_REFERENCES}, e.g. for a zero block occurring in every file.
+     */
+    public static int addReferences(int references,
+                                    int addedReferences) {
+        return (int) Math.min(MAX_REFERENCES, (long) references + addedReferences);
+    }
+
     public SegmentMetadata(int id,
-                           @NotNull String hash,
+                           @NotNull Fingerprint hash,
                            @NotNull String fileName,
                            long offset,
                            int references) {
+        this(id, hash, fileName, offset, UNKNOWN_LENGTH, references);
+    }
+
+    public SegmentMetadata(int id,
+                           @NotNull Fingerprint hash,
+                           @NotNull String fileName,
+                           long offset,
+                           int length,
+                           int references) {
         this.id = id;
         this.hash = hash;
         this.fileName = fileName;
         this.fileOffset = offset;
+        this.length = length;
         this.references = references;
     }
 
-    public SegmentMetadata(@NotNull String hash,
+    public SegmentMetadata(@NotNull Fingerprint hash,
                            @NotNull String fileName,
                            long offset,
                            int references) {
@@ -44,7 +69,7 @@ public class SegmentMetadata {
         this.references = references;
     }
 
-    public SegmentMetadata(@NotNull String hash) {
+    public SegmentMetadata(@NotNull Fingerprint hash) {
         this.hash = hash;
         this.fileName = FILE_UNKNOWN_NAME;
         this.fileOffset = FILE_UNKNOWN_OFFSET;
@@ -64,11 +89,11 @@ public class SegmentMetadata {
     }
 
     @NotNull
-    public String getHash() {
+    public Fingerprint getHash() {
         return hash;
     }
 
-    public void setHash(@NotNull String hash) {
+    public void setHash(@NotNull Fingerprint hash) {
         this.hash = hash;
     }
 
@@ -89,6 +114,17 @@ public class SegmentMetadata {
         this.fileOffset = fileOffset;
     }
 
+    /**
+     * Length of the segment bytes in the container or {@link #UNKNOWN_LENGTH}.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public void setLength(int length) {
+        this.length = length;
+    }
+
     public int getReferences() {
         return references;
     }
@@ -104,6 +140,7 @@ public class SegmentMetadata {
                 ", hash='" + hash + '\'' +
                 ", fileName='" + fileName + '\'' +
                 ", offset=" + fileOffset +
+                ", length=" + length +
                 ", referenceCount=" + references +
                 '}';
     }
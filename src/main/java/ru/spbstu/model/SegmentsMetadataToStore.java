@@ -1,20 +1,22 @@
 package ru.spbstu.model;
 
 import org.jetbrains.annotations.NotNull;
+import ru.spbstu.hash.Fingerprint;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 
 public class SegmentsMetadataToStore {
 
-    private final Map<String, SegmentMetadata> newSegmentsMap;
-    private final Map<String, SegmentMetadata> alreadyExistedSegmentsMap;
+    private final Map<Fingerprint, SegmentMetadata> newSegmentsMap;
+    private final Map<Fingerprint, SegmentMetadata> alreadyExistedSegmentsMap;
     private final int reusedFromDBSegments;
     private final int duplicateSegments;
 
-    public SegmentsMetadataToStore(@NotNull Map<String, SegmentMetadata> newSegmentsMap,
-                                   @NotNull Map<String, SegmentMetadata> alreadyExistedSegmentsMap,
+    public SegmentsMetadataToStore(@NotNull Map<Fingerprint, SegmentMetadata> newSegmentsMap,
+                                   @NotNull Map<Fingerprint, SegmentMetadata> alreadyExistedSegmentsMap,
                                    int duplicateSegments,
                                    int reusedFromDBSegments) {
         this.newSegmentsMap = Objects.requireNonNull(newSegmentsMap);
@@ -24,12 +26,12 @@ public class SegmentsMetadataToStore {
     }
 
     @NotNull
-    public Map<String, SegmentMetadata> getNewSegmentsMap() {
+    public Map<Fingerprint, SegmentMetadata> getNewSegmentsMap() {
         return newSegmentsMap;
     }
 
     @NotNull
-    public Map<String, SegmentMetadata> getAlreadyExistedSegmentsMap() {
+    public Map<Fingerprint, SegmentMetadata> getAlreadyExistedSegmentsMap() {
         return alreadyExistedSegmentsMap;
     }
 
@@ -41,17 +43,37 @@ public class SegmentsMetadataToStore {
         return duplicateSegments;
     }
 
-    public SegmentsMetadataToStore updateNewSegmentsMap(@NotNull Map<String, SegmentMetadata> updatedNewSegmentsMap) {
+    public SegmentsMetadataToStore updateNewSegmentsMap(@NotNull Map<Fingerprint, SegmentMetadata> updatedNewSegmentsMap) {
         return new SegmentsMetadataToStore(
                 updatedNewSegmentsMap,
                 alreadyExistedSegmentsMap,
-                reusedFromDBSegments,
-                duplicateSegments
+                duplicateSegments,
+                reusedFromDBSegments
         );
     }
 
-    public Map<String, SegmentMetadata> getAllHashToMetadataMap() {
-        Map<String, SegmentMetadata> map = HashMap.newHashMap(newSegmentsMap.size() + alreadyExistedSegmentsMap.size());
+    /**
+     * Combines segments of two disjoint parts of the same window.
+     */
+    public SegmentsMetadataToStore merge(@NotNull SegmentsMetadataToStore other) {
+        Map<Fingerprint, SegmentMetadata> mergedNewSegmentsMap
+                = LinkedHashMap.newLinkedHashMap(newSegmentsMap.size() + other.newSegmentsMap.size());
+        mergedNewSegmentsMap.putAll(newSegmentsMap);
+        mergedNewSegmentsMap.putAll(other.newSegmentsMap);
+        Map<Fingerprint, SegmentMetadata> mergedAlreadyExistedSegmentsMap = HashMap.newHashMap(
+                alreadyExistedSegmentsMap.size() + other.alreadyExistedSegmentsMap.size());
+        mergedAlreadyExistedSegmentsMap.putAll(alreadyExistedSegmentsMap);
+        mergedAlreadyExistedSegmentsMap.putAll(other.alreadyExistedSegmentsMap);
+        return new SegmentsMetadataToStore(
+                mergedNewSegmentsMap,
+                mergedAlreadyExistedSegmentsMap,
+                duplicateSegments + other.duplicateSegments,
+                reusedFromDBSegments + other.reusedFromDBSegments
+        );
+    }
+
+    public Map<Fingerprint, SegmentMetadata> getAllHashToMetadataMap() {
+        Map<Fingerprint, SegmentMetadata> map = HashMap.newHashMap(newSegmentsMap.size() + alreadyExistedSegmentsMap.size());
         map.putAll(newSegmentsMap);
         map.putAll(alreadyExistedSegmentsMap);
         return map;
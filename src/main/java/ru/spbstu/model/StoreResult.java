@@ -0,0 +1,19 @@
+package ru.spbstu.model;
+
+public record StoreResult(long segmentsCount,
+                          long uniqueSegments,
+                          long duplicateSegments,
+                          long reusedFromDBSegments) {
+
+    public static final StoreResult EMPTY = new StoreResult(0, 0, 0, 0);
+
+    public StoreResult merge(StoreResult other) {
+        return new StoreResult(
+                segmentsCount + other.segmentsCount,
+                uniqueSegments + other.uniqueSegments,
+                duplicateSegments + other.duplicateSegments,
+                reusedFromDBSegments + other.reusedFromDBSegments
+        );
+    }
+
+}
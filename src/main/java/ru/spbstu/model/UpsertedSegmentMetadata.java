@@ -0,0 +1,10 @@
+package ru.spbstu.model;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Stored metadata of a segment after upsert, {@code inserted} is false if the segment already existed.
+ */
+public record UpsertedSegmentMetadata(@NotNull SegmentMetadata metadata,
+                                      boolean inserted) {
+}
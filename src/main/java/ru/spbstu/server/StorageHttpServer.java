@@ -0,0 +1,233 @@
+package ru.spbstu.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbstu.exception.HashCollisionException;
+import ru.spbstu.exception.StorageException;
+import ru.spbstu.model.StoreResult;
+import ru.spbstu.service.StorageService;
+import ru.spbstu.util.Context;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * HTTP front end of {@link StorageService}, every exchange is handled by its own virtual thread:
+ * PUT /files/{name} stores the request body, GET /files/{name} streams the restored file,
+ * DELETE /files/{name} deletes it. PUT over an existing name replaces the file and releases references
+ * of the replaced one, space of deleted and replaced files is reclaimed by a {@code SegmentCompactor}
+ * run next to the server. An upload colliding with a stored segment is rejected with 409,
+ * see {@link Context#verifyMatches()}.
+ * <p>
+ * Bodies are never buffered whole: an upload is read window by window bounded by the memory budget
+ * of the context, a download is copied chunk by chunk. At most {@code maxConcurrentTransfers} exchanges
+ * hold such buffers, others wait for a permit, so heap doesn't grow with the number of connections.
+ */
+public class StorageHttpServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StorageHttpServer.class);
+
+    public static final String FILES_PATH = "/files/";
+
+    private static final int STOP_DELAY_IN_SECONDS = 5;
+    private static final int MAX_FILE_NAME_LENGTH = 255;
+
+    private final HttpServer server;
+    private final ExecutorService executorService;
+    private final StorageService storageService;
+    private final Context context;
+    private final Semaphore transfers;
+
+    private StorageHttpServer(@NotNull HttpServer server,
+                              @NotNull StorageService storageService,
+                              @NotNull Context context,
+                              int maxConcurrentTransfers) {
+        this.server = server;
+        this.executorService = Executors.newVirtualThreadPerTaskExecutor();
+        this.storageService = storageService;
+        this.context = context;
+        this.transfers = new Semaphore(maxConcurrentTransfers);
+    }
+
+    /**
+     * Starts server on {@code address}, uploads are stored with {@code context}.
+     */
+    @NotNull
+    public static StorageHttpServer start(@NotNull InetSocketAddress address,
+                                          @NotNull StorageService storageService,
+                                          @NotNull Context context,
+                                          int maxConcurrentTransfers) throws IOException {
+        Objects.requireNonNull(address);
+        Objects.requireNonNull(storageService);
+        Objects.requireNonNull(context);
+        if (maxConcurrentTransfers <= 0) {
+            throw new IllegalArgumentException("Max concurrent transfers must be positive: " + maxConcurrentTransfers);
+        }
+        StorageHttpServer storageHttpServer = new StorageHttpServer(
+                HttpServer.create(address, 0), storageService, context, maxConcurrentTransfers);
+        storageHttpServer.server.createContext(FILES_PATH, storageHttpServer::handle);
+        storageHttpServer.server.setExecutor(storageHttpServer.executorService);
+        storageHttpServer.server.start();
+        return storageHttpServer;
+    }
+
+    @NotNull
+    public InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    private void handle(@NotNull HttpExchange exchange) throws IOException {
+        try {
+            String fileName = fileName(exchange.getRequestURI().getPath());
+            if (fileName == null) {
+                sendText(exchange, 400, "Invalid file name");
+                return;
+            }
+            switch (exchange.getRequestMethod()) {
+                case "PUT" -> withTransferPermit(exchange, () -> store(exchange, fileName));
+                case "GET" -> withTransferPermit(exchange, () -> restore(exchange, fileName));
+                case "DELETE" -> delete(exchange, fileName);
+                default -> {
+                    exchange.getResponseHeaders().set("Allow", "PUT, GET, DELETE");
+                    sendText(exchange, 405, "Method not allowed");
+                }
+            }
+        } catch (HashCollisionException e) {
+            LOGGER.warn("Reject {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            if (exchange.getResponseCode() == -1) {
+                sendText(exchange, 409, e.getMessage());
+            }
+        } catch (StorageException e) {
+            boolean notFound = isNotFound(e);
+            if (!notFound) {
+                LOGGER.warn("Fail to handle {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            }
+            // Заголовки могли быть уже отправлены, тогда клиент увидит оборванный ответ
+            if (exchange.getResponseCode() == -1) {
+                sendText(exchange, notFound ? 404 : 500, e.getMessage());
+            }
+        } catch (IllegalArgumentException e) {
+            // Например, имя файла недопустимо для файловой системы
+            if (exchange.getResponseCode() == -1) {
+                sendText(exchange, 400, e.getMessage());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void store(@NotNull HttpExchange exchange,
+                       @NotNull String fileName) throws IOException {
+        StoreResult storeResult = storageService.store(exchange.getRequestBody(), fileName, context);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        sendText(exchange, 201, String.format(
+                "{\"segmentsCount\":%d,\"uniqueSegments\":%d,\"duplicateSegments\":%d,\"reusedFromDBSegments\":%d}",
+                storeResult.segmentsCount(), storeResult.uniqueSegments(),
+                storeResult.duplicateSegments(), storeResult.reusedFromDBSegments()));
+    }
+
+    private void restore(@NotNull HttpExchange exchange,
+                         @NotNull String fileName) throws IOException {
+        try (InputStream inputStream = storageService.openInputStream(fileName)) {
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            // Размер известен из сжатого файла, но chunked не требует его читать отдельно
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                inputStream.transferTo(outputStream);
+            }
+        }
+    }
+
+    private void delete(@NotNull HttpExchange exchange,
+                        @NotNull String fileName) throws IOException {
+        storageService.delete(fileName);
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void withTransferPermit(@NotNull HttpExchange exchange,
+                                    @NotNull Transfer transfer) throws IOException {
+        try {
+            transfers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendText(exchange, 503, "Server is stopping");
+            return;
+        }
+        try {
+            transfer.run();
+        } finally {
+            transfers.release();
+        }
+    }
+
+    /**
+     * Returns file name of the path or null if it isn't a plain name, so it can't escape storage directories.
+     */
+    @Nullable
+    private static String fileName(@NotNull String path) {
+        if (!path.startsWith(FILES_PATH)) {
+            return null;
+        }
+        String fileName = path.substring(FILES_PATH.length());
+        if (fileName.isEmpty()
+                || fileName.length() > MAX_FILE_NAME_LENGTH
+                || fileName.equals(".")
+                || fileName.equals("..")
+                || fileName.indexOf('/') >= 0
+                || fileName.indexOf('\\') >= 0) {
+            return null;
+        }
+        return fileName;
+    }
+
+    private static boolean isNotFound(@NotNull Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NoSuchFileException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sendText(@NotNull HttpExchange exchange,
+                                 int code,
+                                 @NotNull String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        }
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+
+    /**
+     * Stops accepting connections, exchanges in progress get a few seconds to finish.
+     */
+    @Override
+    public void close() {
+        server.stop(STOP_DELAY_IN_SECONDS);
+        executorService.close();
+    }
+
+    @FunctionalInterface
+    private interface Transfer {
+
+        void run() throws IOException;
+
+    }
+
+}
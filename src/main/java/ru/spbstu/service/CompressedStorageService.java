@@ -2,15 +2,14 @@ package ru.spbstu.service;
 
 import org.jetbrains.annotations.NotNull;
 import ru.spbstu.exception.StorageException;
-import ru.spbstu.hash.MemorySegmentWithHash;
-import ru.spbstu.model.SegmentMetadata;
+import ru.spbstu.hash.ChunkingType;
 import ru.spbstu.storage.compressed.CompressedFileInfo;
+import ru.spbstu.storage.compressed.CompressedFileWriter;
 import ru.spbstu.storage.compressed.CompressedFilesDiskStorage;
+import ru.spbstu.storage.compressed.RecipeMode;
 
 import java.io.IOException;
-import java.nio.file.Path;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
 public class CompressedStorageService {
@@ -21,14 +20,34 @@ public class CompressedStorageService {
         this.diskStorage = Objects.requireNonNull(diskStorage);
     }
 
-    public void store(@NotNull Path path,
-                      @NotNull List<MemorySegmentWithHash> memorySegmentWithHashes,
-                      @NotNull Map<String, SegmentMetadata> allHashToMetadataMap) {
+    public CompressedFileWriter open(@NotNull String fileName,
+                                     @NotNull ChunkingType chunkingType,
+                                     long segmentSizeInBytes,
+                                     @NotNull RecipeMode recipeMode) {
         try {
-            diskStorage.saveCompressedDataFile(path.getFileName().toString(), memorySegmentWithHashes, allHashToMetadataMap);
+            return diskStorage.openCompressedDataFile(fileName, chunkingType, segmentSizeInBytes, recipeMode);
         } catch (IOException e) {
-            throw new StorageException(
-                    String.format("Fail to save compressed file %s to storage", path.getFileName().toString()), e);
+            throw new StorageException(String.format("Fail to open compressed file %s in storage", fileName), e);
+        }
+    }
+
+    public boolean exists(@NotNull String fileName) {
+        return diskStorage.existsCompressedDataFile(fileName);
+    }
+
+    public void delete(@NotNull String fileName) {
+        try {
+            diskStorage.deleteCompressedDataFile(fileName);
+        } catch (IOException e) {
+            throw new StorageException(String.format("Fail to delete compressed file %s from storage", fileName), e);
+        }
+    }
+
+    public List<String> listFileNames() {
+        try {
+            return diskStorage.listCompressedDataFiles();
+        } catch (IOException e) {
+            throw new StorageException("Fail to list compressed files in storage", e);
         }
     }
 
@@ -37,7 +56,7 @@ public class CompressedStorageService {
             return diskStorage.readCompressedFileInfo(fileName);
         } catch (IOException e) {
             throw new StorageException(
-                    String.format("Fail to read compressed file %s from storage", fileName));
+                    String.format("Fail to read compressed file %s from storage", fileName), e);
         }
     }
 
@@ -0,0 +1,242 @@
+package ru.spbstu.service;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.exception.StorageException;
+import ru.spbstu.model.StoreResult;
+import ru.spbstu.util.Context;
+import ru.spbstu.util.StatInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Stores and restores every regular file of a directory tree with {@code workers} files in progress at once.
+ * A file is stored under its path relative to the root, see {@link #storedName}, so equal names
+ * from different directories don't collide.
+ * <p>
+ * A failed file doesn't stop the others, the pass throws after all files are processed.
+ */
+public class DatasetDriver {
+
+    private static final int MAX_SUPPRESSED_FAILURES = 16;
+
+    private final StorageService storageService;
+    private final int workers;
+    private final WorkerType workerType;
+
+    public DatasetDriver(@NotNull StorageService storageService,
+                         int workers,
+                         @NotNull WorkerType workerType) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Workers count must be positive: " + workers);
+        }
+        this.storageService = Objects.requireNonNull(storageService);
+        this.workers = workers;
+        this.workerType = Objects.requireNonNull(workerType);
+    }
+
+    /**
+     * Stores files of the tree, time and throughput of the pass are added to {@code statInfo}.
+     */
+    public void store(@NotNull Path root,
+                      @NotNull Context context,
+                      @NotNull StatInfo statInfo) {
+        Objects.requireNonNull(context);
+        Objects.requireNonNull(statInfo);
+        long startInMillis = System.currentTimeMillis();
+        try {
+            forEachFile(root, "store", file -> {
+                long sizeInBytes = Files.size(file);
+                long startLocalInMillis = System.currentTimeMillis();
+                StoreResult storeResult = storageService.store(file, storedName(root, file), context);
+                statInfo.addWrite(System.currentTimeMillis() - startLocalInMillis, sizeInBytes, storeResult);
+            });
+        } finally {
+            statInfo.setFullBlockWriteTimeInMillis(System.currentTimeMillis() - startInMillis);
+        }
+    }
+
+    /**
+     * Same as {@link #store}, files go through stages of {@link IngestPipeline} with {@code queueCapacity}
+     * items between them instead of workers. Time of a file is counted from its submission to the commit.
+     * Returns statistics of the stages, the busiest one bounds throughput of the pass.
+     */
+    @NotNull
+    public List<IngestPipeline.StageStats> storePipelined(@NotNull Path root,
+                                                          @NotNull Context context,
+                                                          int queueCapacity,
+                                                          @NotNull StatInfo statInfo) {
+        Objects.requireNonNull(context);
+        Objects.requireNonNull(statInfo);
+        long startInMillis = System.currentTimeMillis();
+        try {
+            List<Path> files = listFiles(root);
+            List<Future<?>> futures = new ArrayList<>(files.size());
+            List<IngestPipeline.StageStats> stageStats;
+            try (IngestPipeline ingestPipeline = new IngestPipeline(storageService, queueCapacity)) {
+                for (Path file : files) {
+                    futures.add(submit(ingestPipeline, root, file, context, statInfo));
+                }
+                // Закрытие дожидается записи всех файлов
+                ingestPipeline.close();
+                stageStats = ingestPipeline.stageStats();
+            }
+            awaitAll(root, "store", files, futures);
+            return stageStats;
+        } finally {
+            statInfo.setFullBlockWriteTimeInMillis(System.currentTimeMillis() - startInMillis);
+        }
+    }
+
+    @NotNull
+    private static Future<?> submit(@NotNull IngestPipeline ingestPipeline,
+                                    @NotNull Path root,
+                                    @NotNull Path file,
+                                    @NotNull Context context,
+                                    @NotNull StatInfo statInfo) {
+        long sizeInBytes;
+        try {
+            sizeInBytes = Files.size(file);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long startLocalInMillis = System.currentTimeMillis();
+        return ingestPipeline.submit(file, storedName(root, file), context).thenAccept(storeResult ->
+                statInfo.addWrite(System.currentTimeMillis() - startLocalInMillis, sizeInBytes, storeResult));
+    }
+
+    /**
+     * Restores files of the tree stored by {@link #store}, every file is copied by {@code restoreParallelism} threads.
+     */
+    public void restore(@NotNull Path root,
+                        int restoreParallelism,
+                        @NotNull StatInfo statInfo) {
+        Objects.requireNonNull(statInfo);
+        long startInMillis = System.currentTimeMillis();
+        try {
+            forEachFile(root, "restore", file -> {
+                long sizeInBytes = Files.size(file);
+                long startLocalInMillis = System.currentTimeMillis();
+                storageService.restore(storedName(root, file), restoreParallelism);
+                statInfo.addRead(System.currentTimeMillis() - startLocalInMillis, sizeInBytes);
+            });
+        } finally {
+            statInfo.setFullBlockReadTimeInMillis(System.currentTimeMillis() - startInMillis);
+        }
+    }
+
+    /**
+     * Name of the file in the storage: path relative to the root with escaped separators,
+     * the name of a file directly in the root is left as is.
+     */
+    @NotNull
+    public static String storedName(@NotNull Path root,
+                                    @NotNull Path file) {
+        return root.relativize(file).toString()
+                .replace("%", "%25")
+                .replace(File.separator, "%2F");
+    }
+
+    private void forEachFile(@NotNull Path root,
+                             @NotNull String operation,
+                             @NotNull FileAction action) {
+        List<Path> files = listFiles(root);
+        // Для виртуальных потоков число одновременно обрабатываемых файлов ограничивает семафор
+        Semaphore permits = new Semaphore(workers);
+        List<Future<?>> futures = new ArrayList<>(files.size());
+        try (ExecutorService executorService = workerType.createExecutor(workers)) {
+            for (Path file : files) {
+                futures.add(executorService.submit(() -> {
+                    permits.acquire();
+                    try {
+                        action.process(file);
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+        }
+        awaitAll(root, operation, files, futures);
+    }
+
+    @NotNull
+    private static List<Path> listFiles(@NotNull Path root) {
+        Objects.requireNonNull(root);
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile).sorted().toList();
+        } catch (IOException e) {
+            throw new StorageException(String.format("Fail to list files of %s", root), e);
+        }
+    }
+
+    /**
+     * Waits for {@code futures} of {@code files}, throws after all of them if some failed.
+     */
+    private static void awaitAll(@NotNull Path root,
+                                 @NotNull String operation,
+                                 @NotNull List<Path> files,
+                                 @NotNull List<Future<?>> futures) {
+        List<StorageException> failures = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException(String.format("Interrupted while waiting for %s of %s", operation, root), e);
+            } catch (ExecutionException e) {
+                failures.add(new StorageException(
+                        String.format("Fail to %s file %s", operation, files.get(i)), e.getCause()));
+            }
+        }
+        if (!failures.isEmpty()) {
+            StorageException exception = new StorageException(String.format("Fail to %s %d of %d files of %s",
+                    operation, failures.size(), files.size(), root), failures.getFirst());
+            failures.stream().skip(1).limit(MAX_SUPPRESSED_FAILURES).forEach(exception::addSuppressed);
+            throw exception;
+        }
+    }
+
+    public enum WorkerType {
+        /**
+         * Fixed pool of platform threads, one per worker.
+         */
+        PLATFORM {
+            @Override
+            ExecutorService createExecutor(int workers) {
+                return Executors.newFixedThreadPool(workers, Thread.ofPlatform().name("dataset-worker-", 0).factory());
+            }
+        },
+        /**
+         * Virtual thread per file, threads blocked on IO don't hold a carrier.
+         */
+        VIRTUAL {
+            @Override
+            ExecutorService createExecutor(int workers) {
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("dataset-worker-", 0).factory());
+            }
+        };
+
+        abstract ExecutorService createExecutor(int workers);
+    }
+
+    @FunctionalInterface
+    private interface FileAction {
+
+        void process(@NotNull Path file) throws IOException;
+
+    }
+
+}
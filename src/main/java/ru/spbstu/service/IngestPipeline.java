@@ -0,0 +1,402 @@
+package ru.spbstu.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbstu.exception.StorageException;
+import ru.spbstu.hash.Fingerprint;
+import ru.spbstu.hash.IngestMode;
+import ru.spbstu.hash.MemorySegmentWithHash;
+import ru.spbstu.hash.SegmentWindowReader;
+import ru.spbstu.model.SegmentMetadata;
+import ru.spbstu.model.SegmentsMetadataToStore;
+import ru.spbstu.model.StoreResult;
+import ru.spbstu.storage.compressed.CompressedFileWriter;
+import ru.spbstu.util.Context;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs stages of {@link StorageService#store} concurrently, so consecutive windows and files overlap:
+ * |read|hash|deduplicate|recipe|
+ * read splits files into windows, deduplicate looks segments up, writes new ones and upserts their metadata,
+ * recipe appends windows to compressed files and commits them.
+ * <p>
+ * Stages are connected by queues of {@code queueCapacity} items, a stage waits while the next one is behind,
+ * so throughput is bound by the slowest stage and at most {@code 3 * queueCapacity + 4} windows are alive.
+ * Windows of {@link IngestMode#HEAP} ingest are on the heap, so its context must have a bounded memory budget,
+ * otherwise every window would be a whole file.
+ * Every stage is a single thread, windows pass stages in the order of submission,
+ * hashing of a window is still split between {@link Context#hashParallelism()} threads.
+ */
+public class IngestPipeline implements AutoCloseable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    private final StorageService storageService;
+    private final int queueCapacity;
+    private final BlockingQueue<FileTask> fileQueue;
+    private final Map<Stage, BlockingQueue<WindowTask>> windowQueues = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> processedItems = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> busyNanos = new EnumMap<>(Stage.class);
+    private final List<Thread> threads = new ArrayList<>();
+    private boolean closed;
+
+    public IngestPipeline(@NotNull StorageService storageService) {
+        this(storageService, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public IngestPipeline(@NotNull StorageService storageService,
+                          int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.storageService = Objects.requireNonNull(storageService);
+        this.queueCapacity = queueCapacity;
+        this.fileQueue = new ArrayBlockingQueue<>(queueCapacity);
+        for (Stage stage : Stage.values()) {
+            if (stage != Stage.READ) {
+                windowQueues.put(stage, new ArrayBlockingQueue<>(queueCapacity));
+            }
+            processedItems.put(stage, new LongAdder());
+            busyNanos.put(stage, new LongAdder());
+        }
+        startThread(Stage.READ, this::runReadStage);
+        startThread(Stage.HASH, () -> runWindowStage(Stage.HASH, this::hash));
+        startThread(Stage.DEDUPLICATE, () -> runWindowStage(Stage.DEDUPLICATE, this::deduplicate));
+        startThread(Stage.RECIPE, () -> runWindowStage(Stage.RECIPE, this::writeRecipe));
+    }
+
+    @NotNull
+    public CompletableFuture<StoreResult> submit(@NotNull Path path,
+                                                 @NotNull Context context) {
+        return submit(path, path.getFileName().toString(), context);
+    }
+
+    /**
+     * Queues file to be stored under {@code fileName}, waits while {@code queueCapacity} files are already queued.
+     * Returned future completes when the compressed file is committed.
+     *
+     * @throws IllegalArgumentException if {@link IngestMode#HEAP} context has no memory budget
+     */
+    @NotNull
+    public synchronized CompletableFuture<StoreResult> submit(@NotNull Path path,
+                                                              @NotNull String fileName,
+                                                              @NotNull Context context) {
+        Objects.requireNonNull(path);
+        Objects.requireNonNull(fileName);
+        Objects.requireNonNull(context);
+        if (context.ingestMode() == IngestMode.HEAP && !context.isMemoryBounded()) {
+            throw new IllegalArgumentException("Pipelined heap ingest needs a bounded memory budget");
+        }
+        if (closed) {
+            throw new IllegalStateException("Ingest pipeline is closed");
+        }
+        FileTask fileTask = new FileTask(path, fileName, context);
+        try {
+            fileQueue.put(fileTask);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(String.format("Interrupted while submitting file %s", path), e);
+        }
+        return fileTask.future;
+    }
+
+    /**
+     * Returns queue depth of every stage and time it was busy, the busiest stage limits throughput.
+     */
+    @NotNull
+    public List<StageStats> stageStats() {
+        List<StageStats> result = new ArrayList<>(Stage.values().length);
+        for (Stage stage : Stage.values()) {
+            int queueDepth = stage == Stage.READ ? fileQueue.size() : windowQueues.get(stage).size();
+            result.add(new StageStats(stage, queueDepth, queueCapacity,
+                    processedItems.get(stage).sum(), busyNanos.get(stage).sum()));
+        }
+        return result;
+    }
+
+    /**
+     * Stores already submitted files and stops stages.
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                // Флаг ставится после put, чтобы прерванный close можно было повторить
+                fileQueue.put(FileTask.STOP);
+                closed = true;
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while stopping ingest pipeline", e);
+        }
+    }
+
+    private void startThread(@NotNull Stage stage,
+                             @NotNull Runnable runnable) {
+        Thread thread = new Thread(runnable, "ingest-" + stage.name().toLowerCase());
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    private void runReadStage() {
+        BlockingQueue<WindowTask> output = windowQueues.get(Stage.HASH);
+        try {
+            FileTask fileTask;
+            while ((fileTask = fileQueue.take()) != FileTask.STOP) {
+                long start = System.nanoTime();
+                try {
+                    fileTask.open(storageService);
+                    List<MemorySegment> window;
+                    while (!(window = fileTask.windowReader.nextWindow()).isEmpty()) {
+                        busyNanos.get(Stage.READ).add(System.nanoTime() - start);
+                        output.put(new WindowTask(fileTask, window));
+                        start = System.nanoTime();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    fileTask.fail(e);
+                }
+                busyNanos.get(Stage.READ).add(System.nanoTime() - start);
+                processedItems.get(Stage.READ).increment();
+                // Последний элемент файла закрывает его ресурсы на последней стадии, после всех его окон
+                output.put(WindowTask.last(fileTask));
+            }
+            output.put(WindowTask.STOP);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWindowStage(@NotNull Stage stage,
+                                @NotNull WindowAction action) {
+        BlockingQueue<WindowTask> input = windowQueues.get(stage);
+        BlockingQueue<WindowTask> output = stage.next() == null ? null : windowQueues.get(stage.next());
+        try {
+            WindowTask windowTask;
+            while ((windowTask = input.take()) != WindowTask.STOP) {
+                if (windowTask.fileTask.failure == null || windowTask.isLast()) {
+                    long start = System.nanoTime();
+                    try {
+                        action.process(windowTask);
+                    } catch (IOException | RuntimeException e) {
+                        windowTask.fileTask.fail(e);
+                    }
+                    busyNanos.get(stage).add(System.nanoTime() - start);
+                    processedItems.get(stage).increment();
+                }
+                if (output != null) {
+                    output.put(windowTask);
+                }
+            }
+            if (output != null) {
+                output.put(WindowTask.STOP);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void hash(@NotNull WindowTask windowTask) {
+        if (!windowTask.isLast()) {
+            windowTask.memorySegmentWithHashes
+                    = storageService.calculateHashes(windowTask.window, windowTask.fileTask.context);
+        }
+    }
+
+    private void deduplicate(@NotNull WindowTask windowTask) {
+        if (!windowTask.isLast()) {
+            windowTask.segmentsMetadataToStore = storageService.deduplicate(
+                    windowTask.memorySegmentWithHashes, windowTask.fileTask.context);
+            windowTask.hashToMetadataMap = windowTask.segmentsMetadataToStore.getAllHashToMetadataMap();
+            // Ссылки считаются здесь: окно может не дойти до рецепта, если упадет предыдущее
+            StorageService.countOccurrences(windowTask.fileTask.idToOccurrences,
+                    windowTask.memorySegmentWithHashes, windowTask.hashToMetadataMap);
+        }
+    }
+
+    private void writeRecipe(@NotNull WindowTask windowTask) throws IOException {
+        FileTask fileTask = windowTask.fileTask;
+        if (!windowTask.isLast()) {
+            fileTask.compressedFileWriter.append(windowTask.memorySegmentWithHashes, windowTask.hashToMetadataMap);
+            fileTask.storeResult = fileTask.storeResult.merge(StorageService.storeResult(
+                    windowTask.memorySegmentWithHashes, windowTask.segmentsMetadataToStore));
+            return;
+        }
+        try {
+            if (fileTask.failure == null) {
+                storageService.commit(fileTask.fileName, fileTask.compressedFileWriter);
+                fileTask.committed = true;
+            }
+        } catch (IOException | RuntimeException e) {
+            fileTask.fail(e);
+        } finally {
+            fileTask.close();
+        }
+        if (!fileTask.committed) {
+            storageService.releaseUncommitted(fileTask.idToOccurrences, fileTask.failure);
+        }
+        if (fileTask.failure == null) {
+            fileTask.future.complete(fileTask.storeResult);
+        } else {
+            fileTask.future.completeExceptionally(new StorageException(
+                    String.format("Fail to store file %s", fileTask.fileName), fileTask.failure));
+        }
+    }
+
+    public enum Stage {
+        READ,
+        HASH,
+        DEDUPLICATE,
+        RECIPE;
+
+        @Nullable
+        private Stage next() {
+            return ordinal() + 1 < values().length ? values()[ordinal() + 1] : null;
+        }
+    }
+
+    /**
+     * {@code queueDepth} is the number of items waiting for the stage: files for {@link Stage#READ}, windows for others.
+     */
+    public record StageStats(Stage stage,
+                             int queueDepth,
+                             int queueCapacity,
+                             long processedItems,
+                             long busyNanos) {
+    }
+
+    @FunctionalInterface
+    private interface WindowAction {
+
+        void process(@NotNull WindowTask windowTask) throws IOException;
+
+    }
+
+    /**
+     * Resources of a file are opened by the read stage and closed by the recipe stage.
+     */
+    private static final class FileTask {
+
+        static final FileTask STOP = new FileTask(Path.of(""), "", null);
+
+        final Path path;
+        final String fileName;
+        final Context context;
+        final CompletableFuture<StoreResult> future = new CompletableFuture<>();
+        Arena ingestArena;
+        SegmentWindowReader windowReader;
+        CompressedFileWriter compressedFileWriter;
+        // Ссылки, добавленные окнами файла, освобождаются, если файл не записан
+        final Map<Integer, Integer> idToOccurrences = new HashMap<>();
+        StoreResult storeResult = StoreResult.EMPTY;
+        boolean committed;
+        volatile Throwable failure;
+
+        FileTask(@NotNull Path path,
+                 @NotNull String fileName,
+                 Context context) {
+            this.path = path;
+            this.fileName = fileName;
+            this.context = context;
+        }
+
+        void open(@NotNull StorageService storageService) throws IOException {
+            // Отображение файла живет до записи сжатого файла, сегменты в режиме MAPPED ссылаются на него
+            ingestArena = Arena.ofShared();
+            windowReader = storageService.openWindowReader(path, context, ingestArena);
+            compressedFileWriter = storageService.openCompressedFile(fileName, context);
+        }
+
+        void fail(@NotNull Throwable cause) {
+            if (failure == null) {
+                failure = cause;
+            }
+        }
+
+        void close() {
+            // В обратном порядке открытия, неоткрытые ресурсы равны null
+            Throwable closeFailure = null;
+            if (compressedFileWriter != null) {
+                try {
+                    compressedFileWriter.close();
+                } catch (IOException | RuntimeException e) {
+                    closeFailure = e;
+                }
+            }
+            if (windowReader != null) {
+                try {
+                    windowReader.close();
+                } catch (IOException | RuntimeException e) {
+                    closeFailure = suppress(closeFailure, e);
+                }
+            }
+            if (ingestArena != null) {
+                try {
+                    ingestArena.close();
+                } catch (RuntimeException e) {
+                    closeFailure = suppress(closeFailure, e);
+                }
+            }
+            if (closeFailure != null) {
+                // Ошибка закрытия не должна скрыть исходную причину сбоя
+                fail(suppress(failure, closeFailure));
+            }
+        }
+
+        @NotNull
+        private static Throwable suppress(@Nullable Throwable first,
+                                          @NotNull Throwable next) {
+            if (first == null) {
+                return next;
+            }
+            first.addSuppressed(next);
+            return first;
+        }
+    }
+
+    private static final class WindowTask {
+
+        static final WindowTask STOP = new WindowTask(FileTask.STOP, null);
+
+        final FileTask fileTask;
+        final List<MemorySegment> window;
+        List<MemorySegmentWithHash> memorySegmentWithHashes;
+        SegmentsMetadataToStore segmentsMetadataToStore;
+        Map<Fingerprint, SegmentMetadata> hashToMetadataMap;
+
+        WindowTask(@NotNull FileTask fileTask,
+                   @Nullable List<MemorySegment> window) {
+            this.fileTask = fileTask;
+            this.window = window;
+        }
+
+        static WindowTask last(@NotNull FileTask fileTask) {
+            return new WindowTask(fileTask, null);
+        }
+
+        boolean isLast() {
+            return window == null;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package ru.spbstu.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbstu.storage.compressed.SegmentOffsets;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Decoded recipes of recently read files with offsets of their segments, so ranged reads don't decode
+ * the whole recipe every time. Least recently used recipes are dropped when cached recipes hold more
+ * than {@code maxSegments} segments, a larger recipe isn't cached at all.
+ * The caller invalidates the recipe of a file when the file is replaced or deleted.
+ */
+class RecipeCache {
+
+    private final long maxSegments;
+    private final LinkedHashMap<String, SegmentOffsets> recipes = new LinkedHashMap<>(16, 0.75f, true);
+    private long segments;
+
+    RecipeCache(long maxSegments) {
+        if (maxSegments < 0) {
+            throw new IllegalArgumentException("Max cached segments must not be negative: " + maxSegments);
+        }
+        this.maxSegments = maxSegments;
+    }
+
+    @Nullable
+    synchronized SegmentOffsets get(@NotNull String fileName) {
+        return recipes.get(Objects.requireNonNull(fileName));
+    }
+
+    synchronized void put(@NotNull String fileName,
+                          @NotNull SegmentOffsets segmentOffsets) {
+        Objects.requireNonNull(fileName);
+        long recipeSegments = segmentOffsets.compressedFileInfo().segmentsCount();
+        if (recipeSegments > maxSegments) {
+            return;
+        }
+        SegmentOffsets previous = recipes.put(fileName, segmentOffsets);
+        if (previous != null) {
+            segments -= previous.compressedFileInfo().segmentsCount();
+        }
+        segments += recipeSegments;
+        Iterator<Map.Entry<String, SegmentOffsets>> iterator = recipes.entrySet().iterator();
+        while (segments > maxSegments) {
+            segments -= iterator.next().getValue().compressedFileInfo().segmentsCount();
+            iterator.remove();
+        }
+    }
+
+    synchronized void invalidate(@NotNull String fileName) {
+        SegmentOffsets removed = recipes.remove(Objects.requireNonNull(fileName));
+        if (removed != null) {
+            segments -= removed.compressedFileInfo().segmentsCount();
+        }
+    }
+
+}
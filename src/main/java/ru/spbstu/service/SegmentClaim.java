@@ -0,0 +1,109 @@
+package ru.spbstu.service;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.exception.StorageException;
+import ru.spbstu.hash.Fingerprint;
+import ru.spbstu.model.SegmentMetadata;
+import ru.spbstu.model.SegmentsMetadataToStore;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * New segments of a window split between the ingest which writes them and ingests which wait for them,
+ * see {@link SegmentMetadataService#claimNewSegments}.
+ * The owner must {@link #complete} or {@link #abandon} the claim before waiting for others,
+ * so ingests waiting for each other's segments don't deadlock.
+ */
+class SegmentClaim {
+
+    private final ConcurrentMap<Fingerprint, CompletableFuture<SegmentMetadata>> inFlightSegments;
+    private final SegmentsMetadataToStore owned;
+    private final Map<Fingerprint, CompletableFuture<SegmentMetadata>> ownedFutures;
+    // Сегменты, которые пишет другая загрузка, со ссылками из этого окна
+    private final Map<Fingerprint, SegmentMetadata> awaitedSegmentsMap;
+    private final Map<Fingerprint, CompletableFuture<SegmentMetadata>> awaitedFutures;
+
+    SegmentClaim(@NotNull ConcurrentMap<Fingerprint, CompletableFuture<SegmentMetadata>> inFlightSegments,
+                 @NotNull SegmentsMetadataToStore owned,
+                 @NotNull Map<Fingerprint, CompletableFuture<SegmentMetadata>> ownedFutures,
+                 @NotNull Map<Fingerprint, SegmentMetadata> awaitedSegmentsMap,
+                 @NotNull Map<Fingerprint, CompletableFuture<SegmentMetadata>> awaitedFutures) {
+        this.inFlightSegments = Objects.requireNonNull(inFlightSegments);
+        this.owned = Objects.requireNonNull(owned);
+        this.ownedFutures = Objects.requireNonNull(ownedFutures);
+        this.awaitedSegmentsMap = Objects.requireNonNull(awaitedSegmentsMap);
+        this.awaitedFutures = Objects.requireNonNull(awaitedFutures);
+    }
+
+    /**
+     * Segments to be written and upserted by this ingest, awaited segments aren't there.
+     */
+    @NotNull
+    SegmentsMetadataToStore owned() {
+        return owned;
+    }
+
+    boolean hasAwaited() {
+        return !awaitedFutures.isEmpty();
+    }
+
+    /**
+     * Publishes upserted metadata of owned segments to waiting ingests.
+     */
+    void complete(@NotNull SegmentsMetadataToStore upserted) {
+        for (Map.Entry<Fingerprint, CompletableFuture<SegmentMetadata>> entry : ownedFutures.entrySet()) {
+            SegmentMetadata metadata = upserted.getNewSegmentsMap().get(entry.getKey());
+            if (metadata == null) {
+                metadata = upserted.getAlreadyExistedSegmentsMap().get(entry.getKey());
+            }
+            if (metadata == null) {
+                abandon(new StorageException(String.format("No upserted metadata for hash %s", entry.getKey())));
+                return;
+            }
+            entry.getValue().complete(metadata);
+            inFlightSegments.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Releases owned segments not written because of {@code cause}, waiting ingests write them themselves.
+     */
+    void abandon(@NotNull Throwable cause) {
+        for (Map.Entry<Fingerprint, CompletableFuture<SegmentMetadata>> entry : ownedFutures.entrySet()) {
+            entry.getValue().completeExceptionally(cause);
+            inFlightSegments.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Waits for segments written by other ingests, returns their locations with references of this window.
+     * Hashes of segments which other ingests failed to write are added to {@code failedHashes}.
+     */
+    @NotNull
+    Map<Fingerprint, SegmentMetadata> awaitOthers(@NotNull List<Fingerprint> failedHashes) {
+        Map<Fingerprint, SegmentMetadata> result = HashMap.newHashMap(awaitedFutures.size());
+        for (Map.Entry<Fingerprint, CompletableFuture<SegmentMetadata>> entry : awaitedFutures.entrySet()) {
+            SegmentMetadata stored;
+            try {
+                stored = entry.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted while waiting for concurrently stored segments", e);
+            } catch (ExecutionException e) {
+                failedHashes.add(entry.getKey());
+                continue;
+            }
+            SegmentMetadata awaited = awaitedSegmentsMap.get(entry.getKey());
+            result.put(entry.getKey(), new SegmentMetadata(stored.getId(), entry.getKey(), stored.getFileName(),
+                    stored.getFileOffset(), stored.getLength(), awaited.getReferences()));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,288 @@
+package ru.spbstu.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbstu.exception.StorageException;
+import ru.spbstu.model.CompactionResult;
+import ru.spbstu.model.SegmentMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reclaims sealed containers whose live bytes ratio fell below the threshold: referenced segments are appended
+ * to the active container and their metadata is updated, unreferenced ones are deleted, then the container is removed.
+ * <p>
+ * Length of a segment is the distance to the next segment in the container, bytes without metadata,
+ * e.g. a copy written by a concurrent ingest, are moved along with the preceding segment.
+ * Segments are relocated in small batches at most {@code maxBytesPerSecond}, so ingest appending new segments
+ * waits for one batch at most. Restore planned before a container is removed may fail and can be retried.
+ */
+public class SegmentCompactor implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentCompactor.class);
+
+    public static final double DEFAULT_LIVE_RATIO_THRESHOLD = 0.5;
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 64L * 1024 * 1024;
+
+    private static final long RELOCATION_BATCH_SIZE_IN_BYTES = 4L * 1024 * 1024;
+    private static final long MAX_THROTTLE_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final SegmentMetadataService segmentMetadataService;
+    private final SegmentStorageService segmentStorageService;
+    private final double liveRatioThreshold;
+    private final long maxBytesPerSecond;
+    private final Lock compactionLock = new ReentrantLock();
+    private ScheduledExecutorService executorService;
+    // Поток не прерывается: прерывание закрыло бы каналы файлов, с которыми он работает
+    private volatile boolean closed;
+
+    public SegmentCompactor(@NotNull SegmentMetadataService segmentMetadataService,
+                            @NotNull SegmentStorageService segmentStorageService) {
+        this(segmentMetadataService, segmentStorageService, DEFAULT_LIVE_RATIO_THRESHOLD, DEFAULT_MAX_BYTES_PER_SECOND);
+    }
+
+    public SegmentCompactor(@NotNull SegmentMetadataService segmentMetadataService,
+                            @NotNull SegmentStorageService segmentStorageService,
+                            double liveRatioThreshold,
+                            long maxBytesPerSecond) {
+        if (liveRatioThreshold < 0 || liveRatioThreshold > 1) {
+            throw new IllegalArgumentException("Live ratio threshold must be in [0, 1]: " + liveRatioThreshold);
+        }
+        if (maxBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Max bytes per second must be positive: " + maxBytesPerSecond);
+        }
+        this.segmentMetadataService = Objects.requireNonNull(segmentMetadataService);
+        this.segmentStorageService = Objects.requireNonNull(segmentStorageService);
+        this.liveRatioThreshold = liveRatioThreshold;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Runs {@link #compact()} in a background thread with {@code delay} between runs.
+     */
+    public synchronized void start(long delay,
+                                   @NotNull TimeUnit unit) {
+        if (executorService != null) {
+            throw new IllegalStateException("Compactor is already started");
+        }
+        executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executorService.scheduleWithFixedDelay(() -> {
+            try {
+                CompactionResult result = compact();
+                if (result.compactedContainers() > 0) {
+                    LOGGER.info("Compacted segment containers: {}", result);
+                }
+            } catch (StorageException e) {
+                if (!closed) {
+                    LOGGER.warn("Fail to compact segment containers", e);
+                }
+            }
+        }, delay, delay, unit);
+    }
+
+    /**
+     * Compacts all sealed containers below the live ratio threshold.
+     */
+    @NotNull
+    public CompactionResult compact() {
+        compactionLock.lock();
+        try {
+            return compactSealedContainers();
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    @NotNull
+    private CompactionResult compactSealedContainers() {
+        segmentMetadataService.requireReferencePerOccurrence();
+        // Сегменты, записанные загрузкой до upsert, могли попасть в закрытый контейнер без метаданных
+        Map<String, Long> sealedContainers;
+        Lock reclaimLock = segmentMetadataService.reclaimLock();
+        reclaimLock.lock();
+        try {
+            sealedContainers = segmentStorageService.sealedContainers();
+        } finally {
+            reclaimLock.unlock();
+        }
+        if (sealedContainers.isEmpty()) {
+            return CompactionResult.EMPTY;
+        }
+        Map<String, ContainerUsage> containerUsages = new HashMap<>();
+        for (SegmentMetadata metadata : segmentMetadataService.findByFileNames(sealedContainers.keySet())) {
+            containerUsages.computeIfAbsent(metadata.getFileName(), name -> new ContainerUsage())
+                    .add(metadata.getFileOffset(), metadata.getReferences() > 0);
+        }
+        Throttle throttle = new Throttle();
+        CompactionResult result = CompactionResult.EMPTY;
+        for (Map.Entry<String, Long> entry : sealedContainers.entrySet()) {
+            long usedBytes = entry.getValue();
+            ContainerUsage containerUsage = containerUsages.get(entry.getKey());
+            long liveBytes = containerUsage == null ? 0 : containerUsage.liveBytes(usedBytes);
+            if (usedBytes > 0 && liveBytes >= usedBytes * liveRatioThreshold) {
+                continue;
+            }
+            result = result.merge(compactContainer(entry.getKey(), usedBytes, throttle));
+        }
+        return result;
+    }
+
+    @NotNull
+    private CompactionResult compactContainer(@NotNull String name,
+                                              long usedBytes,
+                                              @NotNull Throttle throttle) {
+        List<SegmentMetadata> segments = new ArrayList<>(segmentMetadataService.findByFileName(name));
+        segments.sort(Comparator.comparingLong(SegmentMetadata::getFileOffset));
+        List<SegmentMetadata> liveSegments = new ArrayList<>();
+        List<Long> liveLengths = new ArrayList<>();
+        Map<Integer, Integer> deadIdToIdx = new HashMap<>();
+        for (int idx = 0; idx < segments.size(); ++idx) {
+            SegmentMetadata metadata = segments.get(idx);
+            if (metadata.getReferences() > 0) {
+                liveSegments.add(metadata);
+                liveLengths.add(length(segments, idx, usedBytes));
+            } else {
+                deadIdToIdx.put(metadata.getId(), idx);
+            }
+        }
+        long relocatedBytes = relocate(liveSegments, liveLengths, throttle);
+
+        List<SegmentMetadata> deleted = segmentMetadataService.deleteUnreferenced(deadIdToIdx.keySet());
+        // Сегменты, на которые сослались после поиска, не удалены, их тоже нужно перенести
+        Set<Integer> deletedIds = HashSet.newHashSet(deleted.size());
+        deleted.forEach(metadata -> deletedIds.add(metadata.getId()));
+        List<SegmentMetadata> revivedSegments = new ArrayList<>();
+        List<Long> revivedLengths = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : deadIdToIdx.entrySet()) {
+            if (!deletedIds.contains(entry.getKey())) {
+                revivedSegments.add(segments.get(entry.getValue()));
+                revivedLengths.add(length(segments, entry.getValue(), usedBytes));
+            }
+        }
+        relocatedBytes += relocate(revivedSegments, revivedLengths, throttle);
+
+        segmentStorageService.retireContainer(name);
+        return new CompactionResult(1, liveSegments.size() + revivedSegments.size(), relocatedBytes,
+                deleted.size(), usedBytes - relocatedBytes);
+    }
+
+    private long relocate(@NotNull List<SegmentMetadata> segments,
+                          @NotNull List<Long> lengths,
+                          @NotNull Throttle throttle) {
+        long relocatedBytes = 0;
+        int from = 0;
+        while (from < segments.size()) {
+            if (closed) {
+                // Контейнер остается как есть, часть сегментов уже перенесена
+                throw new StorageException("Compactor is closed");
+            }
+            int to = from;
+            long batchBytes = 0;
+            while (to < segments.size() && (to == from || batchBytes + lengths.get(to) <= RELOCATION_BATCH_SIZE_IN_BYTES)) {
+                batchBytes += lengths.get(to++);
+            }
+            long[] batchLengths = lengths.subList(from, to).stream().mapToLong(Long::longValue).toArray();
+            List<SegmentMetadata> relocated = segmentStorageService.relocate(segments.subList(from, to), batchLengths);
+            // Данные уже на диске, поэтому после сбоя метаданные указывают либо на старую, либо на новую копию
+            segmentMetadataService.updateLocations(relocated);
+            relocatedBytes += batchBytes;
+            throttle.acquire(batchBytes);
+            from = to;
+        }
+        return relocatedBytes;
+    }
+
+    private static long length(@NotNull List<SegmentMetadata> segmentsByOffset,
+                               int idx,
+                               long usedBytes) {
+        long end = idx + 1 < segmentsByOffset.size() ? segmentsByOffset.get(idx + 1).getFileOffset() : usedBytes;
+        return end - segmentsByOffset.get(idx).getFileOffset();
+    }
+
+    /**
+     * Stops background compaction, the current container is left after the relocation batch in progress.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (executorService == null) {
+            return;
+        }
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while waiting for compaction to stop", e);
+        } finally {
+            executorService = null;
+        }
+    }
+
+    /**
+     * Offsets of segments in a container with their liveness in the lowest bit.
+     */
+    private static final class ContainerUsage {
+
+        private long[] entries = new long[16];
+        private int size;
+
+        void add(long offset, boolean live) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = offset << 1 | (live ? 1 : 0);
+        }
+
+        long liveBytes(long usedBytes) {
+            Arrays.sort(entries, 0, size);
+            long liveBytes = 0;
+            for (int idx = 0; idx < size; ++idx) {
+                if ((entries[idx] & 1) != 0) {
+                    long end = idx + 1 < size ? entries[idx + 1] >>> 1 : usedBytes;
+                    liveBytes += end - (entries[idx] >>> 1);
+                }
+            }
+            return liveBytes;
+        }
+    }
+
+    private final class Throttle {
+
+        private final long startNanos = System.nanoTime();
+        private long bytes;
+
+        void acquire(long relocatedBytes) {
+            bytes += relocatedBytes;
+            long aheadNanos;
+            while (!closed
+                    && (aheadNanos = (long) (bytes * 1e9 / maxBytesPerSecond) - (System.nanoTime() - startNanos)) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(aheadNanos, MAX_THROTTLE_SLEEP_NANOS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StorageException("Compaction is interrupted", e);
+                }
+            }
+        }
+    }
+
+}
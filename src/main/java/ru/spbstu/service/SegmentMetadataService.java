@@ -1,78 +1,330 @@
 package ru.spbstu.service;
 
 import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.spbstu.exception.StorageException;
+import ru.spbstu.hash.Fingerprint;
 import ru.spbstu.hash.MemorySegmentWithHash;
 import ru.spbstu.model.SegmentMetadata;
 import ru.spbstu.model.SegmentsMetadataToStore;
-import ru.spbstu.storage.metadata.SegmentMetadataDAO;
+import ru.spbstu.model.UpsertedSegmentMetadata;
+import ru.spbstu.storage.metadata.FingerprintBloomFilter;
+import ru.spbstu.storage.metadata.SegmentMetadataCache;
+import ru.spbstu.storage.metadata.SegmentMetadataStore;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class SegmentMetadataService {
 
-    private final SegmentMetadataDAO dao;
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentMetadataService.class);
 
-    public SegmentMetadataService(@NotNull SegmentMetadataDAO dao) {
-        this.dao = Objects.requireNonNull(dao);
+    private final SegmentMetadataStore metadataStore;
+    private final SegmentMetadataCache cache;
+    private final FingerprintBloomFilter bloomFilter;
+    // Найденный при загрузке сегмент не должен быть удален до upsert, иначе upsert вставит его с устаревшим адресом
+    private final ReadWriteLock reclaimLock = new ReentrantReadWriteLock();
+    // Новые сегменты, которые сейчас пишет одна из загрузок, другие загрузки ждут их метаданные
+    private final ConcurrentMap<Fingerprint, CompletableFuture<SegmentMetadata>> inFlightSegments
+            = new ConcurrentHashMap<>();
+    // Признак формата читается из хранилища один раз, сбросить его может только перестроение ссылок
+    private volatile boolean referencePerOccurrence;
+
+    public SegmentMetadataService(@NotNull SegmentMetadataStore metadataStore) {
+        this(metadataStore, SegmentMetadataCache.disabled(), FingerprintBloomFilter.disabled());
+    }
+
+    public SegmentMetadataService(@NotNull SegmentMetadataStore metadataStore,
+                                  @NotNull SegmentMetadataCache cache,
+                                  @NotNull FingerprintBloomFilter bloomFilter) {
+        this.metadataStore = Objects.requireNonNull(metadataStore);
+        this.cache = Objects.requireNonNull(cache);
+        this.bloomFilter = Objects.requireNonNull(bloomFilter);
+    }
+
+    /**
+     * Stores new segments and adds references to existing ones in a single request to the store.
+     * A segment written as new may have been stored by a concurrent ingest meanwhile,
+     * then the stored one is reused and the written copy stays unreferenced.
+     */
+    @NotNull
+    public SegmentsMetadataToStore upsert(@NotNull SegmentsMetadataToStore segmentsMetadataToStore) {
+        Objects.requireNonNull(segmentsMetadataToStore);
+        Map<Fingerprint, SegmentMetadata> writtenSegmentsMap = segmentsMetadataToStore.getNewSegmentsMap();
+        Map<Fingerprint, SegmentMetadata> existedSegmentsMap = segmentsMetadataToStore.getAlreadyExistedSegmentsMap();
+        List<SegmentMetadata> metadataList = new ArrayList<>(writtenSegmentsMap.size() + existedSegmentsMap.size());
+        metadataList.addAll(writtenSegmentsMap.values());
+        metadataList.addAll(existedSegmentsMap.values());
+
+        Map<Fingerprint, SegmentMetadata> newSegmentsMap = HashMap.newHashMap(writtenSegmentsMap.size());
+        Map<Fingerprint, SegmentMetadata> alreadyExistedSegmentsMap = HashMap.newHashMap(metadataList.size());
+        int reusedFromDBSegments = segmentsMetadataToStore.getReusedFromDBSegments();
+        for (UpsertedSegmentMetadata upserted : metadataStore.upsertBatch(metadataList)) {
+            SegmentMetadata metadata = upserted.metadata();
+            cache.put(metadata);
+            if (upserted.inserted()) {
+                bloomFilter.add(metadata.getHash());
+                newSegmentsMap.put(metadata.getHash(), metadata);
+            } else {
+                alreadyExistedSegmentsMap.put(metadata.getHash(), metadata);
+                if (writtenSegmentsMap.containsKey(metadata.getHash())) {
+                    reusedFromDBSegments++;
+                }
+            }
+        }
+        if (newSegmentsMap.size() + alreadyExistedSegmentsMap.size() != metadataList.size()) {
+            throw new StorageException("Upserted segments don't match segments to store");
+        }
+        return new SegmentsMetadataToStore(
+                newSegmentsMap,
+                alreadyExistedSegmentsMap,
+                segmentsMetadataToStore.getDuplicateSegments(),
+                reusedFromDBSegments
+        );
+    }
+
+    /**
+     * Claims new segments of the window for the calling ingest. A segment claimed by a concurrent ingest
+     * is awaited instead of being written once again, a segment stored since the lookup becomes an existing one.
+     */
+    @NotNull
+    SegmentClaim claimNewSegments(@NotNull SegmentsMetadataToStore segmentsMetadataToStore) {
+        Objects.requireNonNull(segmentsMetadataToStore);
+        Map<Fingerprint, SegmentMetadata> segmentsToClaimMap = segmentsMetadataToStore.getNewSegmentsMap();
+        Map<Fingerprint, SegmentMetadata> newSegmentsMap = LinkedHashMap.newLinkedHashMap(segmentsToClaimMap.size());
+        Map<Fingerprint, SegmentMetadata> alreadyExistedSegmentsMap
+                = new HashMap<>(segmentsMetadataToStore.getAlreadyExistedSegmentsMap());
+        Map<Fingerprint, CompletableFuture<SegmentMetadata>> ownedFutures
+                = HashMap.newHashMap(segmentsToClaimMap.size());
+        Map<Fingerprint, SegmentMetadata> awaitedSegmentsMap = new HashMap<>();
+        Map<Fingerprint, CompletableFuture<SegmentMetadata>> awaitedFutures = new HashMap<>();
+        int reusedFromDBSegments = segmentsMetadataToStore.getReusedFromDBSegments();
+        for (Map.Entry<Fingerprint, SegmentMetadata> entry : segmentsToClaimMap.entrySet()) {
+            Fingerprint hash = entry.getKey();
+            CompletableFuture<SegmentMetadata> future = new CompletableFuture<>();
+            CompletableFuture<SegmentMetadata> claimed = inFlightSegments.putIfAbsent(hash, future);
+            if (claimed != null) {
+                awaitedSegmentsMap.put(hash, entry.getValue());
+                awaitedFutures.put(hash, claimed);
+                continue;
+            }
+            // Загрузка кладет записанный сегмент в кеш до снятия заявки, поэтому после поиска он мог появиться только там
+            SegmentMetadata cachedMetadata = cache.get(hash);
+            if (cachedMetadata != null) {
+                future.complete(cachedMetadata);
+                inFlightSegments.remove(hash, future);
+                alreadyExistedSegmentsMap.put(hash, new SegmentMetadata(cachedMetadata.getId(), hash,
+                        cachedMetadata.getFileName(), cachedMetadata.getFileOffset(), cachedMetadata.getLength(),
+                        entry.getValue().getReferences()));
+                reusedFromDBSegments++;
+                continue;
+            }
+            newSegmentsMap.put(hash, entry.getValue());
+            ownedFutures.put(hash, future);
+        }
+        SegmentsMetadataToStore owned = new SegmentsMetadataToStore(
+                newSegmentsMap,
+                alreadyExistedSegmentsMap,
+                segmentsMetadataToStore.getDuplicateSegments(),
+                reusedFromDBSegments
+        );
+        return new SegmentClaim(inFlightSegments, owned, ownedFutures, awaitedSegmentsMap, awaitedFutures);
+    }
+
+    /**
+     * Lock held by ingest from lookup of segments till their upsert, unreferenced segments aren't deleted meanwhile.
+     */
+    @NotNull
+    public Lock ingestLock() {
+        return reclaimLock.readLock();
+    }
+
+    /**
+     * Lock excluding ingest between lookup and upsert, segments written by ingest are in metadata while it is held.
+     */
+    @NotNull
+    public Lock reclaimLock() {
+        return reclaimLock.writeLock();
+    }
+
+    /**
+     * Subtracts occurrences of segments in a deleted file from their references. References lower than
+     * the occurrences mean a broken count, such segments keep their references and are never reclaimed.
+     */
+    public void release(@NotNull Map<Integer, Integer> idToOccurrences) {
+        Objects.requireNonNull(idToOccurrences);
+        requireReferencePerOccurrence();
+        Set<Integer> notReleasedIds = metadataStore.releaseBatch(idToOccurrences);
+        if (!notReleasedIds.isEmpty()) {
+            LOGGER.warn("References of {} segments are lower than released, they are left as is: {}",
+                    notReleasedIds.size(), notReleasedIds);
+        }
+    }
+
+    /**
+     * Fails if references in the store are counted per file, as the baseline format did. Releasing occurrences
+     * from such references would reclaim segments still used by other files, see {@link #rebuildReferences}.
+     */
+    void requireReferencePerOccurrence() {
+        if (referencePerOccurrence) {
+            return;
+        }
+        if (!metadataStore.isReferencePerOccurrence()) {
+            throw new StorageException("Segment references are counted per file, " +
+                    "rebuild them with StorageService.rebuildReferences() before deleting files or compacting");
+        }
+        referencePerOccurrence = true;
+    }
+
+    /**
+     * Replaces references of all segments with the given occurrences, waits for ingest in progress.
+     */
+    void rebuildReferences(@NotNull Map<Integer, Integer> idToOccurrences) {
+        Objects.requireNonNull(idToOccurrences);
+        Lock lock = reclaimLock();
+        lock.lock();
+        try {
+            metadataStore.rebuildReferences(idToOccurrences);
+            referencePerOccurrence = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets new locations of relocated segments, waits for ingest which may cache their old locations.
+     */
+    public void updateLocations(@NotNull List<SegmentMetadata> relocatedMetadataList) {
+        Objects.requireNonNull(relocatedMetadataList);
+        Lock lock = reclaimLock();
+        lock.lock();
+        try {
+            metadataStore.updateBatchLocation(relocatedMetadataList);
+            for (SegmentMetadata metadata : relocatedMetadataList) {
+                cache.remove(metadata.getHash());
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public void create(@NotNull List<SegmentMetadata> metadataList) {
-        Objects.requireNonNull(metadataList);
-        dao.createBatch(metadataList);
+    /**
+     * Deletes segments without references, waits for ingest which may be about to reference them.
+     * Returns metadata of the deleted segments.
+     */
+    @NotNull
+    public List<SegmentMetadata> deleteUnreferenced(@NotNull Collection<Integer> metadataIds) {
+        Objects.requireNonNull(metadataIds);
+        requireReferencePerOccurrence();
+        Lock lock = reclaimLock();
+        lock.lock();
+        try {
+            List<SegmentMetadata> deleted = metadataStore.deleteUnreferencedBatch(metadataIds);
+            for (SegmentMetadata metadata : deleted) {
+                cache.remove(metadata.getHash());
+            }
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    public List<SegmentMetadata> findByFileName(@NotNull String fileName) {
+        return metadataStore.findAllByFileName(fileName);
+    }
+
+    @NotNull
+    public List<SegmentMetadata> findByFileNames(@NotNull Collection<String> fileNames) {
+        return metadataStore.findAllByFileNames(fileNames);
     }
 
-    public void updateReferenceCount(@NotNull Collection<SegmentMetadata> metadataList) {
-        Objects.requireNonNull(metadataList);
-        dao.updateBatchReferenceCount(metadataList);
+    public void scanMetadata(@NotNull Consumer<SegmentMetadata> metadataConsumer) {
+        metadataStore.scanMetadata(metadataConsumer);
     }
 
     @NotNull
     public List<SegmentMetadata> finaAll() {
-        return dao.findAll();
+        return metadataStore.findAll();
     }
 
     @NotNull
-    public Map<String, SegmentMetadata> findByHashes(@NotNull Collection<String> metadataHashes) {
+    public Map<Fingerprint, SegmentMetadata> findByHashes(@NotNull Collection<Fingerprint> metadataHashes) {
         Objects.requireNonNull(metadataHashes);
-        return dao.findAllByHashes(metadataHashes)
-                .stream()
-                .collect(Collectors.toMap(SegmentMetadata::getHash, Function.identity()));
+        Map<Fingerprint, SegmentMetadata> result = HashMap.newHashMap(metadataHashes.size());
+        List<Fingerprint> missedHashes = new ArrayList<>();
+        for (Fingerprint hash : metadataHashes) {
+            SegmentMetadata cachedMetadata = cache.get(hash);
+            if (cachedMetadata != null) {
+                result.put(hash, cachedMetadata);
+            } else if (bloomFilter.mightContain(hash)) {
+                missedHashes.add(hash);
+            }
+        }
+        if (missedHashes.isEmpty()) {
+            return result;
+        }
+        for (SegmentMetadata metadata : metadataStore.findAllByHashes(missedHashes)) {
+            cache.put(metadata);
+            result.put(metadata.getHash(), metadata);
+        }
+        return result;
     }
 
     @NotNull
     public Map<Integer, SegmentMetadata> findByIds(@NotNull Collection<Integer> metadataIds) {
         Objects.requireNonNull(metadataIds);
-        return dao.findAllByIds(metadataIds)
+        return metadataStore.findAllByIds(metadataIds)
                 .stream()
                 .collect(Collectors.toMap(SegmentMetadata::getId, Function.identity()));
     }
 
+    /**
+     * Reference count of a segment is the number of its occurrences in all stored files,
+     * so every occurrence of a hash in {@code memorySegmentWithHashes} adds one reference.
+     * References of the returned metadata are these occurrences, {@link #upsert} adds them to the stored ones.
+     */
     @NotNull
     public SegmentsMetadataToStore getSegmentsMetadataToStore(@NotNull List<MemorySegmentWithHash> memorySegmentWithHashes) {
-        List<String> segmentHashList = distinctHashList(memorySegmentWithHashes);
+        List<Fingerprint> segmentHashList = distinctHashList(memorySegmentWithHashes);
 
-        Map<String, SegmentMetadata> segmentsFromDBMap = findByHashes(segmentHashList);
-        Map<String, SegmentMetadata> newSegmentsMap = HashMap.newHashMap(segmentHashList.size());
-        Map<String, SegmentMetadata> alreadyExistedSegmentsMap = HashMap.newHashMap(segmentHashList.size());
+        Map<Fingerprint, SegmentMetadata> segmentsFromDBMap = findByHashes(segmentHashList);
+        // Новые сегменты в порядке файла, тогда их id и смещения в контейнере идут подряд, как и в сжатом файле
+        Map<Fingerprint, SegmentMetadata> newSegmentsMap = LinkedHashMap.newLinkedHashMap(segmentHashList.size());
+        Map<Fingerprint, SegmentMetadata> alreadyExistedSegmentsMap = HashMap.newHashMap(segmentsFromDBMap.size());
 
         int reusedFromDBSegments = 0;
         int duplicateSegments = 0;
-        for (String segmentHash : segmentHashList) {
+        for (MemorySegmentWithHash memorySegmentWithHash : memorySegmentWithHashes) {
+            Fingerprint segmentHash = memorySegmentWithHash.getHash();
             SegmentMetadata segmentFromDB = segmentsFromDBMap.get(segmentHash);
             // Сегмент уже есть на диске
             if (segmentFromDB != null) {
+                SegmentMetadata segmentFromCurrentFile = alreadyExistedSegmentsMap.get(segmentHash);
+                if (segmentFromCurrentFile == null) {
+                    reusedFromDBSegments++;
+                }
                 alreadyExistedSegmentsMap.put(
                         segmentHash,
                         new SegmentMetadata(segmentFromDB.getId(), segmentHash, segmentFromDB.getFileName(),
-                                segmentFromDB.getFileOffset(), segmentFromDB.getReferences() + 1));
-                reusedFromDBSegments++;
+                                segmentFromDB.getFileOffset(), segmentFromDB.getLength(),
+                                segmentFromCurrentFile == null ? 1 : segmentFromCurrentFile.getReferences() + 1));
                 duplicateSegments++;
                 continue;
             }
@@ -98,7 +350,7 @@ public class SegmentMetadataService {
         );
     }
 
-    private static List<String> distinctHashList(@NotNull List<MemorySegmentWithHash> memorySegmentWithHashes) {
+    private static List<Fingerprint> distinctHashList(@NotNull List<MemorySegmentWithHash> memorySegmentWithHashes) {
         return memorySegmentWithHashes.stream().map(MemorySegmentWithHash::getHash).distinct().toList();
     }
 
@@ -2,10 +2,12 @@ package ru.spbstu.service;
 
 import org.jetbrains.annotations.NotNull;
 import ru.spbstu.exception.StorageException;
+import ru.spbstu.hash.Fingerprint;
 import ru.spbstu.hash.MemorySegmentWithHash;
 import ru.spbstu.model.SegmentMetadata;
 import ru.spbstu.model.SegmentsMetadataToStore;
 import ru.spbstu.storage.compressed.CompressedFileInfo;
+import ru.spbstu.storage.compressed.SegmentOffsets;
 import ru.spbstu.storage.segments.SegmentsDiskStorage;
 import ru.spbstu.storage.util.DiskStorageUtil;
 
@@ -18,8 +20,10 @@ import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class SegmentStorageService {
@@ -30,10 +34,10 @@ public class SegmentStorageService {
         this.diskStorage = diskStorage;
     }
 
-    public Map<String, SegmentMetadata> saveNewSegmentsOnDisk(@NotNull SegmentsMetadataToStore segmentsMetadataToStore,
-                                                              @NotNull List<MemorySegmentWithHash> memorySegmentWithHashes) {
+    public Map<Fingerprint, SegmentMetadata> saveNewSegmentsOnDisk(@NotNull SegmentsMetadataToStore segmentsMetadataToStore,
+                                                                   @NotNull List<MemorySegmentWithHash> memorySegmentWithHashes) {
         Collection<SegmentMetadata> segmentsToWriteOnDiskMetadataList = segmentsMetadataToStore.getNewSegmentsMap().values();
-        Map<String, MemorySegment> hashToMemorySegmentMap = memorySegmentWithHashes.stream()
+        Map<Fingerprint, MemorySegment> hashToMemorySegmentMap = memorySegmentWithHashes.stream()
                 .collect(Collectors.toMap(
                         MemorySegmentWithHash::getHash,
                         MemorySegmentWithHash::getMemorySegment,
@@ -45,7 +49,7 @@ public class SegmentStorageService {
             return Collections.emptyMap();
         }
 
-        Map<String, SegmentMetadata> hashToSegmentStoredOnDisk;
+        Map<Fingerprint, SegmentMetadata> hashToSegmentStoredOnDisk;
         try {
             hashToSegmentStoredOnDisk = diskStorage.saveNewSegmentsOnDisk(segmentsToWriteOnDiskMetadataList, hashToMemorySegmentMap);
         } catch (IOException e) {
@@ -53,7 +57,7 @@ public class SegmentStorageService {
         }
         return segmentsMetadataToStore.getNewSegmentsMap().entrySet().stream()
                 .map(entry -> {
-                    String hash = entry.getKey();
+                    Fingerprint hash = entry.getKey();
                     SegmentMetadata metadata = entry.getValue();
                     if (!metadata.isUnknown()) {
                         return entry;
@@ -67,12 +71,90 @@ public class SegmentStorageService {
                 })
                 .collect(Collectors.toMap(
                         Map.Entry::getKey,
-                        Map.Entry::getValue
+                        Map.Entry::getValue,
+                        (m1, m2) -> m1,
+                        LinkedHashMap::new
                 ));
     }
 
+    @NotNull
+    public Map<String, Long> sealedContainers() {
+        try {
+            return diskStorage.sealedContainers();
+        } catch (IOException e) {
+            throw new StorageException("Fail to list segment containers", e);
+        }
+    }
+
+    @NotNull
+    public List<SegmentMetadata> relocate(@NotNull List<SegmentMetadata> segmentMetadatas,
+                                          long[] lengths) {
+        try {
+            return diskStorage.relocate(segmentMetadatas, lengths);
+        } catch (IOException e) {
+            throw new StorageException("Fail to relocate segments", e);
+        }
+    }
+
+    public void retireContainer(@NotNull String name) {
+        try {
+            diskStorage.retireContainer(name);
+        } catch (IOException e) {
+            throw new StorageException(String.format("Fail to retire segment container %s", name), e);
+        }
+    }
+
+    public void read(@NotNull CompressedFileInfo compressedFileInfo,
+                     @NotNull SegmentOffsets segmentOffsets,
+                     @NotNull Map<Integer, SegmentMetadata> idToMetadataMap,
+                     long offset,
+                     @NotNull MemorySegment destination) {
+        diskStorage.read(compressedFileInfo, segmentOffsets, idToMetadataMap, offset, destination);
+    }
+
+    public void read(@NotNull CompressedFileInfo compressedFileInfo,
+                     @NotNull SegmentOffsets segmentOffsets,
+                     long offset,
+                     @NotNull MemorySegment destination) {
+        diskStorage.read(compressedFileInfo, segmentOffsets, offset, destination);
+    }
+
+    public boolean matches(@NotNull SegmentMetadata segmentMetadata,
+                           @NotNull MemorySegment bytes) {
+        try {
+            return diskStorage.matches(segmentMetadata, bytes);
+        } catch (IOException e) {
+            throw new StorageException(String.format("Fail to read segment with hash %s", segmentMetadata.getHash()), e);
+        }
+    }
+
+    public boolean canLocate(@NotNull CompressedFileInfo compressedFileInfo) {
+        return diskStorage.canLocate(compressedFileInfo);
+    }
+
     public void restore(@NotNull CompressedFileInfo compressedFileInfo,
                         @NotNull Map<Integer, SegmentMetadata> idToMetadataMap) {
+        restore(compressedFileInfo, idToMetadataMap, 1);
+    }
+
+    public void restore(@NotNull CompressedFileInfo compressedFileInfo,
+                        @NotNull Map<Integer, SegmentMetadata> idToMetadataMap,
+                        int parallelism) {
+        restore(compressedFileInfo, destination ->
+                diskStorage.decompressFile(destination, compressedFileInfo, idToMetadataMap, parallelism));
+    }
+
+    /**
+     * Restores the file by locations of its segments, see {@link #canLocate}.
+     */
+    public void restore(@NotNull CompressedFileInfo compressedFileInfo,
+                        int parallelism) {
+        restore(compressedFileInfo, destination ->
+                diskStorage.decompressFile(destination, compressedFileInfo, parallelism));
+    }
+
+    private void restore(@NotNull CompressedFileInfo compressedFileInfo,
+                         @NotNull Consumer<MemorySegment> decompressor) {
         String fileNameFromCompressed = DiskStorageUtil.getFileNameFromCompressed(compressedFileInfo.compressedFileName());
         Path decompressedFilePath = DiskStorageUtil.ofDecompressed(fileNameFromCompressed);
         try (FileChannel fileChannel = FileChannel.open(
@@ -80,11 +162,12 @@ public class SegmentStorageService {
                 StandardOpenOption.WRITE,
                 StandardOpenOption.READ,
                 StandardOpenOption.CREATE);
-             Arena writeArena = Arena.ofConfined()
+             // Файл восстанавливается несколькими потоками
+             Arena writeArena = Arena.ofShared()
         ) {
             MemorySegment decompressedFileMemorySegment = fileChannel.map(
                     FileChannel.MapMode.READ_WRITE, 0, compressedFileInfo.fileSizeInBytes(), writeArena);
-            diskStorage.decompressFile(decompressedFileMemorySegment, compressedFileInfo, idToMetadataMap);
+            decompressor.accept(decompressedFileMemorySegment);
         } catch (IOException e) {
             throw new StorageException(String.format("Fail to restore fail: %s", fileNameFromCompressed), e);
         }
@@ -3,33 +3,65 @@ package ru.spbstu.service;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.spbstu.exception.HashCollisionException;
 import ru.spbstu.exception.StorageException;
-import ru.spbstu.hash.HashType;
-import ru.spbstu.hash.SegmentUtil;
-import ru.spbstu.hash.SegmentHashUtil;
+import ru.spbstu.hash.Fingerprint;
+import ru.spbstu.hash.IngestMode;
+import ru.spbstu.hash.MappedSegmentWindowReader;
 import ru.spbstu.hash.MemorySegmentWithHash;
+import ru.spbstu.hash.SegmentChunker;
+import ru.spbstu.hash.SegmentHashUtil;
+import ru.spbstu.hash.SegmentUtil;
+import ru.spbstu.hash.SegmentWindowReader;
+import ru.spbstu.hash.StreamSegmentWindowReader;
 import ru.spbstu.model.SegmentMetadata;
 import ru.spbstu.model.SegmentsMetadataToStore;
+import ru.spbstu.model.StoreResult;
 import ru.spbstu.storage.compressed.CompressedFileInfo;
+import ru.spbstu.storage.compressed.CompressedFileWriter;
+import ru.spbstu.storage.compressed.RecipeMode;
+import ru.spbstu.storage.compressed.SegmentOffsets;
 import ru.spbstu.util.Context;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class StorageService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StorageService.class);
 
+    // Heap kept per segment of a window: slice, hash, metadata and map entries
+    private static final int ESTIMATED_SEGMENT_OVERHEAD_IN_BYTES = 256;
+    private static final int MAX_WINDOW_SIZE_IN_BYTES = Integer.MAX_VALUE - 8;
+    private static final int FILE_NAME_LOCKS_COUNT = 64;
+    // Около 50 байт на сегмент: id, размер и смещение
+    private static final long RECIPE_CACHE_MAX_SEGMENTS = 1L << 21;
+
     private final SegmentMetadataService segmentMetadataService;
     private final SegmentStorageService segmentStorageService;
     private final CompressedStorageService compressedStorageService;
+    // Замена и удаление файла с одним именем не пересекаются, иначе ссылки старого рецепта освободятся дважды
+    private final Lock[] fileNameLocks = new Lock[FILE_NAME_LOCKS_COUNT];
+    private final RecipeCache recipeCache = new RecipeCache(RECIPE_CACHE_MAX_SEGMENTS);
 
     public StorageService(@NotNull SegmentMetadataService segmentMetadataService,
                           @NotNull SegmentStorageService segmentStorageService,
@@ -37,55 +69,334 @@ public class StorageService {
         this.segmentMetadataService = Objects.requireNonNull(segmentMetadataService);
         this.segmentStorageService = Objects.requireNonNull(segmentStorageService);
         this.compressedStorageService = Objects.requireNonNull(compressedStorageService);
+        for (int idx = 0; idx < fileNameLocks.length; ++idx) {
+            fileNameLocks[idx] = new ReentrantLock();
+        }
     }
 
-    public SegmentsMetadataToStore store(@NotNull Path path,
-                                         @NotNull Context context) {
-        long start = System.nanoTime();
-        // Разбили файл на сегменты и посчитали хеш для каждого сегмента
-        final List<MemorySegmentWithHash> memorySegmentWithHashes = getHashToBytesSegmentMap(path, context, start);
+    /**
+     * Stores file window by window: every window is hashed, deduplicated against already stored segments
+     * and appended to the compressed file before the next one is read.
+     * With {@link Context#UNBOUNDED_MEMORY} budget the whole file is a single window.
+     * A stored file with the same name is replaced and references of its segments are released.
+     * If the store fails, references added by the already deduplicated windows are released.
+     *
+     * @throws HashCollisionException if {@link Context#verifyMatches()} finds a segment colliding with a stored one,
+     *                                the file isn't stored then
+     */
+    public StoreResult store(@NotNull Path path,
+                             @NotNull Context context) {
+        return store(path, path.getFileName().toString(), context);
+    }
+
+    /**
+     * Stores file under {@code fileName}, e.g. when names of files from different directories collide.
+     */
+    public StoreResult store(@NotNull Path path,
+                             @NotNull String fileName,
+                             @NotNull Context context) {
+        Objects.requireNonNull(fileName);
+        // Отображение файла живет до записи сжатого файла, сегменты в режиме MAPPED ссылаются на него
+        try (Arena ingestArena = Arena.ofShared();
+             SegmentWindowReader windowReader = openWindowReader(path, context, ingestArena)) {
+            return store(fileName, windowReader, context);
+        } catch (IOException e) {
+            throw new StorageException(String.format("Fail to store file %s", fileName), e);
+        }
+    }
+
+    /**
+     * Stores file read from the stream, e.g. a request body, windows are bounded by the memory budget
+     * of {@code context}, {@link IngestMode#MAPPED} mode doesn't apply. The stream is closed afterwards.
+     */
+    public StoreResult store(@NotNull InputStream inputStream,
+                             @NotNull String fileName,
+                             @NotNull Context context) {
+        Objects.requireNonNull(inputStream);
+        Objects.requireNonNull(fileName);
+        try (SegmentWindowReader windowReader = openWindowReader(inputStream, context, MAX_WINDOW_SIZE_IN_BYTES)) {
+            return store(fileName, windowReader, context);
+        } catch (IOException e) {
+            throw new StorageException(String.format("Fail to store file %s", fileName), e);
+        }
+    }
+
+    private StoreResult store(@NotNull String fileName,
+                              @NotNull SegmentWindowReader windowReader,
+                              @NotNull Context context) throws IOException {
+        Map<Integer, Integer> idToOccurrences = new HashMap<>();
+        boolean committed = false;
+        try (CompressedFileWriter compressedFileWriter = openCompressedFile(fileName, context)) {
+            StoreResult storeResult = StoreResult.EMPTY;
+            List<MemorySegment> window;
+            while (!(window = windowReader.nextWindow()).isEmpty()) {
+                storeResult = storeResult.merge(storeWindow(window, context, compressedFileWriter, idToOccurrences));
+            }
+            commit(fileName, compressedFileWriter);
+            committed = true;
+            return storeResult;
+        } catch (IOException | RuntimeException e) {
+            if (!committed) {
+                releaseUncommitted(idToOccurrences, e);
+            }
+            throw e;
+        }
+    }
+
+    private StoreResult storeWindow(@NotNull List<MemorySegment> window,
+                                    @NotNull Context context,
+                                    @NotNull CompressedFileWriter compressedFileWriter,
+                                    @NotNull Map<Integer, Integer> idToOccurrences) throws IOException {
+        // Посчитали хеш для каждого сегмента окна
+        final List<MemorySegmentWithHash> memorySegmentWithHashes = calculateHashes(window, context);
+
+        SegmentsMetadataToStore segmentsMetadataToStore = deduplicate(memorySegmentWithHashes, context);
+        Map<Fingerprint, SegmentMetadata> hashToMetadataMap = segmentsMetadataToStore.getAllHashToMetadataMap();
+        countOccurrences(idToOccurrences, memorySegmentWithHashes, hashToMetadataMap);
+
+        // Дописали окно в сжатый файл
+        compressedFileWriter.append(memorySegmentWithHashes, hashToMetadataMap);
+        return storeResult(memorySegmentWithHashes, segmentsMetadataToStore);
+    }
+
+    /**
+     * Commits written file under the name, references of the replaced file are released afterwards.
+     * A failure to release them is logged only, the new file is already stored.
+     */
+    void commit(@NotNull String fileName,
+                @NotNull CompressedFileWriter compressedFileWriter) throws IOException {
+        CompressedFileInfo replacedFileInfo;
+        Lock lock = fileNameLock(fileName);
+        lock.lock();
+        try {
+            replacedFileInfo = compressedStorageService.exists(fileName)
+                    ? compressedStorageService.readCompressedFileInfo(fileName)
+                    : null;
+            compressedFileWriter.commit();
+            recipeCache.invalidate(fileName);
+        } finally {
+            lock.unlock();
+        }
+        if (replacedFileInfo == null) {
+            return;
+        }
+        try {
+            segmentMetadataService.release(occurrences(replacedFileInfo));
+        } catch (StorageException e) {
+            LOGGER.warn("Fail to release references of replaced file {}", fileName, e);
+        }
+    }
+
+    /**
+     * Releases references added by windows of a file which isn't committed, a failure is added to {@code cause}.
+     */
+    void releaseUncommitted(@NotNull Map<Integer, Integer> idToOccurrences,
+                            @NotNull Throwable cause) {
+        if (idToOccurrences.isEmpty()) {
+            return;
+        }
+        try {
+            segmentMetadataService.release(idToOccurrences);
+        } catch (RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Adds occurrences of window segments present in {@code hashToMetadataMap},
+     * i.e. references the upsert of the window added.
+     */
+    static void countOccurrences(@NotNull Map<Integer, Integer> idToOccurrences,
+                                 @NotNull List<MemorySegmentWithHash> memorySegmentWithHashes,
+                                 @NotNull Map<Fingerprint, SegmentMetadata> hashToMetadataMap) {
+        for (MemorySegmentWithHash memorySegmentWithHash : memorySegmentWithHashes) {
+            SegmentMetadata metadata = hashToMetadataMap.get(memorySegmentWithHash.getHash());
+            if (metadata != null) {
+                idToOccurrences.merge(metadata.getId(), 1, Integer::sum);
+            }
+        }
+    }
+
+    @NotNull
+    private static Map<Integer, Integer> occurrences(@NotNull CompressedFileInfo compressedFileInfo) {
+        Map<Integer, Integer> idToOccurrences = new HashMap<>();
+        for (Integer metadataId : compressedFileInfo.metadataIds()) {
+            idToOccurrences.merge(metadataId, 1, Integer::sum);
+        }
+        return idToOccurrences;
+    }
 
+    @NotNull
+    private Lock fileNameLock(@NotNull String fileName) {
+        return fileNameLocks[Math.floorMod(fileName.hashCode(), fileNameLocks.length)];
+    }
+
+    @NotNull
+    CompressedFileWriter openCompressedFile(@NotNull String fileName,
+                                            @NotNull Context context) throws IOException {
+        return compressedStorageService.open(
+                fileName, context.chunkingType(), context.segmentSizeInBytes(), context.recipeMode());
+    }
+
+    /**
+     * Deduplicates hashed window against stored segments: new segments are written and upserted,
+     * references of existing ones are added. With {@link Context#verifyMatches()} bytes of existing ones are compared first.
+     */
+    @NotNull
+    SegmentsMetadataToStore deduplicate(@NotNull List<MemorySegmentWithHash> memorySegmentWithHashes,
+                                        @NotNull Context context) {
+        Lock ingestLock = segmentMetadataService.ingestLock();
+        ingestLock.lock();
+        try {
+            return deduplicateWindow(memorySegmentWithHashes, context.verifyMatches());
+        } finally {
+            ingestLock.unlock();
+        }
+    }
+
+    @NotNull
+    static StoreResult storeResult(@NotNull List<MemorySegmentWithHash> memorySegmentWithHashes,
+                                   @NotNull SegmentsMetadataToStore segmentsMetadataToStore) {
+        return new StoreResult(
+                memorySegmentWithHashes.size(),
+                segmentsMetadataToStore.getNewSegmentsMap().size(),
+                segmentsMetadataToStore.getDuplicateSegments(),
+                segmentsMetadataToStore.getReusedFromDBSegments()
+        );
+    }
+
+    private SegmentsMetadataToStore deduplicateWindow(@NotNull List<MemorySegmentWithHash> memorySegmentWithHashes,
+                                                      boolean verifyMatches) {
         // Получили сегменты, которые уже есть на диске + которых еще не было на диске (то есть новые, уникальные сегменты)
         SegmentsMetadataToStore segmentsMetadataToStore = segmentMetadataService.getSegmentsMetadataToStore(memorySegmentWithHashes);
+        if (verifyMatches) {
+            verifyMatches(memorySegmentWithHashes, segmentsMetadataToStore.getAlreadyExistedSegmentsMap());
+        }
 //        logSegmentsToStore(segmentsMetadataToStore);
 
-        // Записали новые сегменты на диск
-        Map<String, SegmentMetadata> updatedNewSegmentsMetadataMap
-                = segmentStorageService.saveNewSegmentsOnDisk(segmentsMetadataToStore, memorySegmentWithHashes);
-        segmentsMetadataToStore = segmentsMetadataToStore.updateNewSegmentsMap(updatedNewSegmentsMetadataMap);
+        // Новые сегменты, которые уже пишет параллельная загрузка, второй раз не пишутся
+        SegmentClaim segmentClaim = segmentMetadataService.claimNewSegments(segmentsMetadataToStore);
+        try {
+            // Записали новые сегменты на диск
+            Map<Fingerprint, SegmentMetadata> updatedNewSegmentsMetadataMap
+                    = segmentStorageService.saveNewSegmentsOnDisk(segmentClaim.owned(), memorySegmentWithHashes);
+            segmentsMetadataToStore = segmentClaim.owned().updateNewSegmentsMap(updatedNewSegmentsMetadataMap);
 
+            // Одним запросом записали мета-данные о новых сегментах и добавили ссылки на уже существующие
+            segmentsMetadataToStore = segmentMetadataService.upsert(segmentsMetadataToStore);
+        } catch (RuntimeException e) {
+            segmentClaim.abandon(e);
+            throw e;
+        }
+        segmentClaim.complete(segmentsMetadataToStore);
+        if (!segmentClaim.hasAwaited()) {
+            return segmentsMetadataToStore;
+        }
 
-        // Записали мета-данные о новых сегментах на в базу
-        segmentMetadataService.create(new ArrayList<>(segmentsMetadataToStore.getNewSegmentsMap().values()));
-        // Обновили мета-данные по уже существующим
-        segmentMetadataService.updateReferenceCount(segmentsMetadataToStore.getAlreadyExistedSegmentsMap().values());
+        try {
+            // Добавили ссылки на сегменты, записанные параллельными загрузками
+            List<Fingerprint> failedHashes = new ArrayList<>();
+            Map<Fingerprint, SegmentMetadata> awaitedSegmentsMap = segmentClaim.awaitOthers(failedHashes);
+            if (verifyMatches) {
+                verifyMatches(memorySegmentWithHashes, awaitedSegmentsMap);
+            }
+            segmentsMetadataToStore = segmentsMetadataToStore.merge(segmentMetadataService.upsert(
+                    new SegmentsMetadataToStore(Map.of(), awaitedSegmentsMap, 0, awaitedSegmentsMap.size())));
+            if (failedHashes.isEmpty()) {
+                return segmentsMetadataToStore;
+            }
+            // Загрузка, писавшая эти сегменты, упала, окно пишет их само, повторы в окне уже посчитаны
+            Set<Fingerprint> failedHashSet = new HashSet<>(failedHashes);
+            SegmentsMetadataToStore retried = deduplicateWindow(memorySegmentWithHashes.stream()
+                    .filter(memorySegmentWithHash -> failedHashSet.contains(memorySegmentWithHash.getHash()))
+                    .toList(), verifyMatches);
+            return segmentsMetadataToStore.merge(new SegmentsMetadataToStore(retried.getNewSegmentsMap(),
+                    retried.getAlreadyExistedSegmentsMap(), 0, retried.getReusedFromDBSegments()));
+        } catch (RuntimeException e) {
+            // Окно не попадет в рецепт, поэтому ссылки уже добавленной части окна освобождаются
+            Map<Integer, Integer> idToOccurrences = new HashMap<>();
+            countOccurrences(idToOccurrences, memorySegmentWithHashes, segmentsMetadataToStore.getAllHashToMetadataMap());
+            releaseUncommitted(idToOccurrences, e);
+            throw e;
+        }
+    }
 
-        // Записали сжатый файл на диск.
-        compressedStorageService.store(path, memorySegmentWithHashes, segmentsMetadataToStore.getAllHashToMetadataMap());
-        return segmentsMetadataToStore;
+    /**
+     * Compares bytes of segments with equal hashes: repeats within the window with the first occurrence,
+     * segments of {@code storedSegmentsMap} with their bytes on disk. A collision rejects the store
+     * of the whole file, segments with equal hashes can't be kept apart in the metadata.
+     */
+    private void verifyMatches(@NotNull List<MemorySegmentWithHash> memorySegmentWithHashes,
+                               @NotNull Map<Fingerprint, SegmentMetadata> storedSegmentsMap) {
+        Map<Fingerprint, MemorySegment> firstOccurrences = HashMap.newHashMap(memorySegmentWithHashes.size());
+        for (MemorySegmentWithHash memorySegmentWithHash : memorySegmentWithHashes) {
+            Fingerprint hash = memorySegmentWithHash.getHash();
+            MemorySegment bytes = memorySegmentWithHash.getMemorySegment();
+            MemorySegment firstOccurrence = firstOccurrences.putIfAbsent(hash, bytes);
+            boolean matches;
+            if (firstOccurrence != null) {
+                matches = firstOccurrence.mismatch(bytes) == -1;
+            } else {
+                SegmentMetadata stored = storedSegmentsMap.get(hash);
+                matches = stored == null || segmentStorageService.matches(stored, bytes);
+            }
+            if (!matches) {
+                throw new HashCollisionException(String.format("Hash collision, segments with hash %s differ", hash));
+            }
+        }
     }
 
     private static long logTime(long start) {
         return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
     }
 
-    private List<MemorySegment> getFileSegments(@NotNull Path path,
-                                                int segmentSizeInBytes) {
-        try {
-            return SegmentUtil.getSegmentsOfBytes(path, segmentSizeInBytes);
-        } catch (IOException e) {
-            throw new StorageException(String.format("Failed to get file segments, file: %s", path.getFileName()));
+    SegmentWindowReader openWindowReader(@NotNull Path path,
+                                         @NotNull Context context,
+                                         @NotNull Arena ingestArena) throws IOException {
+        if (context.ingestMode() == IngestMode.MAPPED) {
+            // Данные окна лежат в отображении, на куче только служебные структуры сегментов
+            int maxSegmentsPerWindow = context.isMemoryBounded()
+                    ? (int) Math.min(Integer.MAX_VALUE,
+                            Math.max(1, context.memoryBudgetInBytes() / ESTIMATED_SEGMENT_OVERHEAD_IN_BYTES))
+                    : Integer.MAX_VALUE;
+            return new MappedSegmentWindowReader(
+                    SegmentUtil.mapFile(path, ingestArena), createChunker(context), maxSegmentsPerWindow);
         }
+        return openWindowReader(new BufferedInputStream(Files.newInputStream(path)), context, Files.size(path) + 1);
+    }
+
+    /**
+     * Window of the unbounded memory budget is {@code unboundedWindowSizeInBytes}, e.g. the whole file.
+     */
+    private static SegmentWindowReader openWindowReader(@NotNull InputStream inputStream,
+                                                        @NotNull Context context,
+                                                        long unboundedWindowSizeInBytes) {
+        long windowSizeInBytes = context.isMemoryBounded()
+                ? context.memoryBudgetInBytes() / (ESTIMATED_SEGMENT_OVERHEAD_IN_BYTES + context.segmentSizeInBytes())
+                        * context.segmentSizeInBytes()
+                : unboundedWindowSizeInBytes;
+        // Окно должно вмещать хотя бы два сегмента максимального размера
+        windowSizeInBytes = Math.max(windowSizeInBytes, 2L * context.maxSegmentSizeInBytes());
+        return new StreamSegmentWindowReader(
+                inputStream,
+                createChunker(context),
+                (int) Math.min(windowSizeInBytes, MAX_WINDOW_SIZE_IN_BYTES)
+        );
     }
 
-    private List<MemorySegmentWithHash> getHashToBytesSegmentMap(@NotNull Path path,
-                                                                 @NotNull Context context,
-                                                                 long start) {
+    private static SegmentChunker createChunker(@NotNull Context context) {
+        return SegmentChunker.create(
+                context.chunkingType(),
+                context.minSegmentSizeInBytes(),
+                context.segmentSizeInBytes(),
+                context.maxSegmentSizeInBytes()
+        );
+    }
 
-        List<MemorySegment> segmentsOfBytes = getFileSegments(path, context.segmentSizeInBytes());
-//        System.out.println("Split segments time: " + logTime(start));
+    List<MemorySegmentWithHash> calculateHashes(@NotNull List<MemorySegment> segmentsOfBytes,
+                                                @NotNull Context context) {
         try {
-            return SegmentHashUtil.calculateHashes(segmentsOfBytes, context.hashType());
+            return SegmentHashUtil.calculateHashes(segmentsOfBytes, context.hashType(), context.hashParallelism());
         } catch (NoSuchAlgorithmException e) {
             throw new StorageException("Failed to get hash of segments");
         }
@@ -97,14 +408,188 @@ public class StorageService {
 //        System.out.println("reused from db segments: " + segmentsMetadataToStore.getReusedFromDBSegments());
 //    }
 
+    /**
+     * Reads up to {@code length} bytes of the stored file starting at {@code offset},
+     * only segments covering the range are resolved. Returns fewer bytes at the end of the file.
+     */
+    @NotNull
+    public byte[] read(@NotNull String fileName,
+                       long offset,
+                       int length) {
+        Objects.requireNonNull(fileName);
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException(String.format("Invalid range, offset: %d, length: %d", offset, length));
+        }
+        SegmentOffsets segmentOffsets = readSegmentOffsets(fileName);
+        CompressedFileInfo compressedFileInfo = segmentOffsets.compressedFileInfo();
+        long readLength = Math.max(0, Math.min(length, compressedFileInfo.fileSizeInBytes() - offset));
+        byte[] bytes = new byte[(int) readLength];
+        read(compressedFileInfo, segmentOffsets, segmentStorageService.canLocate(compressedFileInfo),
+                offset, MemorySegment.ofArray(bytes));
+        return bytes;
+    }
+
+    /**
+     * Opens stream over the stored file, segments are resolved and copied from containers as the stream is read.
+     */
+    @NotNull
+    public InputStream openInputStream(@NotNull String fileName) {
+        Objects.requireNonNull(fileName);
+        SegmentOffsets segmentOffsets = readSegmentOffsets(fileName);
+        return new StoredFileInputStream(this, segmentOffsets.compressedFileInfo(), segmentOffsets);
+    }
+
+    /**
+     * Returns decoded recipe of the file from {@link RecipeCache}, a missing one is decoded under the name lock,
+     * so a recipe replaced meanwhile isn't cached.
+     */
+    @NotNull
+    private SegmentOffsets readSegmentOffsets(@NotNull String fileName) {
+        SegmentOffsets segmentOffsets = recipeCache.get(fileName);
+        if (segmentOffsets != null) {
+            return segmentOffsets;
+        }
+        Lock lock = fileNameLock(fileName);
+        lock.lock();
+        try {
+            segmentOffsets = SegmentOffsets.of(compressedStorageService.readCompressedFileInfo(fileName));
+            recipeCache.put(fileName, segmentOffsets);
+            return segmentOffsets;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    public ReadableByteChannel openChannel(@NotNull String fileName) {
+        return Channels.newChannel(openInputStream(fileName));
+    }
+
+    /**
+     * Whether segments of the file are read by their recipe locations, see {@link SegmentStorageService#canLocate}.
+     */
+    boolean canLocate(@NotNull CompressedFileInfo compressedFileInfo) {
+        return segmentStorageService.canLocate(compressedFileInfo);
+    }
+
+    /**
+     * Reads bytes of the file starting at {@code offset} into {@code destination},
+     * segments are located by the recipe if {@code locatable}, otherwise by their metadata.
+     * Returns false if segments can't be located by the recipe anymore, i.e. a container was retired
+     * by {@link SegmentCompactor} after the check, the range is read by metadata then.
+     */
+    boolean read(@NotNull CompressedFileInfo compressedFileInfo,
+                 @NotNull SegmentOffsets segmentOffsets,
+                 boolean locatable,
+                 long offset,
+                 @NotNull MemorySegment destination) {
+        if (destination.byteSize() == 0) {
+            return locatable;
+        }
+        if (locatable) {
+            try {
+                segmentStorageService.read(compressedFileInfo, segmentOffsets, offset, destination);
+                return true;
+            } catch (StorageException e) {
+                requireMissingContainer(e);
+            }
+        }
+        int fromIdx = segmentOffsets.indexAt(offset);
+        int toIdx = segmentOffsets.indexAt(offset + destination.byteSize() - 1) + 1;
+        Map<Integer, SegmentMetadata> idToMetadataMap = segmentMetadataService.findByIds(
+                new HashSet<>(compressedFileInfo.metadataIds().subList(fromIdx, toIdx)));
+        segmentStorageService.read(compressedFileInfo, segmentOffsets, idToMetadataMap, offset, destination);
+        return false;
+    }
+
+    /**
+     * Rethrows {@code e} unless it is caused by a missing segment container.
+     */
+    private static void requireMissingContainer(@NotNull StorageException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NoSuchFileException) {
+                LOGGER.debug("Segment container is retired, segments are located by metadata", e);
+                return;
+            }
+        }
+        throw e;
+    }
+
+    /**
+     * Deletes stored file and releases references of its segments, unreferenced segments are reclaimed
+     * by {@link SegmentCompactor}. Compressed file is deleted first, so a failure leaves extra references
+     * instead of a file with missing segments.
+     */
+    public void delete(@NotNull String fileName) {
+        Objects.requireNonNull(fileName);
+        segmentMetadataService.requireReferencePerOccurrence();
+        Map<Integer, Integer> idToOccurrences;
+        Lock lock = fileNameLock(fileName);
+        lock.lock();
+        try {
+            idToOccurrences = occurrences(compressedStorageService.readCompressedFileInfo(fileName));
+            compressedStorageService.delete(fileName);
+            recipeCache.invalidate(fileName);
+        } finally {
+            lock.unlock();
+        }
+        segmentMetadataService.release(idToOccurrences);
+    }
+
+    /**
+     * Creates compactor reclaiming containers with segments released by {@link #delete} and replaced files,
+     * the caller starts and closes it.
+     */
+    @NotNull
+    public SegmentCompactor createCompactor() {
+        return new SegmentCompactor(segmentMetadataService, segmentStorageService);
+    }
+
+    /**
+     * Recounts references of all segments from recipes of stored files, references become the number
+     * of occurrences. Needed once for stores written with one reference per file, see
+     * docker/migrations/004_reference_per_occurrence.sql. Files must not be stored or deleted meanwhile.
+     */
+    public void rebuildReferences() {
+        Map<Integer, Integer> idToOccurrences = new HashMap<>();
+        for (String fileName : compressedStorageService.listFileNames()) {
+            for (Integer metadataId : compressedStorageService.readCompressedFileInfo(fileName).metadataIds()) {
+                idToOccurrences.merge(metadataId, 1, SegmentMetadata::addReferences);
+            }
+        }
+        segmentMetadataService.rebuildReferences(idToOccurrences);
+    }
+
     public void restore(@NotNull String fileName) {
+        restore(fileName, 1);
+    }
+
+    /**
+     * Restores file with {@code parallelism} threads copying its segments.
+     * Segments of the file written in {@link RecipeMode#LOCATIONS} mode are copied without metadata lookup
+     * unless some of their containers are gone, even if they are retired in the middle of the restore.
+     */
+    public void restore(@NotNull String fileName,
+                        int parallelism) {
         Objects.requireNonNull(fileName);
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Restore parallelism must be positive: " + parallelism);
+        }
         long start = System.nanoTime();
         CompressedFileInfo compressedFileInfo = compressedStorageService.readCompressedFileInfo(fileName);
 //        System.out.println(fileName + ":readCompressedFileInfo: " + logTime(start));
+        if (segmentStorageService.canLocate(compressedFileInfo)) {
+            try {
+                segmentStorageService.restore(compressedFileInfo, parallelism);
+                return;
+            } catch (StorageException e) {
+                // Контейнер мог быть удален компактором после проверки, файл восстанавливается заново
+                requireMissingContainer(e);
+            }
+        }
         Map<Integer, SegmentMetadata> idToMetadataMap = segmentMetadataService.findByIds(compressedFileInfo.metadataIds());
 //        System.out.println(fileName + ":findByIds: " + logTime(start));
-        segmentStorageService.restore(compressedFileInfo, idToMetadataMap);
+        segmentStorageService.restore(compressedFileInfo, idToMetadataMap, parallelism);
 //        System.out.println(fileName + ":restore: " + logTime(start));
     }
 }
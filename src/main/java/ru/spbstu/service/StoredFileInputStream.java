@@ -0,0 +1,104 @@
+package ru.spbstu.service;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.storage.compressed.CompressedFileInfo;
+import ru.spbstu.storage.compressed.SegmentOffsets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.MemorySegment;
+import java.util.Objects;
+
+/**
+ * Reads stored file by chunks, metadata of every chunk is requested once.
+ */
+class StoredFileInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE_IN_BYTES = 1024 * 1024;
+
+    private final StorageService storageService;
+    private final CompressedFileInfo compressedFileInfo;
+    private final SegmentOffsets segmentOffsets;
+    // Контейнеры рецепта проверяются один раз на поток, после удаления контейнера чтение идет по метаданным
+    private boolean locatable;
+    private final byte[] chunk;
+    private final byte[] single = new byte[1];
+    // Смещение начала chunk в файле
+    private long chunkOffset;
+    private int chunkLength;
+    private long position;
+    private boolean closed;
+
+    StoredFileInputStream(@NotNull StorageService storageService,
+                          @NotNull CompressedFileInfo compressedFileInfo,
+                          @NotNull SegmentOffsets segmentOffsets) {
+        this.storageService = Objects.requireNonNull(storageService);
+        this.compressedFileInfo = Objects.requireNonNull(compressedFileInfo);
+        this.segmentOffsets = Objects.requireNonNull(segmentOffsets);
+        this.locatable = storageService.canLocate(compressedFileInfo);
+        this.chunk = new byte[(int) Math.min(CHUNK_SIZE_IN_BYTES, compressedFileInfo.fileSizeInBytes())];
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(@NotNull byte[] bytes, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        ensureOpen();
+        if (length == 0) {
+            return 0;
+        }
+        long remaining = compressedFileInfo.fileSizeInBytes() - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int readLength = (int) Math.min(length, remaining);
+        // Большие чтения идут напрямую в буфер вызывающего
+        if (readLength >= chunk.length) {
+            locatable = storageService.read(compressedFileInfo, segmentOffsets, locatable, position,
+                    MemorySegment.ofArray(bytes).asSlice(offset, readLength));
+            position += readLength;
+            return readLength;
+        }
+        if (position < chunkOffset || position >= chunkOffset + chunkLength) {
+            chunkOffset = position;
+            chunkLength = (int) Math.min(chunk.length, remaining);
+            locatable = storageService.read(compressedFileInfo, segmentOffsets, locatable, chunkOffset,
+                    MemorySegment.ofArray(chunk).asSlice(0, chunkLength));
+        }
+        int chunkPosition = (int) (position - chunkOffset);
+        readLength = Math.min(readLength, chunkLength - chunkPosition);
+        System.arraycopy(chunk, chunkPosition, bytes, offset, readLength);
+        position += readLength;
+        return readLength;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        long skipped = Math.max(0, Math.min(n, compressedFileInfo.fileSizeInBytes() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return (int) Math.min(Integer.MAX_VALUE, compressedFileInfo.fileSizeInBytes() - position);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+
+}
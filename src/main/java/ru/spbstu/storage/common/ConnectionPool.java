@@ -0,0 +1,113 @@
+package ru.spbstu.storage.common;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded pool of connections without auto-commit. Connections are opened on demand,
+ * callers wait for a free one when {@code maxSize} connections are in use.
+ * Closed connection isn't returned to the pool, a new one is opened instead.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private final ConnectionFactory connectionFactory;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Connection> idleConnections = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed;
+
+    public ConnectionPool(@NotNull ConnectionFactory connectionFactory,
+                          int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Connection pool size must be positive: " + maxSize);
+        }
+        this.connectionFactory = Objects.requireNonNull(connectionFactory);
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Pool of the single connection, requests through it are serialized.
+     */
+    @NotNull
+    public static ConnectionPool of(@NotNull Connection connection) {
+        Objects.requireNonNull(connection);
+        return new ConnectionPool(() -> connection, 1);
+    }
+
+    /**
+     * Returns connection which must be given back by {@link #release}.
+     */
+    @NotNull
+    public Connection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for connection", e);
+        }
+        try {
+            Connection connection = idleConnections.pollFirst();
+            if (connection == null) {
+                connection = connectionFactory.create();
+                connection.setAutoCommit(false);
+            }
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void release(@NotNull Connection connection) {
+        Objects.requireNonNull(connection);
+        try {
+            if (!closed && !connection.isClosed()) {
+                // Последним использованное соединение выдается первым, лишние простаивают и не мешают
+                idleConnections.offerFirst(connection);
+            } else {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            // Соединение уже не пригодно, вместо него будет открыто новое
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+        SQLException closeException = null;
+        Connection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                if (closeException == null) {
+                    closeException = e;
+                } else {
+                    closeException.addSuppressed(e);
+                }
+            }
+        }
+        if (closeException != null) {
+            throw closeException;
+        }
+    }
+
+    @FunctionalInterface
+    public interface ConnectionFactory {
+
+        @NotNull
+        Connection create() throws SQLException;
+
+    }
+
+}
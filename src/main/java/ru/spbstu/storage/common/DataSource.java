@@ -38,6 +38,14 @@ public class DataSource {
         return DriverManager.getConnection(jdbcUrl, user, password);
     }
 
+    /**
+     * Returns pool of at most {@code maxSize} connections to the database, see {@link ConnectionPool}.
+     */
+    @NotNull
+    public ConnectionPool createConnectionPool(int maxSize) {
+        return new ConnectionPool(this::createConnection, maxSize);
+    }
+
     private String createJDBCUrl()  {
         return String.format(JDBC_URL_TEMPLATE, host, port, name);
     }
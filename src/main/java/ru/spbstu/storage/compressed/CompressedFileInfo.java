@@ -1,10 +1,35 @@
 package ru.spbstu.storage.compressed;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.util.List;
 
+/**
+ * {@code segmentSizes} is empty for fixed size segments, otherwise it holds the size of every segment.
+ * {@code segmentLocations} is null unless the file is written in {@link RecipeMode#LOCATIONS} mode.
+ */
 public record CompressedFileInfo(String compressedFileName,
                                  long segmentSizeInBytes,
                                  int segmentsCount,
                                  long fileSizeInBytes,
-                                 List<Integer> metadataIds) {
+                                 List<Integer> metadataIds,
+                                 List<Integer> segmentSizes,
+                                 @Nullable SegmentLocations segmentLocations) {
+
+    public boolean hasSegmentLocations() {
+        return segmentLocations != null;
+    }
+
+    public boolean isVariableSegmentSize() {
+        return segmentSizeInBytes == CompressedFilesDiskStorage.VARIABLE_SEGMENT_SIZE;
+    }
+
+    public long segmentSizeInBytes(int segmentIdx) {
+        if (isVariableSegmentSize()) {
+            return segmentSizes.get(segmentIdx);
+        }
+        long segmentOffset = segmentIdx * segmentSizeInBytes;
+        return Math.min(segmentSizeInBytes, fileSizeInBytes - segmentOffset);
+    }
+
 }
@@ -0,0 +1,223 @@
+package ru.spbstu.storage.compressed;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.exception.StorageException;
+import ru.spbstu.hash.Fingerprint;
+import ru.spbstu.hash.MemorySegmentWithHash;
+import ru.spbstu.model.SegmentMetadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Writes compressed file incrementally: segment entries are appended as they become known
+ * and the header is filled on {@link #commit()}. File is written next to the target one and replaces it
+ * atomically on commit, so concurrent stores of the same name don't mix their entries
+ * and the previous version stays readable meanwhile. Not committed file is removed on {@link #close()}.
+ * <p>
+ * Entries are written in the {@link #VERSION_2} format as runs of ids,
+ * the last run stays open between {@link #append} calls until it can't be extended.
+ * In {@link RecipeMode#LOCATIONS} mode the format is {@link #VERSION_3}: a run also holds location
+ * of its first segment, segments of the run lie one after another or at the same location as the id does.
+ * <p>
+ * Segments count in the header is an int, a file of more segments, e.g. over 64 GB of 32 byte segments,
+ * fails on {@link #append} instead of writing a broken header.
+ */
+public class CompressedFileWriter implements AutoCloseable {
+
+    static final int HEADER_SIZE = 2 * Long.BYTES + Integer.BYTES;
+    static final int HEADER_SIZE_V2 = Long.BYTES + HEADER_SIZE;
+    /**
+     * Отрицательное значение, отличное от {@link CompressedFilesDiskStorage#VARIABLE_SEGMENT_SIZE},
+     * не может быть размером сегмента в заголовке первой версии, младший байт - номер версии
+     */
+    static final long VERSION_2 = 0xDEDA_C0DE_0000_0002L;
+    static final long VERSION_3 = 0xDEDA_C0DE_0000_0003L;
+    static final int STRIDE_REPEATED = 0;
+    static final int STRIDE_SEQUENTIAL = 1;
+    static final int MAX_RUN_LENGTH = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ENCODED_RUN_SIZE = 3 * Varints.MAX_LONG_SIZE + Varints.MAX_INT_SIZE
+            + MAX_RUN_LENGTH * Varints.MAX_INT_SIZE;
+
+    private final Path path;
+    private final Path tmpPath;
+    private final FileChannel fileChannel;
+    private final long segmentSizeInBytes;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    private final boolean variableSegmentSize;
+    private final boolean withLocations;
+    // Текущая серия: id первого сегмента, длина, шаг и размеры сегментов
+    private final int[] runSizes = new int[MAX_RUN_LENGTH];
+    private int runFirstId;
+    private int runLength;
+    private int runStride;
+    private int previousRunLastId;
+    private int runContainerId;
+    private long runFirstOffset;
+    private long runSizesSum;
+    private int previousRunContainerId;
+    private long previousRunEndOffset;
+    private int segmentsCount;
+    private long fileSizeInBytes;
+    private boolean committed;
+
+    CompressedFileWriter(@NotNull Path path,
+                         long segmentSizeInBytes,
+                         @NotNull RecipeMode recipeMode) throws IOException {
+        this.path = Objects.requireNonNull(path);
+        this.segmentSizeInBytes = segmentSizeInBytes;
+        this.withLocations = Objects.requireNonNull(recipeMode) == RecipeMode.LOCATIONS;
+        this.variableSegmentSize = segmentSizeInBytes == CompressedFilesDiskStorage.VARIABLE_SEGMENT_SIZE;
+        this.tmpPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            this.fileChannel = FileChannel.open(tmpPath, StandardOpenOption.WRITE);
+            fileChannel.position(HEADER_SIZE_V2);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+    }
+
+    public void append(@NotNull List<MemorySegmentWithHash> memorySegmentWithHashes,
+                       @NotNull Map<Fingerprint, SegmentMetadata> hashToMetadataMap) throws IOException {
+        if (memorySegmentWithHashes.size() > Integer.MAX_VALUE - segmentsCount) {
+            throw new StorageException(String.format("Compressed file %s can't hold more than %d segments, " +
+                    "store it with larger segments", path.getFileName(), Integer.MAX_VALUE));
+        }
+        for (MemorySegmentWithHash hasherResult : memorySegmentWithHashes) {
+            SegmentMetadata metadata = hashToMetadataMap.get(hasherResult.getHash());
+            if (metadata == null) {
+                throw new StorageException(String.format("No metadata found for hash %s", hasherResult.getHash()));
+            }
+            long segmentSize = hasherResult.getMemorySegment().byteSize();
+            appendToRun(metadata, (int) segmentSize);
+            segmentsCount++;
+            fileSizeInBytes += segmentSize;
+        }
+    }
+
+    public void commit() throws IOException {
+        writeRun();
+        flush();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_V2).order(ByteOrder.nativeOrder());
+        header.putLong(withLocations ? VERSION_3 : VERSION_2);
+        header.putLong(segmentSizeInBytes);
+        header.putInt(segmentsCount);
+        header.putLong(fileSizeInBytes);
+        header.flip();
+        while (header.hasRemaining()) {
+            fileChannel.write(header, HEADER_SIZE_V2 - header.remaining());
+        }
+        fileChannel.force(true);
+        fileChannel.close();
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+        if (!committed) {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    private void appendToRun(@NotNull SegmentMetadata metadata, int segmentSize) throws IOException {
+        int id = metadata.getId();
+        int containerId = withLocations ? containerId(metadata) : 0;
+        long offset = withLocations ? metadata.getFileOffset() : 0;
+        if (runLength > 0 && runLength < MAX_RUN_LENGTH) {
+            int lastId = runFirstId + (runLength - 1) * runStride;
+            if (runLength == 1 && (id == lastId || id == lastId + 1)) {
+                runStride = id - lastId;
+            }
+            // Размер повторяющегося сегмента хранится один раз, поэтому он должен совпадать
+            boolean extendsRun = id == lastId + runStride
+                    && (runStride == STRIDE_SEQUENTIAL || !variableSegmentSize || runSizes[0] == segmentSize)
+                    && (!withLocations || containerId == runContainerId && offset == expectedRunOffset());
+            if (extendsRun) {
+                runSizes[runLength++] = segmentSize;
+                runSizesSum += segmentSize;
+                return;
+            }
+        }
+        writeRun();
+        runFirstId = id;
+        runStride = STRIDE_REPEATED;
+        runSizes[0] = segmentSize;
+        runLength = 1;
+        runContainerId = containerId;
+        runFirstOffset = offset;
+        runSizesSum = segmentSize;
+    }
+
+    /**
+     * Returns offset the next segment of the run must have.
+     */
+    private long expectedRunOffset() {
+        return runStride == STRIDE_REPEATED ? runFirstOffset : runFirstOffset + runSizesSum;
+    }
+
+    /**
+     * run format:
+     * |delta of the first id from the last id of the previous run as signed varint|length << 1 | stride as varint|
+     * for variable size segments it is followed by sizes as varints, a single one for repeated id.
+     * With locations the run ends with
+     * |delta of the container from the container of the previous run as signed varint|
+     * |delta of the first offset from the end of the previous run as signed varint|
+     */
+    private void writeRun() throws IOException {
+        if (runLength == 0) {
+            return;
+        }
+        if (buffer.remaining() < MAX_ENCODED_RUN_SIZE) {
+            flush();
+        }
+        Varints.putSigned(buffer, (long) runFirstId - previousRunLastId);
+        Varints.putUnsigned(buffer, (long) runLength << 1 | runStride);
+        if (variableSegmentSize) {
+            int sizesCount = runStride == STRIDE_REPEATED ? 1 : runLength;
+            for (int i = 0; i < sizesCount; ++i) {
+                Varints.putUnsigned(buffer, runSizes[i]);
+            }
+        }
+        if (withLocations) {
+            Varints.putSigned(buffer, (long) runContainerId - previousRunContainerId);
+            Varints.putSigned(buffer, runFirstOffset - previousRunEndOffset);
+            previousRunContainerId = runContainerId;
+            previousRunEndOffset = runStride == STRIDE_REPEATED
+                    ? runFirstOffset + runSizes[0]
+                    : expectedRunOffset();
+        }
+        previousRunLastId = runFirstId + (runLength - 1) * runStride;
+        runLength = 0;
+    }
+
+    private static int containerId(@NotNull SegmentMetadata metadata) {
+        try {
+            return Integer.parseInt(metadata.getFileName());
+        } catch (NumberFormatException e) {
+            throw new StorageException(String.format("Segment %d is in container with non-numeric name %s",
+                    metadata.getId(), metadata.getFileName()));
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+}
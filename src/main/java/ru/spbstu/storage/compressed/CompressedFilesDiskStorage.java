@@ -2,8 +2,7 @@ package ru.spbstu.storage.compressed;
 
 import org.jetbrains.annotations.NotNull;
 import ru.spbstu.exception.StorageException;
-import ru.spbstu.hash.MemorySegmentWithHash;
-import ru.spbstu.model.SegmentMetadata;
+import ru.spbstu.hash.ChunkingType;
 import ru.spbstu.storage.util.DiskStorageUtil;
 
 import java.io.IOException;
@@ -16,59 +15,54 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.stream.Stream;
 
 public class CompressedFilesDiskStorage {
 
+    public static final long VARIABLE_SEGMENT_SIZE = -1;
+
     /**
-     * compressed file format:
+     * compressed file format, version 1:
      * |segment size in bytes|segments count|file size in bytes|segment0|segment1|segment2|...
+     * for content-defined chunking segment size is {@link #VARIABLE_SEGMENT_SIZE} and every segment entry
+     * is followed by its size: |segment0|segment0 size|segment1|segment1 size|...
+     * version 2, written now, starts with {@link CompressedFileWriter#VERSION_2} followed by the same header,
+     * entries are varint encoded runs of ids, see {@link CompressedFileWriter}.
+     * version 3 is version 2 with locations of segments in runs, it is written in {@link RecipeMode#LOCATIONS} mode.
+     * All versions are read.
      */
-    public void saveCompressedDataFile(@NotNull String fileName,
-                                       @NotNull List<MemorySegmentWithHash> memorySegmentWithHashes,
-                                       @NotNull Map<String, SegmentMetadata> segmentsToUpdateInDBMap) throws IOException {
-        int compressedDataSize = memorySegmentWithHashes.size() * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
-
-        try (FileChannel fileChannel = FileChannel.open(
-                DiskStorageUtil.ofCompressed(fileName),
-                StandardOpenOption.WRITE,
-                StandardOpenOption.READ,
-                StandardOpenOption.CREATE);
-             Arena writeArena = Arena.ofConfined();
-        ) {
-            MemorySegment fileSegment = fileChannel.map(
-                    FileChannel.MapMode.READ_WRITE,
-                    0,
-                    compressedDataSize,
-                    writeArena
-            );
+    public CompressedFileWriter openCompressedDataFile(@NotNull String fileName,
+                                                       @NotNull ChunkingType chunkingType,
+                                                       long segmentSizeInBytes) throws IOException {
+        return openCompressedDataFile(fileName, chunkingType, segmentSizeInBytes, RecipeMode.IDS);
+    }
 
-            int dataOffset = 0;
-            long segmentSizeInBytes = memorySegmentWithHashes.get(0).getMemorySegment().byteSize();
-            fileSegment.set(ValueLayout.JAVA_LONG_UNALIGNED, dataOffset, segmentSizeInBytes);
-            dataOffset += Long.BYTES;
+    public CompressedFileWriter openCompressedDataFile(@NotNull String fileName,
+                                                       @NotNull ChunkingType chunkingType,
+                                                       long segmentSizeInBytes,
+                                                       @NotNull RecipeMode recipeMode) throws IOException {
+        long headerSegmentSize = chunkingType == ChunkingType.CONTENT_DEFINED ? VARIABLE_SEGMENT_SIZE : segmentSizeInBytes;
+        return new CompressedFileWriter(DiskStorageUtil.ofCompressed(fileName), headerSegmentSize, recipeMode);
+    }
 
-            int segmentsCount = memorySegmentWithHashes.size();
-            fileSegment.set(ValueLayout.JAVA_INT_UNALIGNED, dataOffset, segmentsCount);
-            dataOffset += Integer.BYTES;
+    /**
+     * Returns names of all stored files, temporary files of uncommitted writers are skipped.
+     */
+    public List<String> listCompressedDataFiles() throws IOException {
+        try (Stream<Path> files = Files.list(DiskStorageUtil.compressed())) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(DiskStorageUtil::isCompressed)
+                    .map(DiskStorageUtil::getFileNameFromCompressed)
+                    .toList();
+        }
+    }
 
-            long fileSizeInBytes = memorySegmentWithHashes.stream()
-                    .map(MemorySegmentWithHash::getMemorySegment)
-                    .map(MemorySegment::byteSize)
-                    .mapToLong(Long::longValue)
-                    .sum();
-            fileSegment.set(ValueLayout.JAVA_LONG_UNALIGNED, dataOffset, fileSizeInBytes);
-            dataOffset += Long.BYTES;
+    public boolean existsCompressedDataFile(@NotNull String fileName) {
+        return Files.exists(DiskStorageUtil.ofCompressed(fileName));
+    }
 
-            for (MemorySegmentWithHash hasherResult : memorySegmentWithHashes) {
-                String hash = hasherResult.getHash();
-                SegmentMetadata metadata = segmentsToUpdateInDBMap.get(hash);
-                int segmentId = metadata.getId();
-                fileSegment.set(ValueLayout.JAVA_INT_UNALIGNED, dataOffset, segmentId);
-                dataOffset += Integer.BYTES;
-            }
-            fileSegment.force();
-        }
+    public void deleteCompressedDataFile(@NotNull String fileName) throws IOException {
+        Files.delete(DiskStorageUtil.ofCompressed(fileName));
     }
 
     public CompressedFileInfo readCompressedFileInfo(@NotNull String fileName) throws IOException {
@@ -79,21 +73,53 @@ public class CompressedFilesDiskStorage {
             MemorySegment memorySegment
                     = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, Files.size(compressedFilePath), arena);
 
-            long segmentSizeInBytes = memorySegment.get(ValueLayout.JAVA_LONG_UNALIGNED, 0);
-            int segmentsCount = memorySegment.get(ValueLayout.JAVA_INT_UNALIGNED, Long.BYTES);
-            long fileSizeInBytes = memorySegment.get(ValueLayout.JAVA_LONG_UNALIGNED, Long.BYTES + (long) Integer.BYTES);
+            long version = memorySegment.get(ValueLayout.JAVA_LONG_UNALIGNED, 0);
+            boolean runs = version == CompressedFileWriter.VERSION_2 || version == CompressedFileWriter.VERSION_3;
+            long headerOffset = runs ? Long.BYTES : 0;
+            long segmentSizeInBytes = memorySegment.get(ValueLayout.JAVA_LONG_UNALIGNED, headerOffset);
+            int segmentsCount = memorySegment.get(ValueLayout.JAVA_INT_UNALIGNED, headerOffset + Long.BYTES);
+            long fileSizeInBytes = memorySegment.get(
+                    ValueLayout.JAVA_LONG_UNALIGNED, headerOffset + Long.BYTES + Integer.BYTES);
+            boolean variableSegmentSize = segmentSizeInBytes == VARIABLE_SEGMENT_SIZE;
             List<Integer> metadataIds = new ArrayList<>(segmentsCount);
-            int dataOffset = 2 * Long.BYTES + Integer.BYTES;
-            for (int offsetIdx = 0; offsetIdx < segmentsCount; ++offsetIdx) {
-                int metadataId = memorySegment.get(ValueLayout.JAVA_INT_UNALIGNED, dataOffset);
-                metadataIds.add(metadataId);
-                dataOffset += Integer.BYTES;
+            List<Integer> segmentSizes = variableSegmentSize ? new ArrayList<>(segmentsCount) : List.of();
+            SegmentLocations segmentLocations = null;
+            if (runs) {
+                RunsReader runsReader = new RunsReader(memorySegment.asSlice(CompressedFileWriter.HEADER_SIZE_V2),
+                        segmentSizeInBytes, segmentsCount, fileSizeInBytes,
+                        version == CompressedFileWriter.VERSION_3);
+                runsReader.read(metadataIds, segmentSizes);
+                segmentLocations = runsReader.segmentLocations();
+            } else if (segmentSizeInBytes > 0 || variableSegmentSize) {
+                readEntries(memorySegment.asSlice(CompressedFileWriter.HEADER_SIZE), segmentsCount,
+                        variableSegmentSize, metadataIds, segmentSizes);
+            } else {
+                throw new StorageException(
+                        String.format("Unknown compressed file format %x, file: %s", version, compressedFilePath));
             }
             if (segmentsCount != metadataIds.size()) {
                 throw new StorageException(
                         String.format("Segments count and metadata size isn't equal on data read, file: %s", fileChannel));
             }
-            return new CompressedFileInfo(compressedFilePath.getFileName().toString(), segmentSizeInBytes, segmentsCount, fileSizeInBytes, metadataIds);
+            return new CompressedFileInfo(compressedFilePath.getFileName().toString(), segmentSizeInBytes,
+                    segmentsCount, fileSizeInBytes, metadataIds, segmentSizes, segmentLocations);
+        }
+    }
+
+    private static void readEntries(@NotNull MemorySegment entries,
+                                    int segmentsCount,
+                                    boolean variableSegmentSize,
+                                    @NotNull List<Integer> metadataIds,
+                                    @NotNull List<Integer> segmentSizes) {
+        long dataOffset = 0;
+        for (int offsetIdx = 0; offsetIdx < segmentsCount; ++offsetIdx) {
+            int metadataId = entries.get(ValueLayout.JAVA_INT_UNALIGNED, dataOffset);
+            metadataIds.add(metadataId);
+            dataOffset += Integer.BYTES;
+            if (variableSegmentSize) {
+                segmentSizes.add(entries.get(ValueLayout.JAVA_INT_UNALIGNED, dataOffset));
+                dataOffset += Integer.BYTES;
+            }
         }
     }
 
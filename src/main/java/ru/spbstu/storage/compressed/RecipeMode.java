@@ -0,0 +1,12 @@
+package ru.spbstu.storage.compressed;
+
+public enum RecipeMode {
+    /**
+     * Compressed file holds metadata ids of segments, their locations are looked up in the metadata store.
+     */
+    IDS,
+    /**
+     * Compressed file also holds container and offset of every segment, so restore doesn't query metadata store.
+     */
+    LOCATIONS
+}
@@ -0,0 +1,93 @@
+package ru.spbstu.storage.compressed;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbstu.exception.StorageException;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Decodes runs written by {@link CompressedFileWriter} in version 2 and 3 formats.
+ */
+class RunsReader {
+
+    private final ByteBuffer buffer;
+    private final long segmentSizeInBytes;
+    private final int segmentsCount;
+    private final long fileSizeInBytes;
+    private final boolean variableSegmentSize;
+    private final int[] containerIds;
+    private final long[] offsets;
+
+    RunsReader(@NotNull MemorySegment runs,
+               long segmentSizeInBytes,
+               int segmentsCount,
+               long fileSizeInBytes,
+               boolean withLocations) {
+        this.buffer = runs.asByteBuffer();
+        this.segmentSizeInBytes = segmentSizeInBytes;
+        this.segmentsCount = segmentsCount;
+        this.fileSizeInBytes = fileSizeInBytes;
+        this.variableSegmentSize = segmentSizeInBytes == CompressedFilesDiskStorage.VARIABLE_SEGMENT_SIZE;
+        this.containerIds = withLocations ? new int[segmentsCount] : null;
+        this.offsets = withLocations ? new long[segmentsCount] : null;
+    }
+
+    void read(@NotNull List<Integer> metadataIds,
+              @NotNull List<Integer> segmentSizes) {
+        long previousRunLastId = 0;
+        long previousRunContainerId = 0;
+        long previousRunEndOffset = 0;
+        while (metadataIds.size() < segmentsCount) {
+            int fromIdx = metadataIds.size();
+            long firstId = previousRunLastId + Varints.getSigned(buffer);
+            long lengthAndStride = Varints.getUnsigned(buffer);
+            long runLength = lengthAndStride >>> 1;
+            int stride = (int) (lengthAndStride & 1);
+            if (runLength <= 0 || fromIdx + runLength > segmentsCount) {
+                throw new StorageException(String.format("Malformed run of length %d", runLength));
+            }
+            int repeatedSize = variableSegmentSize && stride == CompressedFileWriter.STRIDE_REPEATED
+                    ? (int) Varints.getUnsigned(buffer)
+                    : 0;
+            for (long i = 0; i < runLength; ++i) {
+                metadataIds.add((int) (firstId + i * stride));
+                if (variableSegmentSize) {
+                    segmentSizes.add(stride == CompressedFileWriter.STRIDE_REPEATED
+                            ? repeatedSize
+                            : (int) Varints.getUnsigned(buffer));
+                }
+            }
+            previousRunLastId = firstId + (runLength - 1) * stride;
+            if (containerIds != null) {
+                int containerId = (int) (previousRunContainerId + Varints.getSigned(buffer));
+                long offset = previousRunEndOffset + Varints.getSigned(buffer);
+                for (int idx = fromIdx; idx < metadataIds.size(); ++idx) {
+                    containerIds[idx] = containerId;
+                    offsets[idx] = offset;
+                    if (stride == CompressedFileWriter.STRIDE_SEQUENTIAL || idx == metadataIds.size() - 1) {
+                        offset += segmentSize(idx, segmentSizes);
+                    }
+                }
+                previousRunContainerId = containerId;
+                previousRunEndOffset = offset;
+            }
+        }
+    }
+
+    @Nullable
+    SegmentLocations segmentLocations() {
+        return containerIds == null ? null : new SegmentLocations(containerIds, offsets);
+    }
+
+    private long segmentSize(int segmentIdx,
+                             @NotNull List<Integer> segmentSizes) {
+        if (variableSegmentSize) {
+            return segmentSizes.get(segmentIdx);
+        }
+        return Math.min(segmentSizeInBytes, fileSizeInBytes - segmentIdx * segmentSizeInBytes);
+    }
+
+}
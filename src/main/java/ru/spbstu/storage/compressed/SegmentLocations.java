@@ -0,0 +1,41 @@
+package ru.spbstu.storage.compressed;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Containers and offsets of segments of a compressed file written in {@link RecipeMode#LOCATIONS} mode.
+ */
+public final class SegmentLocations {
+
+    private final int[] containerIds;
+    private final long[] offsets;
+    private final int[] distinctContainerIds;
+
+    SegmentLocations(int[] containerIds,
+                     long[] offsets) {
+        this.containerIds = Objects.requireNonNull(containerIds);
+        this.offsets = Objects.requireNonNull(offsets);
+        this.distinctContainerIds = Arrays.stream(containerIds).distinct().toArray();
+    }
+
+    @NotNull
+    public String containerName(int segmentIdx) {
+        return String.valueOf(containerIds[segmentIdx]);
+    }
+
+    public long offset(int segmentIdx) {
+        return offsets[segmentIdx];
+    }
+
+    /**
+     * Returns names of all containers the segments are in.
+     */
+    @NotNull
+    public String[] containerNames() {
+        return Arrays.stream(distinctContainerIds).mapToObj(String::valueOf).toArray(String[]::new);
+    }
+
+}
@@ -0,0 +1,63 @@
+package ru.spbstu.storage.compressed;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Offsets of segments in the original file, computed once for the file with variable segment size.
+ */
+public final class SegmentOffsets {
+
+    private final CompressedFileInfo compressedFileInfo;
+    // Для сегментов переменного размера: начало каждого сегмента и длина файла в конце
+    private final long[] offsets;
+
+    private SegmentOffsets(@NotNull CompressedFileInfo compressedFileInfo,
+                           long[] offsets) {
+        this.compressedFileInfo = compressedFileInfo;
+        this.offsets = offsets;
+    }
+
+    @NotNull
+    public static SegmentOffsets of(@NotNull CompressedFileInfo compressedFileInfo) {
+        Objects.requireNonNull(compressedFileInfo);
+        if (!compressedFileInfo.isVariableSegmentSize()) {
+            return new SegmentOffsets(compressedFileInfo, null);
+        }
+        List<Integer> segmentSizes = compressedFileInfo.segmentSizes();
+        long[] offsets = new long[segmentSizes.size() + 1];
+        for (int idx = 0; idx < segmentSizes.size(); ++idx) {
+            offsets[idx + 1] = offsets[idx] + segmentSizes.get(idx);
+        }
+        return new SegmentOffsets(compressedFileInfo, offsets);
+    }
+
+    @NotNull
+    public CompressedFileInfo compressedFileInfo() {
+        return compressedFileInfo;
+    }
+
+    public long offset(int segmentIdx) {
+        return offsets != null ? offsets[segmentIdx] : segmentIdx * compressedFileInfo.segmentSizeInBytes();
+    }
+
+    /**
+     * Returns index of the segment holding byte at {@code offset}.
+     */
+    public int indexAt(long offset) {
+        if (offset < 0 || offset >= compressedFileInfo.fileSizeInBytes()) {
+            throw new IndexOutOfBoundsException(String.format("Offset %d is out of file of size %d",
+                    offset, compressedFileInfo.fileSizeInBytes()));
+        }
+        if (offsets == null) {
+            return (int) (offset / compressedFileInfo.segmentSizeInBytes());
+        }
+        int idx = Arrays.binarySearch(offsets, offset);
+        // Пустых сегментов нет, поэтому совпадение смещения единственно
+        return idx >= 0 ? idx : -idx - 2;
+    }
+
+}
@@ -0,0 +1,47 @@
+package ru.spbstu.storage.compressed;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.exception.StorageException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LEB128 variable-length numbers, signed ones are zigzag-encoded first.
+ */
+final class Varints {
+
+    static final int MAX_LONG_SIZE = 10;
+    static final int MAX_INT_SIZE = 5;
+
+    private Varints() {}
+
+    static void putUnsigned(@NotNull ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static void putSigned(@NotNull ByteBuffer buffer, long value) {
+        putUnsigned(buffer, (value << 1) ^ (value >> 63));
+    }
+
+    static long getUnsigned(@NotNull ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new StorageException("Malformed varint at position " + buffer.position());
+    }
+
+    static long getSigned(@NotNull ByteBuffer buffer) {
+        long value = getUnsigned(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
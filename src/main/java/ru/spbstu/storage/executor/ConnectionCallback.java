@@ -0,0 +1,13 @@
+package ru.spbstu.storage.executor;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+public interface ConnectionCallback<T> {
+
+    T execute(@NotNull Connection connection) throws SQLException, IOException;
+
+}
@@ -2,7 +2,9 @@ package ru.spbstu.storage.executor;
 
 import org.jetbrains.annotations.NotNull;
 import ru.spbstu.exception.StorageException;
+import ru.spbstu.storage.common.ConnectionPool;
 
+import java.io.IOException;
 import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -13,37 +15,42 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
+/**
+ * Every request takes a connection from the pool and runs in its own transaction,
+ * so requests of concurrent callers are neither serialized nor committed together.
+ */
 public class DataBaseRequestExecutor {
 
-    private final Connection connection;
+    private final ConnectionPool connectionPool;
 
     public DataBaseRequestExecutor(@NotNull Connection connection) {
-        this.connection = Objects.requireNonNull(connection);
-        try {
-            connection.setAutoCommit(false);
-        } catch (SQLException e) {
-            throw new StorageException("", e);
-        }
+        this(ConnectionPool.of(connection));
+    }
+
+    public DataBaseRequestExecutor(@NotNull ConnectionPool connectionPool) {
+        this.connectionPool = Objects.requireNonNull(connectionPool);
     }
 
-    public <T> Array createArray(@NotNull String type,
+    /**
+     * Creates array on the connection of the statement, arrays aren't shared between connections.
+     */
+    public <T> Array createArray(@NotNull PreparedStatement preparedStatement,
+                                 @NotNull String type,
                                  @NotNull T[] array) throws SQLException {
-        return connection.createArrayOf(type, array);
+        return preparedStatement.getConnection().createArrayOf(type, array);
     }
 
     public List<Integer> executeCreate(@NotNull String updateQuery,
                                        @NotNull PreparedStatementUpdater preparedStatementUpdater) {
         Objects.requireNonNull(updateQuery);
-        try (PreparedStatement prepareStatement
-                     = connection.prepareStatement(updateQuery, Statement.RETURN_GENERATED_KEYS)) {
-            preparedStatementUpdater.update(prepareStatement);
-            prepareStatement.executeBatch();
-            List<Integer> generatedIds = collectGeneratedIds(prepareStatement);
-            connection.commit();
-            return generatedIds;
-        } catch (SQLException ex) {
-            throw new StorageException(String.format("Fail to execute update, query: %s", updateQuery), ex);
-        }
+        return execute(connection -> {
+            try (PreparedStatement prepareStatement
+                         = connection.prepareStatement(updateQuery, Statement.RETURN_GENERATED_KEYS)) {
+                preparedStatementUpdater.update(prepareStatement);
+                prepareStatement.executeBatch();
+                return collectGeneratedIds(prepareStatement);
+            }
+        }, String.format("Fail to execute update, query: %s", updateQuery));
     }
 
     private List<Integer> collectGeneratedIds(@NotNull PreparedStatement preparedStatement) {
@@ -63,14 +70,41 @@ public class DataBaseRequestExecutor {
     public void executeUpdate(@NotNull String updateQuery,
                               @NotNull PreparedStatementUpdater preparedStatementUpdater) {
         Objects.requireNonNull(updateQuery);
-        try (PreparedStatement prepareStatement
-                     = connection.prepareStatement(updateQuery, Statement.RETURN_GENERATED_KEYS)) {
-            preparedStatementUpdater.update(prepareStatement);
-            prepareStatement.executeBatch();
-            connection.commit();
-        } catch (SQLException ex) {
-            throw new StorageException(String.format("Fail to execute update, query: %s", updateQuery), ex);
-        }
+        execute(connection -> {
+            try (PreparedStatement prepareStatement
+                         = connection.prepareStatement(updateQuery, Statement.RETURN_GENERATED_KEYS)) {
+                preparedStatementUpdater.update(prepareStatement);
+                prepareStatement.executeBatch();
+            }
+            return Boolean.TRUE;
+        }, String.format("Fail to execute update, query: %s", updateQuery));
+    }
+
+    /**
+     * Executes several statements in one transaction, rolls it back if any of them fails.
+     */
+    public <T> T executeInTransaction(@NotNull ConnectionCallback<T> callback) {
+        Objects.requireNonNull(callback);
+        return execute(callback, "Fail to execute transaction");
+    }
+
+    /**
+     * Executes a modifying query which returns rows, e.g. with RETURNING clause, and commits it.
+     */
+    @NotNull
+    public <T> T executeUpdateQuery(@NotNull String query,
+                                    @NotNull PreparedStatementUpdater preparedStatementUpdater,
+                                    @NotNull RowReader<T> rowReader) {
+        Objects.requireNonNull(query);
+        Objects.requireNonNull(rowReader);
+        return execute(connection -> {
+            try (PreparedStatement prepareStatement = connection.prepareStatement(query)) {
+                preparedStatementUpdater.update(prepareStatement);
+                try (ResultSet resultSet = prepareStatement.executeQuery()) {
+                    return rowReader.handle(resultSet);
+                }
+            }
+        }, String.format("Fail to execute update, query: %s", query));
     }
 
     @NotNull
@@ -79,14 +113,42 @@ public class DataBaseRequestExecutor {
                               @NotNull RowReader<T> rowReader) {
         Objects.requireNonNull(query);
         Objects.requireNonNull(rowReader);
-        try (PreparedStatement prepareStatement = connection.prepareStatement(query)) {
-            preparedStatementUpdater.update(prepareStatement);
-            prepareStatement.executeQuery();
-            try (ResultSet resultSet = prepareStatement.getResultSet()){
-                return rowReader.handle(resultSet);
+        // Транзакция чтения тоже завершается, иначе соединение в пуле держало бы старый снимок
+        return execute(connection -> {
+            try (PreparedStatement prepareStatement = connection.prepareStatement(query)) {
+                preparedStatementUpdater.update(prepareStatement);
+                prepareStatement.executeQuery();
+                try (ResultSet resultSet = prepareStatement.getResultSet()) {
+                    return rowReader.handle(resultSet);
+                }
             }
+        }, String.format("Fail to execute query, query: %s", query));
+    }
+
+    private <T> T execute(@NotNull ConnectionCallback<T> callback,
+                          @NotNull String errorMessage) {
+        Connection connection;
+        try {
+            connection = connectionPool.acquire();
         } catch (SQLException ex) {
-            throw new StorageException(String.format("Fail to execute query, query: %s", query), ex);
+            throw new StorageException(errorMessage, ex);
+        }
+        try {
+            T result = callback.execute(connection);
+            connection.commit();
+            return result;
+        } catch (SQLException | IOException | RuntimeException ex) {
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackEx) {
+                ex.addSuppressed(rollbackEx);
+            }
+            if (ex instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new StorageException(errorMessage, ex);
+        } finally {
+            connectionPool.release(connection);
         }
     }
 
@@ -0,0 +1,629 @@
+package ru.spbstu.storage.metadata;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.exception.StorageException;
+import ru.spbstu.hash.Fingerprint;
+import ru.spbstu.model.SegmentMetadata;
+import ru.spbstu.model.UpsertedSegmentMetadata;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Segments metadata kept in two memory-mapped files, updated in place.
+ * <p>
+ * records file format, record of segment with id N is the N-th one:
+ * |magic|records count|record1|record2|...
+ * record format (fixed {@link #RECORD_SIZE} bytes):
+ * |hash length|hash|file name length|file name|length|file offset|reference|
+ * record of a deleted segment has zero hash length, ids aren't reused.
+ * So the records file never shrinks: it grows by {@link #RECORD_SIZE} bytes per segment ever stored,
+ * deleted ones included. Ids of a file are consecutive and run-length recipes depend on that,
+ * reused slots would break runs, so the file isn't compacted. Only the index drops deleted segments.
+ * Records of the first version have no length, it is cut from the end of the file name field on open.
+ * <p>
+ * index file format, open-addressing hash table with linear probing, 0 is an empty slot:
+ * |magic|slots count|records count|id|id|...
+ * Index is rebuilt from records if its records count differs, e.g. after a crash in the middle of a batch.
+ */
+public class EmbeddedSegmentMetadataStore implements SegmentMetadataStore, AutoCloseable {
+
+    private static final String RECORDS_FILE = "records.dat";
+    private static final String INDEX_FILE = "hash.idx";
+    private static final String INDEX_TMP_FILE = "hash.tmp";
+
+    private static final long RECORDS_MAGIC_V1 = 0x5345474d52000001L;
+    private static final long RECORDS_MAGIC = 0x5345474d52000002L;
+    private static final long INDEX_MAGIC = 0x5345474d49000001L;
+
+    private static final int MAX_HASH_SIZE = 64;
+    private static final int MAX_FILE_NAME_SIZE = 43;
+    private static final long R_HASH_LENGTH = 0;
+    private static final long R_HASH = R_HASH_LENGTH + Byte.BYTES;
+    private static final long R_FILE_NAME_LENGTH = R_HASH + MAX_HASH_SIZE;
+    private static final long R_FILE_NAME = R_FILE_NAME_LENGTH + Byte.BYTES;
+    private static final long R_LENGTH = R_FILE_NAME + MAX_FILE_NAME_SIZE;
+    private static final long R_FILE_OFFSET = R_LENGTH + Integer.BYTES;
+    private static final long R_REFERENCE = R_FILE_OFFSET + Long.BYTES;
+    private static final long RECORD_SIZE = 128;
+
+    private static final long RECORDS_HEADER_SIZE = 2 * Long.BYTES;
+    private static final long INDEX_HEADER_SIZE = 3 * Long.BYTES;
+    private static final long INITIAL_RECORDS_CAPACITY = 1 << 16;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+    private static final int EMPTY_SLOT = 0;
+    private static final int FILE_NAME_SCAN_CHUNK_SIZE = 64 * 1024;
+
+    private final Path recordsPath;
+    private final Path indexPath;
+    private final Path indexTmpPath;
+
+    private Arena recordsArena;
+    private MemorySegment records;
+    private long recordsCapacity;
+    private long recordsCount;
+
+    private Arena indexArena;
+    private MemorySegment index;
+    private long slotsCount;
+
+    private EmbeddedSegmentMetadataStore(@NotNull Path directory) {
+        this.recordsPath = directory.resolve(RECORDS_FILE);
+        this.indexPath = directory.resolve(INDEX_FILE);
+        this.indexTmpPath = directory.resolve(INDEX_TMP_FILE);
+    }
+
+    @NotNull
+    public static EmbeddedSegmentMetadataStore open(@NotNull Path directory) throws IOException {
+        Objects.requireNonNull(directory);
+        Files.createDirectories(directory);
+        EmbeddedSegmentMetadataStore store = new EmbeddedSegmentMetadataStore(directory);
+        store.openRecords();
+        store.openIndex();
+        return store;
+    }
+
+    @Override
+    public synchronized void createBatch(@NotNull List<SegmentMetadata> metadataList) {
+        Objects.requireNonNull(metadataList);
+        try {
+            ensureRecordsCapacity(recordsCount + metadataList.size());
+            ensureIndexCapacity(recordsCount + metadataList.size());
+        } catch (IOException e) {
+            throw new StorageException("Fail to grow embedded metadata store", e);
+        }
+        // Пакет проверяется целиком до записи, чтобы при ошибке не остаться с частью пакета, как и в БД
+        Set<Fingerprint> batchHashes = HashSet.newHashSet(metadataList.size());
+        for (SegmentMetadata metadata : metadataList) {
+            if (!batchHashes.add(metadata.getHash()) || slotId(findSlot(metadata.getHash())) != EMPTY_SLOT) {
+                throw new StorageException(String.format("Segment with hash %s already exists", metadata.getHash()));
+            }
+        }
+        // Индекс помечается грязным, пока пакет не записан полностью
+        index.set(ValueLayout.JAVA_LONG, 2 * Long.BYTES, -1L);
+        for (SegmentMetadata metadata : metadataList) {
+            long slot = findSlot(metadata.getHash());
+            int id = (int) (recordsCount + 1);
+            writeRecord(id, metadata);
+            index.set(ValueLayout.JAVA_INT, INDEX_HEADER_SIZE + slot * Integer.BYTES, id);
+            recordsCount++;
+            metadata.setId(id);
+        }
+        // Счетчик записывается последним, незавершенный пакет при открытии отбрасывается
+        records.force();
+        records.set(ValueLayout.JAVA_LONG, Long.BYTES, recordsCount);
+        index.set(ValueLayout.JAVA_LONG, 2 * Long.BYTES, recordsCount);
+        records.force();
+        index.force();
+    }
+
+    @Override
+    public synchronized void updateBatchReferenceCount(@NotNull Collection<SegmentMetadata> metadataList) {
+        Objects.requireNonNull(metadataList);
+        for (SegmentMetadata metadata : metadataList) {
+            records.set(ValueLayout.JAVA_INT_UNALIGNED, recordOffset(checkId(metadata.getId())) + R_REFERENCE,
+                    metadata.getReferences());
+        }
+        records.force();
+    }
+
+    @NotNull
+    @Override
+    public synchronized Set<Integer> releaseBatch(@NotNull Map<Integer, Integer> idToReferences) {
+        Objects.requireNonNull(idToReferences);
+        Set<Integer> notReleasedIds = new HashSet<>();
+        for (Map.Entry<Integer, Integer> entry : idToReferences.entrySet()) {
+            int id = entry.getKey();
+            if (id <= 0 || id > recordsCount || isDeleted(recordOffset(id))) {
+                notReleasedIds.add(id);
+                continue;
+            }
+            long referenceOffset = recordOffset(id) + R_REFERENCE;
+            int references = records.get(ValueLayout.JAVA_INT_UNALIGNED, referenceOffset);
+            if (references < entry.getValue()) {
+                notReleasedIds.add(id);
+                continue;
+            }
+            if (references == SegmentMetadata.MAX_REFERENCES) {
+                // Насыщенный счетчик не уменьшается, настоящее число ссылок неизвестно
+                continue;
+            }
+            records.set(ValueLayout.JAVA_INT_UNALIGNED, referenceOffset, references - entry.getValue());
+        }
+        records.force();
+        return notReleasedIds;
+    }
+
+    /**
+     * Embedded store appeared together with per-occurrence counting, so its references are always counted that way.
+     */
+    @Override
+    public boolean isReferencePerOccurrence() {
+        return true;
+    }
+
+    @Override
+    public synchronized void rebuildReferences(@NotNull Map<Integer, Integer> idToReferences) {
+        Objects.requireNonNull(idToReferences);
+        for (Integer id : idToReferences.keySet()) {
+            checkId(id);
+        }
+        for (int id = 1; id <= recordsCount; ++id) {
+            records.set(ValueLayout.JAVA_INT_UNALIGNED, recordOffset(id) + R_REFERENCE,
+                    idToReferences.getOrDefault(id, 0));
+        }
+        records.force();
+    }
+
+    @Override
+    public synchronized void updateBatchLocation(@NotNull Collection<SegmentMetadata> metadataList) {
+        Objects.requireNonNull(metadataList);
+        for (SegmentMetadata metadata : metadataList) {
+            writeLocation(recordOffset(checkId(metadata.getId())), metadata);
+        }
+        records.force();
+    }
+
+    @NotNull
+    @Override
+    public synchronized List<SegmentMetadata> deleteUnreferencedBatch(@NotNull Collection<Integer> metadataIds) {
+        Objects.requireNonNull(metadataIds);
+        List<SegmentMetadata> deleted = new ArrayList<>();
+        for (Integer id : metadataIds) {
+            long recordOffset = recordOffset(checkId(id));
+            if (isDeleted(recordOffset)
+                    || records.get(ValueLayout.JAVA_INT_UNALIGNED, recordOffset + R_REFERENCE) > 0) {
+                continue;
+            }
+            if (deleted.isEmpty()) {
+                // Индекс помечается грязным, пока удаление не записано, после сбоя он перестраивается по записям
+                index.set(ValueLayout.JAVA_LONG, 2 * Long.BYTES, -1L);
+            }
+            SegmentMetadata metadata = readRecord(id);
+            // Ячейка удаляется до записи, пока хеш записи еще сравнивается при поиске
+            removeSlot(findSlot(metadata.getHash()));
+            records.set(ValueLayout.JAVA_BYTE, recordOffset + R_HASH_LENGTH, (byte) 0);
+            deleted.add(metadata);
+        }
+        if (deleted.isEmpty()) {
+            return deleted;
+        }
+        records.force();
+        index.set(ValueLayout.JAVA_LONG, 2 * Long.BYTES, recordsCount);
+        index.force();
+        return deleted;
+    }
+
+    @NotNull
+    @Override
+    public synchronized List<UpsertedSegmentMetadata> upsertBatch(@NotNull List<SegmentMetadata> metadataList) {
+        Objects.requireNonNull(metadataList);
+        List<SegmentMetadata> newMetadataList = new ArrayList<>();
+        for (SegmentMetadata metadata : metadataList) {
+            if (slotId(findSlot(metadata.getHash())) == EMPTY_SLOT) {
+                newMetadataList.add(metadata);
+            }
+        }
+        if (!newMetadataList.isEmpty()) {
+            createBatch(newMetadataList);
+        }
+        Set<Fingerprint> newHashes = HashSet.newHashSet(newMetadataList.size());
+        for (SegmentMetadata metadata : newMetadataList) {
+            newHashes.add(metadata.getHash());
+        }
+        List<UpsertedSegmentMetadata> result = new ArrayList<>(metadataList.size());
+        for (SegmentMetadata metadata : metadataList) {
+            if (newHashes.contains(metadata.getHash())) {
+                result.add(new UpsertedSegmentMetadata(readRecord(metadata.getId()), true));
+                continue;
+            }
+            int id = slotId(findSlot(metadata.getHash()));
+            long referenceOffset = recordOffset(id) + R_REFERENCE;
+            records.set(ValueLayout.JAVA_INT_UNALIGNED, referenceOffset, SegmentMetadata.addReferences(
+                    records.get(ValueLayout.JAVA_INT_UNALIGNED, referenceOffset), metadata.getReferences()));
+            result.add(new UpsertedSegmentMetadata(readRecord(id), false));
+        }
+        records.force();
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public synchronized List<SegmentMetadata> findAll() {
+        List<SegmentMetadata> result = new ArrayList<>((int) recordsCount);
+        scanMetadata(result::add);
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public synchronized List<SegmentMetadata> findAllByIds(@NotNull Collection<Integer> metadataIds) {
+        Objects.requireNonNull(metadataIds);
+        List<SegmentMetadata> result = new ArrayList<>(metadataIds.size());
+        for (Integer id : metadataIds) {
+            if (id > 0 && id <= recordsCount && !isDeleted(recordOffset(id))) {
+                result.add(readRecord(id));
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public synchronized List<SegmentMetadata> findAllByHashes(@NotNull Collection<Fingerprint> metadataHashes) {
+        Objects.requireNonNull(metadataHashes);
+        List<SegmentMetadata> result = new ArrayList<>();
+        for (Fingerprint hash : metadataHashes) {
+            int id = slotId(findSlot(hash));
+            if (id != EMPTY_SLOT) {
+                result.add(readRecord(id));
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public List<SegmentMetadata> findAllByFileName(@NotNull String fileName) {
+        Objects.requireNonNull(fileName);
+        return findAllByFileNames(List.of(fileName));
+    }
+
+    /**
+     * There is no index by file name, so records are scanned in chunks and the monitor is released between them,
+     * a lookup of the compactor doesn't stop ingest for the whole scan. A record changed meanwhile
+     * is returned in either state.
+     */
+    @NotNull
+    @Override
+    public List<SegmentMetadata> findAllByFileNames(@NotNull Collection<String> fileNames) {
+        Set<String> names = Set.copyOf(fileNames);
+        List<SegmentMetadata> result = new ArrayList<>();
+        for (long fromId = 1; ; fromId += FILE_NAME_SCAN_CHUNK_SIZE) {
+            synchronized (this) {
+                if (fromId > recordsCount) {
+                    return result;
+                }
+                long toId = Math.min(recordsCount, fromId + FILE_NAME_SCAN_CHUNK_SIZE - 1);
+                for (int id = (int) fromId; id <= toId; ++id) {
+                    long recordOffset = recordOffset(id);
+                    if (!isDeleted(recordOffset) && names.contains(readFileName(recordOffset))) {
+                        result.add(readRecord(id));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized long count() {
+        long count = 0;
+        for (int id = 1; id <= recordsCount; ++id) {
+            if (!isDeleted(recordOffset(id))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void scanHashes(@NotNull Consumer<Fingerprint> hashConsumer) {
+        Objects.requireNonNull(hashConsumer);
+        for (int id = 1; id <= recordsCount; ++id) {
+            if (!isDeleted(recordOffset(id))) {
+                hashConsumer.accept(readHash(recordOffset(id)));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void scanMetadata(@NotNull Consumer<SegmentMetadata> metadataConsumer) {
+        Objects.requireNonNull(metadataConsumer);
+        for (int id = 1; id <= recordsCount; ++id) {
+            if (!isDeleted(recordOffset(id))) {
+                metadataConsumer.accept(readRecord(id));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (recordsArena != null && recordsArena.scope().isAlive()) {
+            records.force();
+            recordsArena.close();
+        }
+        if (indexArena != null && indexArena.scope().isAlive()) {
+            index.force();
+            indexArena.close();
+        }
+    }
+
+    private void openRecords() throws IOException {
+        boolean exists = Files.exists(recordsPath);
+        long capacity = exists
+                ? Math.max((Files.size(recordsPath) - RECORDS_HEADER_SIZE) / RECORD_SIZE, INITIAL_RECORDS_CAPACITY)
+                : INITIAL_RECORDS_CAPACITY;
+        mapRecords(capacity);
+        long magic = records.get(ValueLayout.JAVA_LONG, 0);
+        if (!exists || magic != RECORDS_MAGIC) {
+            if (exists && magic == RECORDS_MAGIC_V1) {
+                upgradeRecords();
+            } else if (exists && magic != 0) {
+                throw new StorageException(String.format("Unknown records file format: %s", recordsPath));
+            } else {
+                records.set(ValueLayout.JAVA_LONG, 0, RECORDS_MAGIC);
+                records.set(ValueLayout.JAVA_LONG, Long.BYTES, 0);
+                records.force();
+            }
+        }
+        recordsCount = records.get(ValueLayout.JAVA_LONG, Long.BYTES);
+    }
+
+    /**
+     * Length takes the last bytes of the file name field of the first version, they are zeroed,
+     * so the segments get unknown length. Repeating the upgrade after a crash is harmless.
+     */
+    private void upgradeRecords() {
+        long count = records.get(ValueLayout.JAVA_LONG, Long.BYTES);
+        for (int id = 1; id <= count; ++id) {
+            long recordOffset = recordOffset(id);
+            if (records.get(ValueLayout.JAVA_BYTE, recordOffset + R_FILE_NAME_LENGTH) > MAX_FILE_NAME_SIZE) {
+                throw new StorageException(String.format(
+                        "Segment %d file name is too long to upgrade records file %s", id, recordsPath));
+            }
+        }
+        for (int id = 1; id <= count; ++id) {
+            records.set(ValueLayout.JAVA_INT_UNALIGNED, recordOffset(id) + R_LENGTH, SegmentMetadata.UNKNOWN_LENGTH);
+        }
+        records.force();
+        records.set(ValueLayout.JAVA_LONG, 0, RECORDS_MAGIC);
+        records.force();
+    }
+
+    private void openIndex() throws IOException {
+        if (Files.exists(indexPath)) {
+            mapIndex(indexPath, (Files.size(indexPath) - INDEX_HEADER_SIZE) / Integer.BYTES);
+            if (index.get(ValueLayout.JAVA_LONG, 0) == INDEX_MAGIC
+                    && index.get(ValueLayout.JAVA_LONG, Long.BYTES) == slotsCount
+                    && index.get(ValueLayout.JAVA_LONG, 2 * Long.BYTES) == recordsCount) {
+                return;
+            }
+            indexArena.close();
+        }
+        rebuildIndex(slotsCountFor(recordsCount));
+    }
+
+    private void ensureRecordsCapacity(long requiredRecords) throws IOException {
+        if (requiredRecords <= recordsCapacity) {
+            return;
+        }
+        long capacity = recordsCapacity;
+        while (capacity < requiredRecords) {
+            capacity *= 2;
+        }
+        records.force();
+        recordsArena.close();
+        mapRecords(capacity);
+    }
+
+    private void ensureIndexCapacity(long requiredRecords) throws IOException {
+        if (requiredRecords <= slotsCount * MAX_LOAD_FACTOR) {
+            return;
+        }
+        rebuildIndex(slotsCountFor(requiredRecords));
+    }
+
+    /**
+     * Index is built in a temporary file and atomically replaces the old one.
+     */
+    private void rebuildIndex(long newSlotsCount) throws IOException {
+        if (indexArena != null && indexArena.scope().isAlive()) {
+            indexArena.close();
+        }
+        Files.deleteIfExists(indexTmpPath);
+        mapIndex(indexTmpPath, newSlotsCount);
+        index.set(ValueLayout.JAVA_LONG, 0, INDEX_MAGIC);
+        index.set(ValueLayout.JAVA_LONG, Long.BYTES, slotsCount);
+        for (int id = 1; id <= recordsCount; ++id) {
+            if (isDeleted(recordOffset(id))) {
+                continue;
+            }
+            long slot = findSlot(readHash(recordOffset(id)));
+            index.set(ValueLayout.JAVA_INT, INDEX_HEADER_SIZE + slot * Integer.BYTES, id);
+        }
+        index.set(ValueLayout.JAVA_LONG, 2 * Long.BYTES, recordsCount);
+        index.force();
+        indexArena.close();
+        Files.move(indexTmpPath, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        mapIndex(indexPath, newSlotsCount);
+    }
+
+    private void mapRecords(long capacity) throws IOException {
+        recordsArena = Arena.ofShared();
+        try (FileChannel fileChannel = FileChannel.open(
+                recordsPath,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE)) {
+            records = fileChannel.map(
+                    FileChannel.MapMode.READ_WRITE, 0, RECORDS_HEADER_SIZE + capacity * RECORD_SIZE, recordsArena);
+        }
+        recordsCapacity = capacity;
+    }
+
+    private void mapIndex(@NotNull Path path, long newSlotsCount) throws IOException {
+        indexArena = Arena.ofShared();
+        try (FileChannel fileChannel = FileChannel.open(
+                path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE)) {
+            index = fileChannel.map(
+                    FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + newSlotsCount * Integer.BYTES, indexArena);
+        }
+        slotsCount = newSlotsCount;
+    }
+
+    /**
+     * Returns slot holding the hash or the empty slot where it should be inserted.
+     */
+    private long findSlot(@NotNull Fingerprint hash) {
+        long mask = slotsCount - 1;
+        long slot = homeSlot(hash);
+        MemorySegment hashSegment = hash.asSegment();
+        while (true) {
+            int id = slotId(slot);
+            if (id == EMPTY_SLOT || hashEquals(recordOffset(id), hashSegment)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Backward shift deletion, keeps every probe sequence without holes, so the index isn't rebuilt.
+     */
+    private void removeSlot(long slot) {
+        long mask = slotsCount - 1;
+        long hole = slot;
+        long next = (hole + 1) & mask;
+        while (slotId(next) != EMPTY_SLOT) {
+            int id = slotId(next);
+            long home = homeSlot(readHash(recordOffset(id)));
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                setSlotId(hole, id);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        setSlotId(hole, EMPTY_SLOT);
+    }
+
+    private long homeSlot(@NotNull Fingerprint hash) {
+        return hash.longAt(0) & (slotsCount - 1);
+    }
+
+    private void setSlotId(long slot, int id) {
+        index.set(ValueLayout.JAVA_INT, INDEX_HEADER_SIZE + slot * Integer.BYTES, id);
+    }
+
+    private int slotId(long slot) {
+        return index.get(ValueLayout.JAVA_INT, INDEX_HEADER_SIZE + slot * Integer.BYTES);
+    }
+
+    private boolean hashEquals(long recordOffset, @NotNull MemorySegment hashSegment) {
+        long hashLength = records.get(ValueLayout.JAVA_BYTE, recordOffset + R_HASH_LENGTH);
+        if (hashLength != hashSegment.byteSize()) {
+            return false;
+        }
+        long hashOffset = recordOffset + R_HASH;
+        return MemorySegment.mismatch(records, hashOffset, hashOffset + hashLength, hashSegment, 0, hashLength) == -1;
+    }
+
+    private void writeRecord(int id, @NotNull SegmentMetadata metadata) {
+        MemorySegment hashSegment = metadata.getHash().asSegment();
+        long recordOffset = recordOffset(id);
+        writeLocation(recordOffset, metadata);
+        records.set(ValueLayout.JAVA_BYTE, recordOffset + R_HASH_LENGTH, (byte) hashSegment.byteSize());
+        MemorySegment.copy(hashSegment, 0, records, recordOffset + R_HASH, hashSegment.byteSize());
+        records.set(ValueLayout.JAVA_INT_UNALIGNED, recordOffset + R_LENGTH, metadata.getLength());
+        records.set(ValueLayout.JAVA_INT_UNALIGNED, recordOffset + R_REFERENCE, metadata.getReferences());
+    }
+
+    private void writeLocation(long recordOffset, @NotNull SegmentMetadata metadata) {
+        byte[] fileName = metadata.getFileName().getBytes(StandardCharsets.UTF_8);
+        if (fileName.length > MAX_FILE_NAME_SIZE) {
+            throw new StorageException(String.format("Segment file name is too long: %s", metadata.getFileName()));
+        }
+        records.set(ValueLayout.JAVA_BYTE, recordOffset + R_FILE_NAME_LENGTH, (byte) fileName.length);
+        MemorySegment.copy(MemorySegment.ofArray(fileName), 0, records, recordOffset + R_FILE_NAME, fileName.length);
+        records.set(ValueLayout.JAVA_LONG_UNALIGNED, recordOffset + R_FILE_OFFSET, metadata.getFileOffset());
+    }
+
+    private boolean isDeleted(long recordOffset) {
+        return records.get(ValueLayout.JAVA_BYTE, recordOffset + R_HASH_LENGTH) == 0;
+    }
+
+    @NotNull
+    private SegmentMetadata readRecord(int id) {
+        long recordOffset = recordOffset(id);
+        return new SegmentMetadata(
+                id,
+                readHash(recordOffset),
+                readFileName(recordOffset),
+                records.get(ValueLayout.JAVA_LONG_UNALIGNED, recordOffset + R_FILE_OFFSET),
+                records.get(ValueLayout.JAVA_INT_UNALIGNED, recordOffset + R_LENGTH),
+                records.get(ValueLayout.JAVA_INT_UNALIGNED, recordOffset + R_REFERENCE)
+        );
+    }
+
+    @NotNull
+    private String readFileName(long recordOffset) {
+        int fileNameLength = records.get(ValueLayout.JAVA_BYTE, recordOffset + R_FILE_NAME_LENGTH);
+        return new String(
+                records.asSlice(recordOffset + R_FILE_NAME, fileNameLength).toArray(ValueLayout.JAVA_BYTE),
+                StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private Fingerprint readHash(long recordOffset) {
+        int hashLength = records.get(ValueLayout.JAVA_BYTE, recordOffset + R_HASH_LENGTH);
+        return new Fingerprint(records.asSlice(recordOffset + R_HASH, hashLength).toArray(ValueLayout.JAVA_BYTE));
+    }
+
+    private int checkId(int id) {
+        if (id <= 0 || id > recordsCount) {
+            throw new StorageException(String.format("Unknown segment id: %d", id));
+        }
+        return id;
+    }
+
+    private static long recordOffset(int id) {
+        return RECORDS_HEADER_SIZE + (id - 1) * RECORD_SIZE;
+    }
+
+    private static long slotsCountFor(long recordsCount) {
+        long slots = 1024;
+        while (recordsCount > slots * MAX_LOAD_FACTOR) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+}
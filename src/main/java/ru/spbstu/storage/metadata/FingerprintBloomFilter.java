@@ -0,0 +1,205 @@
+package ru.spbstu.storage.metadata;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbstu.hash.Fingerprint;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Memory-mapped Bloom filter over fingerprints of all stored segments.
+ * {@link #mightContain} returning false means the segment is definitely new and the database need not be asked.
+ * Only inserted segments are added, deleted ones stay in the filter until it is rebuilt.
+ * <p>
+ * file format:
+ * |magic|bits count|hash functions count|entries count|closed flag|bits...
+ * closed flag is 1 only while the filter isn't open, a filter left open by a crash is rebuilt.
+ */
+public class FingerprintBloomFilter implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FingerprintBloomFilter.class);
+
+    private static final long MAGIC = 0x424c4f4f4d000002L;
+    private static final long MAGIC_OFFSET = 0;
+    private static final long BITS_COUNT_OFFSET = MAGIC_OFFSET + Long.BYTES;
+    private static final long HASH_FUNCTIONS_OFFSET = BITS_COUNT_OFFSET + Long.BYTES;
+    private static final long ENTRIES_OFFSET = HASH_FUNCTIONS_OFFSET + Long.BYTES;
+    private static final long CLOSED_OFFSET = ENTRIES_OFFSET + Long.BYTES;
+    private static final long HEADER_SIZE = CLOSED_OFFSET + Long.BYTES;
+
+    private final Arena arena;
+    private final MemorySegment filterSegment;
+    private final long bitsCount;
+    private final int hashFunctionsCount;
+    private final boolean closed;
+
+    private FingerprintBloomFilter(Arena arena, MemorySegment filterSegment) {
+        this.arena = arena;
+        this.filterSegment = filterSegment;
+        this.bitsCount = filterSegment == null ? 0 : filterSegment.get(ValueLayout.JAVA_LONG, BITS_COUNT_OFFSET);
+        this.hashFunctionsCount = filterSegment == null
+                ? 0
+                : (int) filterSegment.get(ValueLayout.JAVA_LONG, HASH_FUNCTIONS_OFFSET);
+        this.closed = filterSegment != null && filterSegment.get(ValueLayout.JAVA_LONG, CLOSED_OFFSET) == 1;
+    }
+
+    /**
+     * Filter that never rejects a fingerprint.
+     */
+    public static FingerprintBloomFilter disabled() {
+        return new FingerprintBloomFilter(null, null);
+    }
+
+    /**
+     * Opens the filter file and rebuilds it from the table when it is missing, wasn't closed,
+     * holds fewer entries than the table has or is too small for its entries, e.g. after many deletions.
+     * Entries of the filter exceed rows of the table once segments are deleted, so they aren't compared exactly.
+     */
+    public static FingerprintBloomFilter load(@NotNull Path path,
+                                              long expectedEntries,
+                                              double falsePositiveRate,
+                                              @NotNull SegmentMetadataStore metadataStore) throws IOException {
+        Objects.requireNonNull(path);
+        Objects.requireNonNull(metadataStore);
+        long storedEntries = metadataStore.count();
+        long capacity = Math.max(expectedEntries, 2 * storedEntries);
+        long bitsCount = bitsCount(capacity, falsePositiveRate);
+        int hashFunctionsCount = hashFunctionsCount(capacity, bitsCount);
+
+        FingerprintBloomFilter existedFilter = Files.exists(path) ? open(path) : null;
+        if (existedFilter != null) {
+            long existedEntries = existedFilter.entries();
+            if (existedFilter.closed
+                    && existedEntries >= storedEntries
+                    && existedFilter.bitsCount >= bitsCount(Math.max(2 * storedEntries, existedEntries), falsePositiveRate)) {
+                existedFilter.markOpen();
+                return existedFilter;
+            }
+            existedFilter.close();
+        }
+
+        LOGGER.info("Rebuild fingerprint filter {} for {} segments", path, storedEntries);
+        FingerprintBloomFilter filter = create(path, bitsCount, hashFunctionsCount);
+        metadataStore.scanHashes(filter::add);
+        filter.markOpen();
+        return filter;
+    }
+
+    public synchronized boolean mightContain(@NotNull Fingerprint hash) {
+        if (filterSegment == null) {
+            return true;
+        }
+        long h1 = hash.longAt(0);
+        long h2 = hash.longAt(Long.BYTES);
+        for (int idx = 0; idx < hashFunctionsCount; ++idx) {
+            long bit = Long.remainderUnsigned(h1 + idx * h2, bitsCount);
+            long word = filterSegment.get(ValueLayout.JAVA_LONG, wordOffset(bit));
+            if ((word & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized void add(@NotNull Fingerprint hash) {
+        if (filterSegment == null) {
+            return;
+        }
+        long h1 = hash.longAt(0);
+        long h2 = hash.longAt(Long.BYTES);
+        for (int idx = 0; idx < hashFunctionsCount; ++idx) {
+            long bit = Long.remainderUnsigned(h1 + idx * h2, bitsCount);
+            long wordOffset = wordOffset(bit);
+            long word = filterSegment.get(ValueLayout.JAVA_LONG, wordOffset);
+            filterSegment.set(ValueLayout.JAVA_LONG, wordOffset, word | (1L << bit));
+        }
+        filterSegment.set(ValueLayout.JAVA_LONG, ENTRIES_OFFSET, entries() + 1);
+    }
+
+    public synchronized long entries() {
+        return filterSegment == null ? 0 : filterSegment.get(ValueLayout.JAVA_LONG, ENTRIES_OFFSET);
+    }
+
+    public synchronized void force() {
+        if (filterSegment != null) {
+            filterSegment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (arena == null || !arena.scope().isAlive()) {
+            return;
+        }
+        // Флаг записывается после битов, иначе после сбоя неполный фильтр сочтется целым
+        filterSegment.force();
+        filterSegment.set(ValueLayout.JAVA_LONG, CLOSED_OFFSET, 1);
+        filterSegment.force();
+        arena.close();
+    }
+
+    private void markOpen() {
+        filterSegment.set(ValueLayout.JAVA_LONG, CLOSED_OFFSET, 0);
+        filterSegment.force();
+    }
+
+    @Nullable
+    private static FingerprintBloomFilter open(@NotNull Path path) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MemorySegment filterSegment = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileChannel.size(), arena);
+            if (filterSegment.byteSize() < HEADER_SIZE
+                    || filterSegment.get(ValueLayout.JAVA_LONG, MAGIC_OFFSET) != MAGIC) {
+                arena.close();
+                return null;
+            }
+            return new FingerprintBloomFilter(arena, filterSegment);
+        }
+    }
+
+    private static FingerprintBloomFilter create(@NotNull Path path,
+                                                 long bitsCount,
+                                                 int hashFunctionsCount) throws IOException {
+        Files.createDirectories(path.getParent());
+        long fileSize = HEADER_SIZE + (bitsCount + Long.SIZE - 1) / Long.SIZE * Long.BYTES;
+        Arena arena = Arena.ofShared();
+        try (FileChannel fileChannel = FileChannel.open(
+                path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            MemorySegment filterSegment = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize, arena);
+            filterSegment.set(ValueLayout.JAVA_LONG, MAGIC_OFFSET, MAGIC);
+            filterSegment.set(ValueLayout.JAVA_LONG, BITS_COUNT_OFFSET, bitsCount);
+            filterSegment.set(ValueLayout.JAVA_LONG, HASH_FUNCTIONS_OFFSET, hashFunctionsCount);
+            filterSegment.set(ValueLayout.JAVA_LONG, ENTRIES_OFFSET, 0);
+            filterSegment.set(ValueLayout.JAVA_LONG, CLOSED_OFFSET, 0);
+            return new FingerprintBloomFilter(arena, filterSegment);
+        }
+    }
+
+    private static long wordOffset(long bit) {
+        return HEADER_SIZE + (bit >>> 6) * Long.BYTES;
+    }
+
+    private static long bitsCount(long entries, double falsePositiveRate) {
+        double bits = -Math.max(entries, 1) * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        return Math.max(Long.SIZE, (long) Math.ceil(bits));
+    }
+
+    private static int hashFunctionsCount(long entries, long bitsCount) {
+        return Math.max(1, (int) Math.round((double) bitsCount / Math.max(entries, 1) * Math.log(2)));
+    }
+
+}
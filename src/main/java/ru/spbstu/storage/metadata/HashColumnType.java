@@ -0,0 +1,62 @@
+package ru.spbstu.storage.metadata;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.hash.Fingerprint;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+
+/**
+ * Type of {@link SegmentMetadataTable#C_HASH} column.
+ */
+public enum HashColumnType {
+    /**
+     * Hex string, schema of docker/segments.sql.
+     */
+    VARCHAR("varchar"),
+    /**
+     * Raw fingerprint bytes, half the key size of hex. Schema of docker/migrations.
+     */
+    BYTEA("bytea");
+
+    private final String sqlType;
+
+    HashColumnType(@NotNull String sqlType) {
+        this.sqlType = Objects.requireNonNull(sqlType);
+    }
+
+    @NotNull
+    public String getSqlType() {
+        return sqlType;
+    }
+
+    @NotNull
+    Object[] toJdbcArray(@NotNull Fingerprint[] hashes) {
+        Object[] values = this == BYTEA ? new byte[hashes.length][] : new String[hashes.length];
+        for (int idx = 0; idx < hashes.length; ++idx) {
+            values[idx] = toJdbc(hashes[idx]);
+        }
+        return values;
+    }
+
+    @NotNull
+    Object toJdbc(@NotNull Fingerprint hash) {
+        return this == BYTEA ? hash.toByteArray() : hash.toHex();
+    }
+
+    /**
+     * Value of the column in COPY binary format.
+     */
+    @NotNull
+    byte[] toCopyField(@NotNull Fingerprint hash) {
+        return this == BYTEA ? hash.toByteArray() : hash.toHex().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @NotNull
+    Fingerprint read(@NotNull ResultSet rs, @NotNull String column) throws SQLException {
+        return this == BYTEA ? new Fingerprint(rs.getBytes(column)) : Fingerprint.fromHex(rs.getString(column));
+    }
+
+}
@@ -0,0 +1,12 @@
+package ru.spbstu.storage.metadata;
+
+public enum MetadataStoreType {
+    /**
+     * Metadata is kept in {@link SegmentMetadataTable} of PostgreSQL.
+     */
+    POSTGRES,
+    /**
+     * Metadata is kept in local files by {@link EmbeddedSegmentMetadataStore}.
+     */
+    EMBEDDED
+}
@@ -0,0 +1,167 @@
+package ru.spbstu.storage.metadata;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbstu.hash.Fingerprint;
+import ru.spbstu.model.SegmentMetadata;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Bounded fingerprint to metadata cache with CLOCK eviction.
+ * Entries live in fixed arrays, lookup goes through an open-addressing index of entry positions.
+ * Cache is coherent only while this process is the single writer of segments metadata.
+ */
+public class SegmentMetadataCache {
+
+    // Fingerprint with its digest, metadata copy, index slots and array references
+    private static final int ESTIMATED_ENTRY_SIZE_IN_BYTES = 200;
+    private static final int EMPTY = -1;
+
+    private final int capacity;
+    private final Fingerprint[] keys;
+    private final SegmentMetadata[] values;
+    private final boolean[] referenced;
+    private final int[] index;
+    private final int mask;
+    private int size;
+    private int clockHand;
+
+    public SegmentMetadataCache(long memoryBudgetInBytes) {
+        this.capacity = (int) Math.min(memoryBudgetInBytes / ESTIMATED_ENTRY_SIZE_IN_BYTES, 1 << 28);
+        this.keys = new Fingerprint[capacity];
+        this.values = new SegmentMetadata[capacity];
+        this.referenced = new boolean[capacity];
+        // Load factor of the index is at most 0.5
+        int indexSize = capacity == 0 ? 1 : Integer.highestOneBit(capacity) << 2;
+        this.index = new int[indexSize];
+        this.mask = indexSize - 1;
+        Arrays.fill(index, EMPTY);
+    }
+
+    public static SegmentMetadataCache disabled() {
+        return new SegmentMetadataCache(0);
+    }
+
+    @Nullable
+    public synchronized SegmentMetadata get(@NotNull Fingerprint hash) {
+        Objects.requireNonNull(hash);
+        if (capacity == 0) {
+            return null;
+        }
+        int entry = index[findSlot(hash)];
+        if (entry == EMPTY) {
+            return null;
+        }
+        referenced[entry] = true;
+        return copyOf(values[entry]);
+    }
+
+    public synchronized void put(@NotNull SegmentMetadata metadata) {
+        Objects.requireNonNull(metadata);
+        if (capacity == 0) {
+            return;
+        }
+        Fingerprint hash = metadata.getHash();
+        int slot = findSlot(hash);
+        int entry = index[slot];
+        if (entry != EMPTY) {
+            values[entry] = copyOf(metadata);
+            referenced[entry] = true;
+            return;
+        }
+        if (size < capacity) {
+            entry = size++;
+        } else {
+            entry = evict();
+            // Удаление могло сдвинуть элементы индекса, поэтому слот ищется заново
+            slot = findSlot(hash);
+        }
+        keys[entry] = hash;
+        values[entry] = copyOf(metadata);
+        referenced[entry] = false;
+        index[slot] = entry;
+    }
+
+    public synchronized void remove(@NotNull Fingerprint hash) {
+        Objects.requireNonNull(hash);
+        if (capacity == 0) {
+            return;
+        }
+        int slot = findSlot(hash);
+        int entry = index[slot];
+        if (entry == EMPTY) {
+            return;
+        }
+        removeSlot(slot);
+        // Освободившуюся позицию занимает последняя запись, чтобы позиции 0..size-1 оставались заняты
+        int last = --size;
+        if (entry != last) {
+            int lastSlot = findSlot(keys[last]);
+            index[lastSlot] = entry;
+            keys[entry] = keys[last];
+            values[entry] = values[last];
+            referenced[entry] = referenced[last];
+        }
+        keys[last] = null;
+        values[last] = null;
+        referenced[last] = false;
+        if (clockHand >= size) {
+            clockHand = 0;
+        }
+    }
+
+    private int evict() {
+        while (referenced[clockHand]) {
+            referenced[clockHand] = false;
+            clockHand = (clockHand + 1) % capacity;
+        }
+        int victim = clockHand;
+        clockHand = (clockHand + 1) % capacity;
+        removeSlot(findSlot(keys[victim]));
+        return victim;
+    }
+
+    private int findSlot(@NotNull Fingerprint hash) {
+        int slot = homeSlot(hash);
+        while (index[slot] != EMPTY && !keys[index[slot]].equals(hash)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Backward shift deletion, keeps every probe sequence without holes.
+     */
+    private void removeSlot(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (index[next] != EMPTY) {
+            int home = homeSlot(keys[index[next]]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                index[hole] = index[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        index[hole] = EMPTY;
+    }
+
+    private int homeSlot(@NotNull Fingerprint hash) {
+        int hashCode = hash.hashCode();
+        return (hashCode ^ (hashCode >>> 16)) & mask;
+    }
+
+    private static SegmentMetadata copyOf(@NotNull SegmentMetadata metadata) {
+        return new SegmentMetadata(
+                metadata.getId(),
+                metadata.getHash(),
+                metadata.getFileName(),
+                metadata.getFileOffset(),
+                metadata.getLength(),
+                metadata.getReferences()
+        );
+    }
+
+}
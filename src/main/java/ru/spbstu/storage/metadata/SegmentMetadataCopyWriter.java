@@ -0,0 +1,76 @@
+package ru.spbstu.storage.metadata;
+
+import org.jetbrains.annotations.NotNull;
+import org.postgresql.copy.CopyIn;
+import ru.spbstu.model.SegmentMetadata;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Writes segments metadata to COPY ... FROM STDIN (FORMAT binary) stream.
+ * <p>
+ * stream format, all numbers are big-endian:
+ * |signature|flags|header extension length|tuple1|tuple2|...|-1 as short|
+ * tuple format, every field is prefixed with its length:
+ * |fields count as short|ord|id|hash|file name|file offset|length|reference|
+ */
+class SegmentMetadataCopyWriter {
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+    private static final short FIELDS_COUNT = 7;
+    private static final short TRAILER = -1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FIXED_TUPLE_SIZE = Short.BYTES + FIELDS_COUNT * Integer.BYTES
+            + Integer.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private SegmentMetadataCopyWriter() {}
+
+    /**
+     * Ord of a tuple is the index of metadata in {@code metadataList}, its id is taken from {@code ids} by the same index.
+     */
+    static void write(@NotNull CopyIn copyIn,
+                      @NotNull List<SegmentMetadata> metadataList,
+                      @NotNull Integer[] ids,
+                      @NotNull HashColumnType hashColumnType) throws SQLException {
+        Objects.requireNonNull(copyIn);
+        Objects.requireNonNull(metadataList);
+        if (ids.length != metadataList.size()) {
+            throw new IllegalArgumentException("Ids size isn't equals to metadata list size");
+        }
+        Objects.requireNonNull(hashColumnType);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.put(SIGNATURE).putInt(0).putInt(0);
+        for (int ord = 0; ord < metadataList.size(); ++ord) {
+            SegmentMetadata metadata = metadataList.get(ord);
+            byte[] hash = hashColumnType.toCopyField(metadata.getHash());
+            byte[] fileName = metadata.getFileName().getBytes(StandardCharsets.UTF_8);
+            if (buffer.remaining() < FIXED_TUPLE_SIZE + hash.length + fileName.length) {
+                flush(copyIn, buffer);
+            }
+            buffer.putShort(FIELDS_COUNT);
+            buffer.putInt(Integer.BYTES).putInt(ord);
+            buffer.putInt(Integer.BYTES).putInt(ids[ord]);
+            buffer.putInt(hash.length).put(hash);
+            buffer.putInt(fileName.length).put(fileName);
+            buffer.putInt(Long.BYTES).putLong(metadata.getFileOffset());
+            buffer.putInt(Integer.BYTES).putInt(metadata.getLength());
+            buffer.putInt(Integer.BYTES).putInt(metadata.getReferences());
+        }
+        if (buffer.remaining() < Short.BYTES) {
+            flush(copyIn, buffer);
+        }
+        buffer.putShort(TRAILER);
+        flush(copyIn, buffer);
+    }
+
+    private static void flush(@NotNull CopyIn copyIn,
+                              @NotNull ByteBuffer buffer) throws SQLException {
+        copyIn.writeToCopy(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+}
@@ -2,57 +2,226 @@ package ru.spbstu.storage.metadata;
 
 import com.google.common.base.Joiner;
 import org.jetbrains.annotations.NotNull;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 import ru.spbstu.exception.StorageException;
+import ru.spbstu.hash.Fingerprint;
 import ru.spbstu.model.SegmentMetadata;
+import ru.spbstu.model.UpsertedSegmentMetadata;
+import ru.spbstu.storage.common.ConnectionPool;
 import ru.spbstu.storage.executor.DataBaseRequestExecutor;
 import ru.spbstu.storage.executor.DefaultPreparedStatementUpdater;
 
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_FILE_NAME;
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_FILE_OFFSET;
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_HASH;
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_ID;
+import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_LENGTH;
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_REFERENCE;
+import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_REFERENCE_COUNTING;
+import static ru.spbstu.storage.metadata.SegmentMetadataTable.FORMAT_TABLE_NAME;
+import static ru.spbstu.storage.metadata.SegmentMetadataTable.REFERENCE_PER_OCCURRENCE;
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.TABLE_NAME;
 
-public class SegmentMetadataDAO {
+public class SegmentMetadataDAO implements SegmentMetadataStore {
 
     private static final String INSERT_STMT = "INSERT INTO " + TABLE_NAME + " (" +
             C_HASH + ", " +
             C_FILE_NAME + ", " +
             C_FILE_OFFSET + ", " +
+            C_LENGTH + ", " +
             C_REFERENCE + ")" +
-            " VALUES (?, ?, ?, ?)";
+            " VALUES (?, ?, ?, ?, ?)";
+
+    // Ссылки существующих сегментов увеличиваются на месте, поэтому параллельная загрузка не теряет обновления,
+    // сумма насыщается на SegmentMetadata.MAX_REFERENCES вместо переполнения integer
+    private static final String UPSERT_CONFLICT_CLAUSE = " ON CONFLICT (" + C_HASH + ") DO UPDATE SET " +
+            C_REFERENCE + " = LEAST(" + TABLE_NAME + "." + C_REFERENCE + "::bigint + excluded." + C_REFERENCE +
+            ", " + SegmentMetadata.MAX_REFERENCES + ")" +
+            " RETURNING " + C_ID + ", " + C_HASH + ", " + C_FILE_NAME + ", " + C_FILE_OFFSET + ", " + C_LENGTH +
+            ", " + C_REFERENCE +
+            ", (xmax = 0) AS " + SegmentUpsertRowReader.C_INSERTED;
+
+    private static final String C_ORD = "ord";
+
+    // Строки вставляются и блокируются в порядке ord, без ORDER BY порядок обхода unnest не гарантирован
+    private static final String UPSERT_STMT_TEMPLATE = "INSERT INTO " + TABLE_NAME + " (" +
+            C_ID + ", " +
+            C_HASH + ", " +
+            C_FILE_NAME + ", " +
+            C_FILE_OFFSET + ", " +
+            C_LENGTH + ", " +
+            C_REFERENCE + ")" +
+            " SELECT " + C_ID + ", " + C_HASH + ", " + C_FILE_NAME + ", " + C_FILE_OFFSET + ", " + C_LENGTH +
+            ", " + C_REFERENCE +
+            " FROM unnest(?::integer[], ?::%s[], ?::varchar[], ?::bigint[], ?::integer[], ?::integer[])" +
+            " WITH ORDINALITY AS batch(" + C_ID + ", " + C_HASH + ", " + C_FILE_NAME + ", " + C_FILE_OFFSET +
+            ", " + C_LENGTH + ", " + C_REFERENCE + ", " + C_ORD + ") ORDER BY " + C_ORD +
+            UPSERT_CONFLICT_CLAUSE;
+
+    private static final String STAGING_TABLE_NAME = TABLE_NAME + "_staging";
+
+    private static final String CREATE_STAGING_TABLE_STMT_TEMPLATE = "CREATE TEMPORARY TABLE " + STAGING_TABLE_NAME + " (" +
+            C_ORD + " integer, " +
+            C_ID + " integer, " +
+            C_HASH + " %s, " +
+            C_FILE_NAME + " varchar(100), " +
+            C_FILE_OFFSET + " bigint, " +
+            C_LENGTH + " integer, " +
+            C_REFERENCE + " integer" +
+            ") ON COMMIT DROP";
+
+    private static final String COPY_STAGING_STMT = "COPY " + STAGING_TABLE_NAME + " (" +
+            C_ORD + ", " +
+            C_ID + ", " +
+            C_HASH + ", " +
+            C_FILE_NAME + ", " +
+            C_FILE_OFFSET + ", " +
+            C_LENGTH + ", " +
+            C_REFERENCE + ")" +
+            " FROM STDIN (FORMAT binary)";
+
+    private static final String MERGE_STAGING_STMT = "INSERT INTO " + TABLE_NAME + " (" +
+            C_ID + ", " +
+            C_HASH + ", " +
+            C_FILE_NAME + ", " +
+            C_FILE_OFFSET + ", " +
+            C_LENGTH + ", " +
+            C_REFERENCE + ")" +
+            " SELECT " + C_ID + ", " + C_HASH + ", " + C_FILE_NAME + ", " + C_FILE_OFFSET + ", " + C_LENGTH +
+            ", " + C_REFERENCE +
+            " FROM " + STAGING_TABLE_NAME + " ORDER BY " + C_ORD +
+            UPSERT_CONFLICT_CLAUSE;
+
+    // Новые строки получают id заранее, в порядке входного списка, а вставляются в порядке блокировок
+    private static final String ALLOCATE_IDS_STMT = "SELECT nextval(pg_get_serial_sequence('" + TABLE_NAME + "', '" +
+            C_ID + "')) FROM generate_series(1, ?)";
+
+    // UPDATE и DELETE по unnest или ANY не гарантируют порядок блокировки строк, поэтому строки блокируются заранее
+    private static final String LOCK_ROWS_STMT = "SELECT " + C_ID + " FROM " + TABLE_NAME +
+            " WHERE " + C_ID + " = ANY (?) ORDER BY " + C_ID + " FOR UPDATE";
+
+    public static final int DEFAULT_COPY_THRESHOLD = 10_000;
 
     private static final String UPDATE_REFERENCE_COUNT_STMT = "UPDATE "  + TABLE_NAME + " SET " +
             C_REFERENCE + " = ? " +
             "WHERE " + C_ID + " = ?";
 
 
+    // Строки, где ссылок меньше освобождаемых, не обновляются: счетчик уже неверен, удалять по нему нельзя.
+    // Насыщенный счетчик не уменьшается, настоящее число ссылок неизвестно
+    private static final String RELEASE_STMT = "UPDATE " + TABLE_NAME + " SET " +
+            C_REFERENCE + " = CASE WHEN " + TABLE_NAME + "." + C_REFERENCE + " = " + SegmentMetadata.MAX_REFERENCES +
+            " THEN " + TABLE_NAME + "." + C_REFERENCE +
+            " ELSE " + TABLE_NAME + "." + C_REFERENCE + " - released." + C_REFERENCE + " END" +
+            " FROM unnest(?::integer[], ?::integer[]) AS released(" + C_ID + ", " + C_REFERENCE + ")" +
+            " WHERE " + TABLE_NAME + "." + C_ID + " = released." + C_ID +
+            " AND " + TABLE_NAME + "." + C_REFERENCE + " >= released." + C_REFERENCE +
+            " RETURNING " + TABLE_NAME + "." + C_ID;
+
+    private static final String UPDATE_LOCATION_STMT = "UPDATE " + TABLE_NAME + " SET " +
+            C_FILE_NAME + " = ?, " +
+            C_FILE_OFFSET + " = ? " +
+            "WHERE " + C_ID + " = ?";
+
+    // Условие на ссылки проверяется под блокировкой строки, поэтому снова используемый сегмент не удаляется
+    private static final String DELETE_UNREFERENCED_STMT = "DELETE FROM " + TABLE_NAME +
+            " WHERE " + C_ID + " = ANY (?) AND " + C_REFERENCE + " <= 0" +
+            " RETURNING *";
+
+    // Таблица формата появилась в миграции 004, в старой схеме ее может не быть
+    private static final String QUERY_FORMAT_TABLE_EXISTS = "SELECT to_regclass('" + FORMAT_TABLE_NAME + "') IS NOT NULL";
+    private static final String QUERY_REFERENCE_COUNTING = "SELECT " + C_REFERENCE_COUNTING + " FROM " + FORMAT_TABLE_NAME;
+
+    private static final String RESET_REFERENCES_STMT = "UPDATE " + TABLE_NAME + " SET " + C_REFERENCE + " = 0" +
+            " WHERE " + C_REFERENCE + " <> 0";
+    private static final String SET_REFERENCES_STMT = "UPDATE " + TABLE_NAME + " SET " +
+            C_REFERENCE + " = counted." + C_REFERENCE +
+            " FROM unnest(?::integer[], ?::integer[]) AS counted(" + C_ID + ", " + C_REFERENCE + ")" +
+            " WHERE " + TABLE_NAME + "." + C_ID + " = counted." + C_ID;
+    private static final String CREATE_FORMAT_TABLE_STMT = "CREATE TABLE IF NOT EXISTS " + FORMAT_TABLE_NAME +
+            " (" + C_REFERENCE_COUNTING + " varchar(20) not null)";
+    private static final String CLEAR_FORMAT_STMT = "DELETE FROM " + FORMAT_TABLE_NAME;
+    private static final String MARK_REFERENCE_PER_OCCURRENCE_STMT = "INSERT INTO " + FORMAT_TABLE_NAME +
+            " (" + C_REFERENCE_COUNTING + ") VALUES ('" + REFERENCE_PER_OCCURRENCE + "')";
+
     private static final String QUERY_METADATA = "SELECT * FROM " + TABLE_NAME;
+    private static final String QUERY_HASHES = "SELECT " + C_HASH + " FROM " + TABLE_NAME;
+    private static final String QUERY_COUNT = "SELECT count(*) FROM " + TABLE_NAME;
+    private static final int SCAN_FETCH_SIZE = 10_000;
     private static final String QUERY_METADATA_BY_IDS = QUERY_METADATA + " WHERE id = ANY (?)";
     private static final String QUERY_METADATA_BY_HASHES = QUERY_METADATA + " WHERE hash = ANY (?)";
+    private static final String QUERY_METADATA_BY_FILE_NAME = QUERY_METADATA + " WHERE " + C_FILE_NAME + " = ?";
+    private static final String QUERY_METADATA_BY_FILE_NAMES = QUERY_METADATA + " WHERE " + C_FILE_NAME + " = ANY (?)";
 
     public final DataBaseRequestExecutor dbRequestExecutor;
+    private final int copyThreshold;
+    private final HashColumnType hashColumnType;
+    private final String upsertStmt;
+    private final String createStagingTableStmt;
+    private final SegmentMetadataRowReader rowReader;
+    private final SegmentUpsertRowReader upsertRowReader;
 
     public SegmentMetadataDAO(Connection connection) {
-        this.dbRequestExecutor = new DataBaseRequestExecutor(connection);
+        this(connection, DEFAULT_COPY_THRESHOLD, HashColumnType.VARCHAR);
+    }
+
+    public SegmentMetadataDAO(Connection connection,
+                              int copyThreshold,
+                              @NotNull HashColumnType hashColumnType) {
+        this(ConnectionPool.of(connection), copyThreshold, hashColumnType);
     }
 
+    /**
+     * Batches of at least {@code copyThreshold} segments are upserted through binary COPY into a staging table.
+     * {@code hashColumnType} must match the schema of {@link SegmentMetadataTable}.
+     * Requests of concurrent callers run on different connections of {@code connectionPool}.
+     */
+    public SegmentMetadataDAO(@NotNull ConnectionPool connectionPool,
+                              int copyThreshold,
+                              @NotNull HashColumnType hashColumnType) {
+        if (copyThreshold <= 0) {
+            throw new IllegalArgumentException("Copy threshold must be positive: " + copyThreshold);
+        }
+        this.dbRequestExecutor = new DataBaseRequestExecutor(connectionPool);
+        this.copyThreshold = copyThreshold;
+        this.hashColumnType = Objects.requireNonNull(hashColumnType);
+        this.upsertStmt = String.format(UPSERT_STMT_TEMPLATE, hashColumnType.getSqlType());
+        this.createStagingTableStmt = String.format(CREATE_STAGING_TABLE_STMT_TEMPLATE, hashColumnType.getSqlType());
+        this.rowReader = SegmentMetadataRowReader.of(hashColumnType);
+        this.upsertRowReader = SegmentUpsertRowReader.of(hashColumnType);
+    }
+
+    @Override
     public void createBatch(@NotNull List<SegmentMetadata> metadataList) {
         Objects.requireNonNull(metadataList);
         List<Integer> generatedIds = dbRequestExecutor.executeCreate(INSERT_STMT, ps -> {
             for (SegmentMetadata metadata : metadataList) {
-                ps.setString(1, metadata.getHash());
+                ps.setObject(1, hashColumnType.toJdbc(metadata.getHash()));
                 ps.setString(2, metadata.getFileName());
                 ps.setLong(3, metadata.getFileOffset());
-                ps.setInt(4, metadata.getReferences());
+                ps.setInt(4, metadata.getLength());
+                ps.setInt(5, metadata.getReferences());
                 ps.addBatch();
             }
         });
@@ -64,6 +233,8 @@ public class SegmentMetadataDAO {
             metadataList.get(idx).setId(metadataId);
         }
     }
+
+    @Override
     public void updateBatchReferenceCount(@NotNull Collection<SegmentMetadata> metadataList) {
         Objects.requireNonNull(metadataList);
         dbRequestExecutor.executeUpdate(UPDATE_REFERENCE_COUNT_STMT, ps -> {
@@ -76,36 +247,372 @@ public class SegmentMetadataDAO {
     }
 
     @NotNull
+    @Override
+    public Set<Integer> releaseBatch(@NotNull Map<Integer, Integer> idToReferences) {
+        Objects.requireNonNull(idToReferences);
+        if (idToReferences.isEmpty()) {
+            return Set.of();
+        }
+        Integer[] ids = idToReferences.keySet().toArray(Integer[]::new);
+        Integer[] references = new Integer[ids.length];
+        for (int idx = 0; idx < ids.length; ++idx) {
+            references[idx] = idToReferences.get(ids[idx]);
+        }
+        Set<Integer> notReleasedIds = new HashSet<>(idToReferences.keySet());
+        dbRequestExecutor.executeInTransaction(connection -> {
+            lockRows(connection, ids);
+            try (PreparedStatement ps = connection.prepareStatement(RELEASE_STMT)) {
+                ps.setArray(1, dbRequestExecutor.createArray(ps, "INTEGER", ids));
+                ps.setArray(2, dbRequestExecutor.createArray(ps, "INTEGER", references));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        notReleasedIds.remove(rs.getInt(1));
+                    }
+                }
+            }
+            return Boolean.TRUE;
+        });
+        return notReleasedIds;
+    }
+
+    @Override
+    public void updateBatchLocation(@NotNull Collection<SegmentMetadata> metadataList) {
+        Objects.requireNonNull(metadataList);
+        if (metadataList.isEmpty()) {
+            return;
+        }
+        dbRequestExecutor.executeInTransaction(connection -> {
+            lockRows(connection, metadataList.stream().map(SegmentMetadata::getId).toArray(Integer[]::new));
+            try (PreparedStatement ps = connection.prepareStatement(UPDATE_LOCATION_STMT)) {
+                for (SegmentMetadata metadata : metadataList) {
+                    ps.setString(1, metadata.getFileName());
+                    ps.setLong(2, metadata.getFileOffset());
+                    ps.setInt(3, metadata.getId());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            return Boolean.TRUE;
+        });
+    }
+
+    @Override
+    public boolean isReferencePerOccurrence() {
+        return dbRequestExecutor.executeInTransaction(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                try (ResultSet resultSet = statement.executeQuery(QUERY_FORMAT_TABLE_EXISTS)) {
+                    if (!resultSet.next() || !resultSet.getBoolean(1)) {
+                        return false;
+                    }
+                }
+                try (ResultSet resultSet = statement.executeQuery(QUERY_REFERENCE_COUNTING)) {
+                    return resultSet.next() && REFERENCE_PER_OCCURRENCE.equals(resultSet.getString(1));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void rebuildReferences(@NotNull Map<Integer, Integer> idToReferences) {
+        Objects.requireNonNull(idToReferences);
+        Integer[] ids = idToReferences.keySet().toArray(Integer[]::new);
+        Integer[] references = new Integer[ids.length];
+        for (int idx = 0; idx < ids.length; ++idx) {
+            references[idx] = idToReferences.get(ids[idx]);
+        }
+        dbRequestExecutor.executeInTransaction(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate(RESET_REFERENCES_STMT);
+            }
+            try (PreparedStatement ps = connection.prepareStatement(SET_REFERENCES_STMT)) {
+                ps.setArray(1, dbRequestExecutor.createArray(ps, "INTEGER", ids));
+                ps.setArray(2, dbRequestExecutor.createArray(ps, "INTEGER", references));
+                ps.executeUpdate();
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate(CREATE_FORMAT_TABLE_STMT);
+                statement.executeUpdate(CLEAR_FORMAT_STMT);
+                statement.executeUpdate(MARK_REFERENCE_PER_OCCURRENCE_STMT);
+            }
+            return Boolean.TRUE;
+        });
+    }
+
+    @NotNull
+    @Override
+    public List<SegmentMetadata> deleteUnreferencedBatch(@NotNull Collection<Integer> metadataIds) {
+        Objects.requireNonNull(metadataIds);
+        if (metadataIds.isEmpty()) {
+            return List.of();
+        }
+        Integer[] ids = metadataIds.toArray(Integer[]::new);
+        return dbRequestExecutor.executeInTransaction(connection -> {
+            lockRows(connection, ids);
+            try (PreparedStatement ps = connection.prepareStatement(DELETE_UNREFERENCED_STMT)) {
+                ps.setArray(1, dbRequestExecutor.createArray(ps, "INTEGER", ids));
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rowReader.handle(rs);
+                }
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public List<UpsertedSegmentMetadata> upsertBatch(@NotNull List<SegmentMetadata> metadataList) {
+        Objects.requireNonNull(metadataList);
+        if (metadataList.isEmpty()) {
+            return List.of();
+        }
+        List<UpsertedSegmentMetadata> upserted = dbRequestExecutor.executeInTransaction(connection -> {
+            Map<Fingerprint, Integer> newIds = allocateIds(connection, metadataList);
+            List<SegmentMetadata> lockOrderedList = inLockOrder(metadataList);
+            Integer[] ids = new Integer[lockOrderedList.size()];
+            for (int idx = 0; idx < ids.length; ++idx) {
+                SegmentMetadata metadata = lockOrderedList.get(idx);
+                ids[idx] = metadata.getId() > 0 ? metadata.getId() : newIds.get(metadata.getHash());
+            }
+            return metadataList.size() >= copyThreshold
+                    ? upsertBatchWithCopy(connection, lockOrderedList, ids)
+                    : upsertBatchWithArrays(connection, lockOrderedList, ids);
+        });
+        return inInputOrder(metadataList, upserted);
+    }
+
+    /**
+     * Concurrent transactions lock existing rows in the order of ids, as release and relocation do,
+     * then new rows in the order of hash bytes, the unique key, so they don't deadlock on shared segments.
+     */
+    @NotNull
+    private static List<SegmentMetadata> inLockOrder(@NotNull Collection<SegmentMetadata> metadataList) {
+        List<SegmentMetadata> result = new ArrayList<>(metadataList);
+        result.sort(Comparator
+                .comparingInt((SegmentMetadata metadata) -> metadata.getId() > 0 ? metadata.getId() : Integer.MAX_VALUE)
+                .thenComparing(metadata -> metadata.getHash().toByteArray(), Arrays::compareUnsigned));
+        return result;
+    }
+
+    /**
+     * Takes ids for new rows from the sequence and gives them in the order of {@code metadataList},
+     * so new segments of a file get consecutive ids whatever order they are inserted in.
+     */
+    @NotNull
+    private static Map<Fingerprint, Integer> allocateIds(@NotNull Connection connection,
+                                                         @NotNull List<SegmentMetadata> metadataList) throws SQLException {
+        List<Fingerprint> newHashes = new ArrayList<>();
+        for (SegmentMetadata metadata : metadataList) {
+            if (metadata.getId() <= 0) {
+                newHashes.add(metadata.getHash());
+            }
+        }
+        if (newHashes.isEmpty()) {
+            return Map.of();
+        }
+        int[] ids = new int[newHashes.size()];
+        try (PreparedStatement ps = connection.prepareStatement(ALLOCATE_IDS_STMT)) {
+            ps.setInt(1, ids.length);
+            try (ResultSet rs = ps.executeQuery()) {
+                for (int idx = 0; idx < ids.length; ++idx) {
+                    if (!rs.next()) {
+                        throw new StorageException("Fail to allocate segment ids");
+                    }
+                    ids[idx] = rs.getInt(1);
+                }
+            }
+        }
+        Arrays.sort(ids);
+        Map<Fingerprint, Integer> result = HashMap.newHashMap(ids.length);
+        for (int idx = 0; idx < ids.length; ++idx) {
+            result.put(newHashes.get(idx), ids[idx]);
+        }
+        return result;
+    }
+
+    private void lockRows(@NotNull Connection connection,
+                          @NotNull Integer[] ids) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(LOCK_ROWS_STMT)) {
+            ps.setArray(1, dbRequestExecutor.createArray(ps, "INTEGER", ids));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    // строки блокируются по мере чтения
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private List<UpsertedSegmentMetadata> upsertBatchWithArrays(@NotNull Connection connection,
+                                                                @NotNull List<SegmentMetadata> metadataList,
+                                                                @NotNull Integer[] ids) throws SQLException {
+        int size = metadataList.size();
+        Fingerprint[] hashes = new Fingerprint[size];
+        String[] fileNames = new String[size];
+        Long[] fileOffsets = new Long[size];
+        Integer[] lengths = new Integer[size];
+        Integer[] references = new Integer[size];
+        for (int idx = 0; idx < size; ++idx) {
+            SegmentMetadata metadata = metadataList.get(idx);
+            hashes[idx] = metadata.getHash();
+            fileNames[idx] = metadata.getFileName();
+            fileOffsets[idx] = metadata.getFileOffset();
+            lengths[idx] = metadata.getLength();
+            references[idx] = metadata.getReferences();
+        }
+        try (PreparedStatement ps = connection.prepareStatement(upsertStmt)) {
+            ps.setArray(1, dbRequestExecutor.createArray(ps, "INTEGER", ids));
+            ps.setArray(2, dbRequestExecutor.createArray(ps,
+                    hashColumnType.getSqlType(), hashColumnType.toJdbcArray(hashes)));
+            ps.setArray(3, dbRequestExecutor.createArray(ps, "VARCHAR", fileNames));
+            ps.setArray(4, dbRequestExecutor.createArray(ps, "BIGINT", fileOffsets));
+            ps.setArray(5, dbRequestExecutor.createArray(ps, "INTEGER", lengths));
+            ps.setArray(6, dbRequestExecutor.createArray(ps, "INTEGER", references));
+            try (ResultSet resultSet = ps.executeQuery()) {
+                return upsertRowReader.handle(resultSet);
+            }
+        }
+    }
+
+    @NotNull
+    private List<UpsertedSegmentMetadata> upsertBatchWithCopy(@NotNull Connection connection,
+                                                              @NotNull List<SegmentMetadata> metadataList,
+                                                              @NotNull Integer[] ids) throws SQLException, IOException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(createStagingTableStmt);
+        }
+        CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_STAGING_STMT);
+        try {
+            SegmentMetadataCopyWriter.write(copyIn, metadataList, ids, hashColumnType);
+            copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(MERGE_STAGING_STMT)) {
+            return upsertRowReader.handle(resultSet);
+        }
+    }
+
+    @NotNull
+    private static List<UpsertedSegmentMetadata> inInputOrder(@NotNull List<SegmentMetadata> metadataList,
+                                                              @NotNull List<UpsertedSegmentMetadata> upserted) {
+        if (upserted.size() != metadataList.size()) {
+            throw new StorageException("Upserted rows size isn't equals to metadata list size");
+        }
+        Map<Fingerprint, UpsertedSegmentMetadata> hashToUpsertedMap = HashMap.newHashMap(upserted.size());
+        for (UpsertedSegmentMetadata upsertedMetadata : upserted) {
+            hashToUpsertedMap.put(upsertedMetadata.metadata().getHash(), upsertedMetadata);
+        }
+        List<UpsertedSegmentMetadata> result = new ArrayList<>(metadataList.size());
+        for (SegmentMetadata metadata : metadataList) {
+            UpsertedSegmentMetadata upsertedMetadata = hashToUpsertedMap.get(metadata.getHash());
+            if (upsertedMetadata == null) {
+                throw new StorageException(String.format("No upserted row found for hash %s", metadata.getHash()));
+            }
+            result.add(upsertedMetadata);
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
     public List<SegmentMetadata> findAll() {
         return dbRequestExecutor.executeQuery(
                 QUERY_METADATA,
                 DefaultPreparedStatementUpdater.INSTANCE,
-                SegmentMetadataRowReader.INSTANCE
+                rowReader
+        );
+    }
+
+    @Override
+    public long count() {
+        return dbRequestExecutor.executeQuery(
+                QUERY_COUNT,
+                DefaultPreparedStatementUpdater.INSTANCE,
+                rs -> rs.next() ? rs.getLong(1) : 0L
+        );
+    }
+
+    @Override
+    public void scanHashes(@NotNull Consumer<Fingerprint> hashConsumer) {
+        Objects.requireNonNull(hashConsumer);
+        dbRequestExecutor.executeQuery(
+                QUERY_HASHES,
+                ps -> ps.setFetchSize(SCAN_FETCH_SIZE),
+                rs -> {
+                    while (rs.next()) {
+                        hashConsumer.accept(hashColumnType.read(rs, C_HASH));
+                    }
+                    return Boolean.TRUE;
+                }
+        );
+    }
+
+    @Override
+    public void scanMetadata(@NotNull Consumer<SegmentMetadata> metadataConsumer) {
+        Objects.requireNonNull(metadataConsumer);
+        dbRequestExecutor.executeQuery(
+                QUERY_METADATA,
+                ps -> ps.setFetchSize(SCAN_FETCH_SIZE),
+                rs -> {
+                    while (rs.next()) {
+                        metadataConsumer.accept(SegmentMetadataRowReader.readRow(rs, hashColumnType));
+                    }
+                    return Boolean.TRUE;
+                }
         );
     }
 
     @NotNull
+    @Override
     public List<SegmentMetadata> findAllByIds(@NotNull Collection<Integer> metadataIds) {
         return dbRequestExecutor.executeQuery(
                 QUERY_METADATA_BY_IDS,
                 ps -> ps.setArray(
                         1,
-                        dbRequestExecutor.createArray("INTEGER", metadataIds.toArray())
+                        dbRequestExecutor.createArray(ps, "INTEGER", metadataIds.toArray())
                 ),
-                SegmentMetadataRowReader.INSTANCE
+                rowReader
         );
     }
 
     @NotNull
-    public List<SegmentMetadata> findAllByHashes(@NotNull Collection<String> metadataHashes) {
-
+    @Override
+    public List<SegmentMetadata> findAllByHashes(@NotNull Collection<Fingerprint> metadataHashes) {
+        Fingerprint[] hashes = metadataHashes.toArray(Fingerprint[]::new);
         return dbRequestExecutor.executeQuery(
                 QUERY_METADATA_BY_HASHES,
                 ps -> ps.setArray(
                         1,
-                        dbRequestExecutor.createArray("VARCHAR", metadataHashes.toArray())
+                        dbRequestExecutor.createArray(ps, hashColumnType.getSqlType(), hashColumnType.toJdbcArray(hashes))
+                ),
+                rowReader
+        );
+    }
+
+    @NotNull
+    @Override
+    public List<SegmentMetadata> findAllByFileName(@NotNull String fileName) {
+        Objects.requireNonNull(fileName);
+        return dbRequestExecutor.executeQuery(
+                QUERY_METADATA_BY_FILE_NAME,
+                ps -> ps.setString(1, fileName),
+                rowReader
+        );
+    }
+
+    @NotNull
+    @Override
+    public List<SegmentMetadata> findAllByFileNames(@NotNull Collection<String> fileNames) {
+        String[] names = fileNames.toArray(String[]::new);
+        return dbRequestExecutor.executeQuery(
+                QUERY_METADATA_BY_FILE_NAMES,
+                ps -> ps.setArray(
+                        1,
+                        dbRequestExecutor.createArray(ps, "VARCHAR", names)
                 ),
-                SegmentMetadataRowReader.INSTANCE
+                rowReader
         );
     }
 
@@ -1,6 +1,7 @@
 package ru.spbstu.storage.metadata;
 
 import org.jetbrains.annotations.NotNull;
+import ru.spbstu.hash.Fingerprint;
 import ru.spbstu.model.SegmentMetadata;
 import ru.spbstu.storage.executor.RowReader;
 
@@ -14,32 +15,57 @@ import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_FILE_NAME;
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_FILE_OFFSET;
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_HASH;
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_ID;
+import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_LENGTH;
 import static ru.spbstu.storage.metadata.SegmentMetadataTable.C_REFERENCE;
 
 public class SegmentMetadataRowReader implements RowReader<List<SegmentMetadata>> {
 
-    public static final SegmentMetadataRowReader INSTANCE = new SegmentMetadataRowReader();
+    private static final SegmentMetadataRowReader VARCHAR_HASH_INSTANCE
+            = new SegmentMetadataRowReader(HashColumnType.VARCHAR);
+    private static final SegmentMetadataRowReader BYTEA_HASH_INSTANCE
+            = new SegmentMetadataRowReader(HashColumnType.BYTEA);
 
-    private SegmentMetadataRowReader() {}
+    private final HashColumnType hashColumnType;
+
+    private SegmentMetadataRowReader(@NotNull HashColumnType hashColumnType) {
+        this.hashColumnType = hashColumnType;
+    }
+
+    @NotNull
+    public static SegmentMetadataRowReader of(@NotNull HashColumnType hashColumnType) {
+        return switch (Objects.requireNonNull(hashColumnType)) {
+            case VARCHAR -> VARCHAR_HASH_INSTANCE;
+            case BYTEA -> BYTEA_HASH_INSTANCE;
+        };
+    }
 
     @Override
     public List<SegmentMetadata> handle(@NotNull ResultSet rs) throws SQLException {
         Objects.requireNonNull(rs);
         List<SegmentMetadata> metadataList = new ArrayList<>();
         while (rs.next()) {
-            int id = rs.getInt(C_ID);
-            String hash = rs.getString(C_HASH);
-            String fileName = rs.getString(C_FILE_NAME);
-            long fileOffset = rs.getLong(C_FILE_OFFSET);
-            int references = rs.getInt(C_REFERENCE);
-            metadataList.add(new SegmentMetadata(
-                    id,
-                    hash,
-                    fileName,
-                    fileOffset,
-                    references
-            ));
+            metadataList.add(readRow(rs, hashColumnType));
         }
         return metadataList;
     }
+
+    @NotNull
+    static SegmentMetadata readRow(@NotNull ResultSet rs,
+                                   @NotNull HashColumnType hashColumnType) throws SQLException {
+        int id = rs.getInt(C_ID);
+        Fingerprint hash = hashColumnType.read(rs, C_HASH);
+        String fileName = rs.getString(C_FILE_NAME);
+        long fileOffset = rs.getLong(C_FILE_OFFSET);
+        // NULL у строк, записанных до миграции 005, читается как неизвестная длина
+        int length = rs.getInt(C_LENGTH);
+        int references = rs.getInt(C_REFERENCE);
+        return new SegmentMetadata(
+                id,
+                hash,
+                fileName,
+                fileOffset,
+                length,
+                references
+        );
+    }
 }
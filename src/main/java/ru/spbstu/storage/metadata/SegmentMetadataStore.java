@@ -0,0 +1,92 @@
+package ru.spbstu.storage.metadata;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.hash.Fingerprint;
+import ru.spbstu.model.SegmentMetadata;
+import ru.spbstu.model.UpsertedSegmentMetadata;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+public interface SegmentMetadataStore {
+
+    /**
+     * Inserts new segments and sets generated ids to the passed metadata.
+     */
+    void createBatch(@NotNull List<SegmentMetadata> metadataList);
+
+    void updateBatchReferenceCount(@NotNull Collection<SegmentMetadata> metadataList);
+
+    /**
+     * Subtracts references from segments by their ids in one request. A segment with fewer references
+     * than released, or a missing one, is left as is, returns ids of such segments.
+     * References saturated at {@link SegmentMetadata#MAX_REFERENCES} aren't decreased.
+     */
+    @NotNull
+    Set<Integer> releaseBatch(@NotNull Map<Integer, Integer> idToReferences);
+
+    /**
+     * Returns true if reference of a segment is the number of its occurrences in stored files.
+     * Stores written by older versions count one reference per file, such references must not be released.
+     */
+    boolean isReferencePerOccurrence();
+
+    /**
+     * Replaces references of all segments in one transaction, segments absent in {@code idToReferences} get zero,
+     * and marks references as counted per occurrence.
+     */
+    void rebuildReferences(@NotNull Map<Integer, Integer> idToReferences);
+
+    /**
+     * Sets file name and offset of the passed metadata to stored segments with the same ids in one transaction.
+     */
+    void updateBatchLocation(@NotNull Collection<SegmentMetadata> metadataList);
+
+    /**
+     * Deletes segments which have no references, segments referenced again meanwhile are kept.
+     * Returns metadata of the deleted segments.
+     */
+    @NotNull
+    List<SegmentMetadata> deleteUnreferencedBatch(@NotNull Collection<Integer> metadataIds);
+
+    /**
+     * Inserts absent segments and adds references of the passed metadata to already stored ones in one request.
+     * Hashes in the batch must be distinct, stored metadata is returned in the order of {@code metadataList}.
+     */
+    @NotNull
+    List<UpsertedSegmentMetadata> upsertBatch(@NotNull List<SegmentMetadata> metadataList);
+
+    @NotNull
+    List<SegmentMetadata> findAll();
+
+    @NotNull
+    List<SegmentMetadata> findAllByIds(@NotNull Collection<Integer> metadataIds);
+
+    @NotNull
+    List<SegmentMetadata> findAllByHashes(@NotNull Collection<Fingerprint> metadataHashes);
+
+    @NotNull
+    List<SegmentMetadata> findAllByFileName(@NotNull String fileName);
+
+    /**
+     * Returns metadata of segments stored in any of the passed files in one request.
+     */
+    @NotNull
+    List<SegmentMetadata> findAllByFileNames(@NotNull Collection<String> fileNames);
+
+    long count();
+
+    /**
+     * Streams hashes of all segments without loading all metadata in memory.
+     */
+    void scanHashes(@NotNull Consumer<Fingerprint> hashConsumer);
+
+    /**
+     * Streams metadata of all segments without loading all of it in memory.
+     */
+    void scanMetadata(@NotNull Consumer<SegmentMetadata> metadataConsumer);
+
+}
@@ -8,6 +8,14 @@ public interface SegmentMetadataTable {
     String C_HASH = "hash";
     String C_FILE_NAME = "file_name";
     String C_FILE_OFFSET = "file_offset";
+    String C_LENGTH = "length";
     String C_REFERENCE = "reference";
 
+    /**
+     * Single row table with the way references are counted, see docker/migrations/004_reference_per_occurrence.sql.
+     */
+    String FORMAT_TABLE_NAME = "segments_metadata_format";
+    String C_REFERENCE_COUNTING = "reference_counting";
+    String REFERENCE_PER_OCCURRENCE = "occurrence";
+
 }
@@ -0,0 +1,48 @@
+package ru.spbstu.storage.metadata;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.model.UpsertedSegmentMetadata;
+import ru.spbstu.storage.executor.RowReader;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+public class SegmentUpsertRowReader implements RowReader<List<UpsertedSegmentMetadata>> {
+
+    static final String C_INSERTED = "inserted";
+
+    private static final SegmentUpsertRowReader VARCHAR_HASH_INSTANCE
+            = new SegmentUpsertRowReader(HashColumnType.VARCHAR);
+    private static final SegmentUpsertRowReader BYTEA_HASH_INSTANCE
+            = new SegmentUpsertRowReader(HashColumnType.BYTEA);
+
+    private final HashColumnType hashColumnType;
+
+    private SegmentUpsertRowReader(@NotNull HashColumnType hashColumnType) {
+        this.hashColumnType = hashColumnType;
+    }
+
+    @NotNull
+    public static SegmentUpsertRowReader of(@NotNull HashColumnType hashColumnType) {
+        return switch (Objects.requireNonNull(hashColumnType)) {
+            case VARCHAR -> VARCHAR_HASH_INSTANCE;
+            case BYTEA -> BYTEA_HASH_INSTANCE;
+        };
+    }
+
+    @Override
+    public List<UpsertedSegmentMetadata> handle(@NotNull ResultSet rs) throws SQLException {
+        Objects.requireNonNull(rs);
+        List<UpsertedSegmentMetadata> upsertedList = new ArrayList<>();
+        while (rs.next()) {
+            upsertedList.add(new UpsertedSegmentMetadata(
+                    SegmentMetadataRowReader.readRow(rs, hashColumnType),
+                    rs.getBoolean(C_INSERTED)
+            ));
+        }
+        return upsertedList;
+    }
+}
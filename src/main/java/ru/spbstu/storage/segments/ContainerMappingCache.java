@@ -0,0 +1,158 @@
+package ru.spbstu.storage.segments;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.storage.util.DiskStorageUtil;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Containers are mapped on first access, each one in its own arena.
+ * Least recently used containers are unmapped when more than {@code maxMappedContainers} are mapped,
+ * pinned ones are never unmapped, so the bound can be exceeded while all of them are in use.
+ */
+class ContainerMappingCache implements AutoCloseable {
+
+    private final int maxMappedContainers;
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean closed;
+
+    ContainerMappingCache(int maxMappedContainers) {
+        if (maxMappedContainers <= 0) {
+            throw new IllegalArgumentException("Max mapped containers must be positive: " + maxMappedContainers);
+        }
+        this.maxMappedContainers = maxMappedContainers;
+    }
+
+    /**
+     * Returns pinned read-only mapping of the container, it stays mapped until {@link Mapping#close()}.
+     */
+    @NotNull
+    synchronized Mapping acquire(@NotNull String name) throws IOException {
+        Objects.requireNonNull(name);
+        if (closed) {
+            throw new IllegalStateException("Container mapping cache is closed");
+        }
+        Mapping mapping = mappings.get(name);
+        if (mapping == null) {
+            Arena arena = Arena.ofShared();
+            try (FileChannel fileChannel = FileChannel.open(DiskStorageUtil.ofSegment(name), StandardOpenOption.READ)) {
+                mapping = new Mapping(name, arena, fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena));
+            } catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+            mappings.put(name, mapping);
+        }
+        mapping.pins++;
+        evict();
+        return mapping;
+    }
+
+    /**
+     * Publishes already mapped container, e.g. the one being written. Returned mapping is pinned.
+     */
+    @NotNull
+    synchronized Mapping register(@NotNull String name,
+                                  @NotNull Arena arena,
+                                  @NotNull MemorySegment segment) {
+        Mapping previous = mappings.remove(name);
+        if (previous != null && previous.pins == 0) {
+            previous.arena.close();
+        }
+        Mapping mapping = new Mapping(name, arena, segment);
+        mapping.pins++;
+        mappings.put(name, mapping);
+        evict();
+        return mapping;
+    }
+
+    /**
+     * Forgets mapping of the container, it is unmapped now or on release if it is pinned.
+     */
+    synchronized void evict(@NotNull String name) {
+        Mapping mapping = mappings.remove(name);
+        if (mapping != null && mapping.pins == 0) {
+            mapping.arena.close();
+        }
+    }
+
+    synchronized int mappedCount() {
+        return mappings.size();
+    }
+
+    private synchronized void release(@NotNull Mapping mapping) {
+        if (mapping.pins <= 0) {
+            throw new IllegalStateException(String.format("Container %s isn't pinned", mapping.name));
+        }
+        mapping.pins--;
+        if (mapping.pins == 0 && (closed || mappings.get(mapping.name) != mapping)) {
+            mapping.arena.close();
+            return;
+        }
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Mapping> iterator = mappings.values().iterator();
+        while (mappings.size() > maxMappedContainers && iterator.hasNext()) {
+            Mapping mapping = iterator.next();
+            if (mapping.pins == 0) {
+                iterator.remove();
+                mapping.arena.close();
+            }
+        }
+    }
+
+    /**
+     * Unmaps not pinned containers, pinned ones are unmapped on release.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Mapping mapping : mappings.values()) {
+            if (mapping.pins == 0) {
+                mapping.arena.close();
+            }
+        }
+        mappings.clear();
+    }
+
+    final class Mapping implements AutoCloseable {
+
+        private final String name;
+        private final Arena arena;
+        private final MemorySegment segment;
+        private int pins;
+
+        private Mapping(@NotNull String name,
+                        @NotNull Arena arena,
+                        @NotNull MemorySegment segment) {
+            this.name = name;
+            this.arena = arena;
+            this.segment = segment;
+        }
+
+        @NotNull
+        String name() {
+            return name;
+        }
+
+        @NotNull
+        MemorySegment segment() {
+            return segment;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+}
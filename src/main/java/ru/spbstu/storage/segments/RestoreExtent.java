@@ -0,0 +1,12 @@
+package ru.spbstu.storage.segments;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Contiguous bytes of a container restored with a single copy.
+ */
+record RestoreExtent(@NotNull String containerName,
+                     long sourceOffset,
+                     long length,
+                     long destinationOffset) {
+}
@@ -0,0 +1,123 @@
+package ru.spbstu.storage.segments;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.exception.StorageException;
+import ru.spbstu.model.SegmentMetadata;
+import ru.spbstu.storage.compressed.CompressedFileInfo;
+import ru.spbstu.storage.compressed.SegmentLocations;
+import ru.spbstu.storage.compressed.SegmentOffsets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+/**
+ * Coalesces segments of a compressed file into extents: consecutive segments lying one after another
+ * in the same container are restored by one copy.
+ */
+final class RestorePlanner {
+
+    // Ограничение длины позволяет поровну разделить экстенты между потоками восстановления
+    static final long MAX_EXTENT_SIZE_IN_BYTES = 64L * 1024 * 1024;
+
+    private RestorePlanner() {}
+
+    /**
+     * Returns extents in the order of destination offsets, they cover the whole file.
+     */
+    @NotNull
+    static List<RestoreExtent> plan(@NotNull CompressedFileInfo compressedFileInfo,
+                                    @NotNull Map<Integer, SegmentMetadata> idToMetadataMap) {
+        return plan(compressedFileInfo, SegmentOffsets.of(compressedFileInfo), idToMetadataMap,
+                0, compressedFileInfo.fileSizeInBytes());
+    }
+
+    /**
+     * Returns extents covering {@code length} bytes of the file starting at {@code offset},
+     * destination offsets are relative to {@code offset}.
+     * Only metadata of the segments covering the range is required in {@code idToMetadataMap}.
+     */
+    @NotNull
+    static List<RestoreExtent> plan(@NotNull CompressedFileInfo compressedFileInfo,
+                                    @NotNull SegmentOffsets segmentOffsets,
+                                    @NotNull Map<Integer, SegmentMetadata> idToMetadataMap,
+                                    long offset,
+                                    long length) {
+        Objects.requireNonNull(idToMetadataMap);
+        List<Integer> metadataIds = compressedFileInfo.metadataIds();
+        return plan(compressedFileInfo, segmentOffsets, offset, length, idx -> {
+            Integer metadataId = metadataIds.get(idx);
+            SegmentMetadata segmentMetadata = idToMetadataMap.get(metadataId);
+            if (segmentMetadata == null) {
+                throw new StorageException(String.format("No metadata found for segment id %d, segment number %d of %d",
+                        metadataId, idx, metadataIds.size()));
+            }
+            return new Location(segmentMetadata.getFileName(), segmentMetadata.getFileOffset());
+        });
+    }
+
+    /**
+     * Same as {@link #plan(CompressedFileInfo, SegmentOffsets, Map, long, long)}
+     * for the file with {@link CompressedFileInfo#segmentLocations()}.
+     */
+    @NotNull
+    static List<RestoreExtent> plan(@NotNull CompressedFileInfo compressedFileInfo,
+                                    @NotNull SegmentOffsets segmentOffsets,
+                                    long offset,
+                                    long length) {
+        SegmentLocations segmentLocations = Objects.requireNonNull(compressedFileInfo.segmentLocations());
+        return plan(compressedFileInfo, segmentOffsets, offset, length, idx -> new Location(segmentLocations.containerName(idx), segmentLocations.offset(idx)));
+    }
+
+    @NotNull
+    private static List<RestoreExtent> plan(@NotNull CompressedFileInfo compressedFileInfo,
+                                            @NotNull SegmentOffsets segmentOffsets,
+                                            long offset,
+                                            long length,
+                                            @NotNull IntFunction<Location> locator) {
+        Objects.requireNonNull(compressedFileInfo);
+        Objects.requireNonNull(segmentOffsets);
+        List<RestoreExtent> extents = new ArrayList<>();
+        if (length <= 0) {
+            return extents;
+        }
+        long rangeEnd = offset + length;
+        int toIdx = segmentOffsets.indexAt(rangeEnd - 1) + 1;
+        String containerName = null;
+        long sourceOffset = 0;
+        long extentLength = 0;
+        long destinationOffset = 0;
+        for (int idx = segmentOffsets.indexAt(offset); idx < toIdx; ++idx) {
+            Location location = locator.apply(idx);
+            // Первый и последний сегменты диапазона могут входить в него частично
+            long segmentStart = segmentOffsets.offset(idx);
+            long segmentEnd = segmentStart + compressedFileInfo.segmentSizeInBytes(idx);
+            long skippedBytes = Math.max(0, offset - segmentStart);
+            long segmentSourceOffset = location.offset() + skippedBytes;
+            long segmentLength = Math.min(segmentEnd, rangeEnd) - segmentStart - skippedBytes;
+            boolean adjacent = location.containerName().equals(containerName)
+                    && segmentSourceOffset == sourceOffset + extentLength
+                    && extentLength + segmentLength <= MAX_EXTENT_SIZE_IN_BYTES;
+            if (adjacent) {
+                extentLength += segmentLength;
+                continue;
+            }
+            if (containerName != null) {
+                extents.add(new RestoreExtent(containerName, sourceOffset, extentLength, destinationOffset));
+                destinationOffset += extentLength;
+            }
+            containerName = location.containerName();
+            sourceOffset = segmentSourceOffset;
+            extentLength = segmentLength;
+        }
+        if (containerName != null) {
+            extents.add(new RestoreExtent(containerName, sourceOffset, extentLength, destinationOffset));
+        }
+        return extents;
+    }
+
+    private record Location(String containerName, long offset) {}
+
+}
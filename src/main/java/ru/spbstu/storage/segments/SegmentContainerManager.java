@@ -0,0 +1,286 @@
+package ru.spbstu.storage.segments;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbstu.exception.StorageException;
+import ru.spbstu.storage.util.DiskStorageUtil;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Appends segments to large pre-allocated containers and rolls over to a new container when the active one is full.
+ * <p>
+ * index file is append-only, a line is written after the container data is forced to disk,
+ * the last line of a container wins:
+ * |name,used bytes\n|name,used bytes\n|...
+ * Lines without used bytes are left by the old format where every container is written entirely.
+ * Retired container has zero used bytes and no file, its name isn't reused.
+ * Incomplete last line after a crash is ignored, bytes after used ones are overwritten.
+ * Only the container being written is mapped eagerly, others are mapped on {@link #acquire}.
+ * Not thread-safe for appends and retirement, {@link #acquire} can be called concurrently.
+ */
+class SegmentContainerManager implements AutoCloseable {
+
+    private static final Path INDEX = DiskStorageUtil.ofSegment("index.idx");
+    private static final Path INDEX_TMP = DiskStorageUtil.ofSegment("index.tmp");
+    private static final long WHOLE_FILE = -1;
+
+    private final long containerSizeInBytes;
+    private final ContainerMappingCache mappingCache;
+    private final FileChannel indexChannel;
+    // Строки индекса контейнеров, закрытых после последнего commit, их данные уже на диске
+    private final StringBuilder sealedIndexLines = new StringBuilder();
+    // Занятые байты закрытых контейнеров, активный контейнер сюда не входит
+    private final LinkedHashMap<String, Long> sealedUsedBytes;
+    private int containersCount;
+
+    @Nullable
+    private ContainerMappingCache.Mapping active;
+    private long activeUsedBytes;
+    private long activeDirtyFromOffset = -1;
+
+    SegmentContainerManager(long containerSizeInBytes,
+                            int maxMappedContainers) throws IOException {
+        if (containerSizeInBytes <= 0) {
+            throw new IllegalArgumentException("Container size must be positive: " + containerSizeInBytes);
+        }
+        this.containerSizeInBytes = containerSizeInBytes;
+        this.mappingCache = new ContainerMappingCache(maxMappedContainers);
+        LinkedHashMap<String, Long> usedBytes = readIndex();
+        this.containersCount = usedBytes.size();
+        // Отображается только последний контейнер, если в него еще можно дописывать, остальные по запросу
+        Map.Entry<String, Long> last = usedBytes.isEmpty() ? null : usedBytes.lastEntry();
+        if (last != null
+                && last.getValue() != WHOLE_FILE
+                && Files.exists(DiskStorageUtil.ofSegment(last.getKey()))
+                && last.getValue() < Files.size(DiskStorageUtil.ofSegment(last.getKey()))) {
+            activate(last.getKey(), last.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            usedBytes.remove(last.getKey());
+        }
+        this.sealedUsedBytes = usedBytes;
+        this.indexChannel = FileChannel.open(INDEX, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Copies bytes to the active container and returns offset of them there, container name is {@link #activeName()}.
+     */
+    long append(@NotNull MemorySegment bytes) throws IOException {
+        long size = bytes.byteSize();
+        if (active == null || active.segment().byteSize() - activeUsedBytes < size) {
+            rollover(size);
+        }
+        long offset = activeUsedBytes;
+        MemorySegment.copy(bytes, 0, active.segment(), offset, size);
+        activeUsedBytes += size;
+        if (activeDirtyFromOffset < 0) {
+            activeDirtyFromOffset = offset;
+        }
+        return offset;
+    }
+
+    @NotNull
+    String activeName() {
+        if (active == null) {
+            throw new StorageException("No active container");
+        }
+        return active.name();
+    }
+
+    /**
+     * Forces appended bytes to disk and only then records them in the index.
+     */
+    void commit() throws IOException {
+        StringBuilder lines = new StringBuilder(sealedIndexLines);
+        if (active != null && activeDirtyFromOffset >= 0) {
+            forceActive();
+            lines.append(active.name()).append(',').append(activeUsedBytes).append('\n');
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+        ByteBuffer indexLines = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        while (indexLines.hasRemaining()) {
+            indexChannel.write(indexLines);
+        }
+        indexChannel.force(false);
+        sealedIndexLines.setLength(0);
+        activeDirtyFromOffset = -1;
+    }
+
+    /**
+     * Returns pinned mapping of the container, it must be closed after use.
+     */
+    @NotNull
+    ContainerMappingCache.Mapping acquire(@NotNull String name) throws IOException {
+        return mappingCache.acquire(name);
+    }
+
+    int mappedCount() {
+        return mappingCache.mappedCount();
+    }
+
+    /**
+     * Returns used bytes of containers which are no longer appended to and aren't retired.
+     */
+    @NotNull
+    Map<String, Long> sealedContainers() throws IOException {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : sealedUsedBytes.entrySet()) {
+            Path path = DiskStorageUtil.ofSegment(entry.getKey());
+            if (!Files.exists(path)) {
+                continue;
+            }
+            result.put(entry.getKey(), entry.getValue() == WHOLE_FILE ? Files.size(path) : entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Removes sealed container, none of its segments may be referenced by metadata.
+     * Mapping pinned by a concurrent reader stays valid until it is released.
+     */
+    void retire(@NotNull String name) throws IOException {
+        if (!sealedUsedBytes.containsKey(name)) {
+            throw new StorageException(String.format("Container %s isn't sealed", name));
+        }
+        // Строка индекса записывается до удаления файла, после сбоя контейнер остается пустым
+        commit();
+        ByteBuffer indexLine = ByteBuffer.wrap((name + ",0\n").getBytes(StandardCharsets.UTF_8));
+        while (indexLine.hasRemaining()) {
+            indexChannel.write(indexLine);
+        }
+        indexChannel.force(false);
+        sealedUsedBytes.put(name, 0L);
+        mappingCache.evict(name);
+        Files.deleteIfExists(DiskStorageUtil.ofSegment(name));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!indexChannel.isOpen()) {
+            return;
+        }
+        commit();
+        indexChannel.close();
+        if (active != null) {
+            active.close();
+        }
+        mappingCache.close();
+    }
+
+    /**
+     * Segment larger than the container size gets a container of its own size.
+     */
+    private void rollover(long requiredBytes) throws IOException {
+        if (active != null) {
+            // Закрытый контейнер может быть вытеснен до commit, поэтому его данные сбрасываются сразу
+            if (activeDirtyFromOffset >= 0) {
+                forceActive();
+                sealedIndexLines.append(active.name()).append(',').append(activeUsedBytes).append('\n');
+                activeDirtyFromOffset = -1;
+            }
+            sealedUsedBytes.put(active.name(), activeUsedBytes);
+            active.close();
+            active = null;
+        }
+        String name = String.valueOf(containersCount);
+        Files.deleteIfExists(DiskStorageUtil.ofSegment(name));
+        // Файл расширяется отображением и остается разреженным, пока в него не записали
+        activate(name, 0, Math.max(containerSizeInBytes, requiredBytes),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        containersCount++;
+    }
+
+    private void activate(@NotNull String name,
+                          long usedBytes,
+                          @NotNull StandardOpenOption... options) throws IOException {
+        activate(name, usedBytes, Files.size(DiskStorageUtil.ofSegment(name)), options);
+    }
+
+    private void activate(@NotNull String name,
+                          long usedBytes,
+                          long sizeInBytes,
+                          @NotNull StandardOpenOption... options) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel fileChannel = FileChannel.open(DiskStorageUtil.ofSegment(name), options)) {
+            MemorySegment segment = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, sizeInBytes, arena);
+            active = mappingCache.register(name, arena, segment);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+        activeUsedBytes = usedBytes;
+        activeDirtyFromOffset = -1;
+    }
+
+    private void forceActive() {
+        active.segment().asSlice(activeDirtyFromOffset, activeUsedBytes - activeDirtyFromOffset).force();
+    }
+
+    /**
+     * Returns used bytes of containers in the order of their creation.
+     * Index with outdated lines is compacted to a line per container.
+     */
+    private static LinkedHashMap<String, Long> readIndex() throws IOException {
+        if (!Files.exists(INDEX)) {
+            // Индекс старого формата мог остаться только во временном файле
+            if (Files.exists(INDEX_TMP)) {
+                Files.move(INDEX_TMP, INDEX, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.createFile(INDEX);
+            }
+        }
+        String content = Files.readString(INDEX, StandardCharsets.UTF_8);
+        String completeContent = content.substring(0, content.lastIndexOf('\n') + 1);
+        LinkedHashMap<String, Long> usedBytes = new LinkedHashMap<>();
+        long linesCount = 0;
+        for (String line : completeContent.lines().toList()) {
+            int separatorIdx = line.indexOf(',');
+            if (separatorIdx < 0) {
+                usedBytes.put(line, WHOLE_FILE);
+            } else {
+                usedBytes.put(line.substring(0, separatorIdx), Long.parseLong(line.substring(separatorIdx + 1)));
+            }
+            linesCount++;
+        }
+        if (linesCount != usedBytes.size() || completeContent.length() != content.length()) {
+            writeIndex(usedBytes);
+        }
+        return usedBytes;
+    }
+
+    private static void writeIndex(@NotNull Map<String, Long> usedBytes) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, Long> entry : usedBytes.entrySet()) {
+            lines.append(entry.getKey());
+            if (entry.getValue() != WHOLE_FILE) {
+                lines.append(',').append(entry.getValue());
+            }
+            lines.append('\n');
+        }
+        try (FileChannel fileChannel = FileChannel.open(
+                INDEX_TMP,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+            fileChannel.force(false);
+        }
+        Files.move(INDEX_TMP, INDEX, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
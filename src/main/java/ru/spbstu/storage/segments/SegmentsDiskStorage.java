@@ -2,178 +2,285 @@ package ru.spbstu.storage.segments;
 
 import org.jetbrains.annotations.NotNull;
 import ru.spbstu.exception.StorageException;
+import ru.spbstu.hash.Fingerprint;
 import ru.spbstu.model.SegmentMetadata;
 import ru.spbstu.storage.compressed.CompressedFileInfo;
+import ru.spbstu.storage.compressed.SegmentLocations;
+import ru.spbstu.storage.compressed.SegmentOffsets;
 import ru.spbstu.storage.util.DiskStorageUtil;
 
 import java.io.IOException;
-import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
-import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public class SegmentsDiskStorage {
+/**
+ * Segments are appended to large containers managed by {@link SegmentContainerManager}.
+ */
+public class SegmentsDiskStorage implements AutoCloseable {
 
-    private static final Path INDEX = DiskStorageUtil.ofSegment("index.idx");
-    private static final Path INDEX_TMP = DiskStorageUtil.ofSegment("index.tmp");
+    public static final long DEFAULT_CONTAINER_SIZE_IN_BYTES = 1024L * 1024 * 1024;
+    public static final int DEFAULT_MAX_MAPPED_CONTAINERS = 256;
 
-    private final Arena arena = Arena.ofConfined();
-    private volatile Map<String, MemorySegment> segmentsMap;
+    // Copying is bound by memory bandwidth, smaller ranges don't pay off the task scheduling
+    private static final long MIN_BYTES_PER_TASK = 8L * 1024 * 1024;
+
+    private static final ExecutorService executorService = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "segment-restore-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final SegmentContainerManager containerManager;
 
     public SegmentsDiskStorage() throws IOException {
-        this.segmentsMap = load(arena);
+        this(DEFAULT_CONTAINER_SIZE_IN_BYTES, DEFAULT_MAX_MAPPED_CONTAINERS);
     }
 
-    public void close() {
-        if (!arena.scope().isAlive()) {
-            return;
-        }
-        arena.close();
+    /**
+     * At most {@code maxMappedContainers} containers stay mapped when they aren't used by a restore.
+     */
+    public SegmentsDiskStorage(long containerSizeInBytes,
+                               int maxMappedContainers) throws IOException {
+        this.containerManager = new SegmentContainerManager(containerSizeInBytes, maxMappedContainers);
     }
 
-    public static Map<String, MemorySegment> load(@NotNull Arena arena) throws IOException {
-        if (!Files.exists(INDEX)) {
-            if (Files.exists(INDEX_TMP)) {
-                Files.move(INDEX_TMP, INDEX, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-            } else {
-                Files.createFile(INDEX);
-            }
-        }
-
-        List<String> existedFiles = Files.readAllLines(INDEX, StandardCharsets.UTF_8);
-        Map<String, MemorySegment> results = HashMap.newHashMap(existedFiles.size());
-        for (String fileName : existedFiles) {
-            Path segmentsListPath = DiskStorageUtil.ofSegment(fileName);
-            try (FileChannel fileChannel = FileChannel.open(segmentsListPath, StandardOpenOption.READ)) {
-                results.put(fileName, fileChannel.map(
-                        FileChannel.MapMode.READ_ONLY,
-                        0,
-                        Files.size(segmentsListPath),
-                        arena
-                ));
-            }
-        }
-        return Collections.unmodifiableMap(results);
+    public int mappedContainersCount() {
+        return containerManager.mappedCount();
     }
 
-    public Map<String, SegmentMetadata> saveNewSegmentsOnDisk(@NotNull Collection<SegmentMetadata> segmentMetadatas,
-                                                              @NotNull Map<String, MemorySegment> hashToBytesSegmentMap) throws IOException {
-        try {
-            Files.createFile(INDEX);
-        } catch (FileAlreadyExistsException ignored) {
-            // it's ok actually it's normal state
-        }
-
-        List<String> existedFiles = Files.readAllLines(INDEX, StandardCharsets.UTF_8);
-        String newFileName = String.valueOf(existedFiles.size());
+    @Override
+    public synchronized void close() throws IOException {
+        containerManager.close();
+    }
 
-        long dataSize = 0;
+    public synchronized Map<Fingerprint, SegmentMetadata> saveNewSegmentsOnDisk(@NotNull Collection<SegmentMetadata> segmentMetadatas,
+                                                                                @NotNull Map<Fingerprint, MemorySegment> hashToBytesSegmentMap) throws IOException {
+        Map<Fingerprint, SegmentMetadata> result = HashMap.newHashMap(segmentMetadatas.size());
         for (SegmentMetadata segmentMetadata : segmentMetadatas) {
-            String hash = segmentMetadata.getHash();
+            Fingerprint hash = segmentMetadata.getHash();
             MemorySegment memorySegment = hashToBytesSegmentMap.get(hash);
             if (memorySegment == null) {
                 throw new StorageException(String.format("No bytes for segment with hash: %s", hash));
             }
-            dataSize += memorySegment.byteSize();
+            long fileOffset = containerManager.append(memorySegment);
+            segmentMetadata.setFileName(containerManager.activeName());
+            segmentMetadata.setFileOffset(fileOffset);
+            segmentMetadata.setLength(Math.toIntExact(memorySegment.byteSize()));
+            result.put(hash, segmentMetadata);
         }
+        containerManager.commit();
+        return result;
+    }
 
-        Map<String, SegmentMetadata> result = new HashMap<>();
-
-        try (FileChannel fileChannel = FileChannel.open(
-                DiskStorageUtil.ofSegment(newFileName),
-                StandardOpenOption.WRITE,
-                StandardOpenOption.READ,
-                StandardOpenOption.CREATE);
-             Arena writeArena = Arena.ofConfined()
-        ) {
-            MemorySegment fileSegment = fileChannel.map(
-                    FileChannel.MapMode.READ_WRITE,
-                    0,
-                    dataSize,
-                    writeArena
-            );
-
-            long dataOffset = 0;
-            for (SegmentMetadata segmentMetadata : segmentMetadatas) {
-                String hash = segmentMetadata.getHash();
-                MemorySegment nextSegment = hashToBytesSegmentMap.get(hash);
-                MemorySegment.copy(nextSegment, 0, fileSegment, dataOffset, nextSegment.byteSize());
-
-                segmentMetadata.setFileName(newFileName);
-                segmentMetadata.setFileOffset(dataOffset);
-                result.put(hash, segmentMetadata);
-
-                dataOffset += nextSegment.byteSize();
+    /**
+     * Returns used bytes of containers which are no longer appended to, they can be compacted.
+     */
+    @NotNull
+    public synchronized Map<String, Long> sealedContainers() throws IOException {
+        return containerManager.sealedContainers();
+    }
+
+    /**
+     * Copies segments to the active container and returns their metadata with new locations,
+     * {@code lengths} are lengths of the segments in bytes. Stored metadata isn't changed.
+     */
+    @NotNull
+    public synchronized List<SegmentMetadata> relocate(@NotNull List<SegmentMetadata> segmentMetadatas,
+                                                       long[] lengths) throws IOException {
+        if (segmentMetadatas.size() != lengths.length) {
+            throw new IllegalArgumentException("Every relocated segment must have its length");
+        }
+        List<SegmentMetadata> result = new ArrayList<>(segmentMetadatas.size());
+        for (int idx = 0; idx < segmentMetadatas.size(); ++idx) {
+            SegmentMetadata metadata = segmentMetadatas.get(idx);
+            try (ContainerMappingCache.Mapping srcContainer = containerManager.acquire(metadata.getFileName())) {
+                long fileOffset = containerManager.append(
+                        srcContainer.segment().asSlice(metadata.getFileOffset(), lengths[idx]));
+                result.add(new SegmentMetadata(metadata.getId(), metadata.getHash(), containerManager.activeName(),
+                        fileOffset, metadata.getLength(), metadata.getReferences()));
             }
         }
+        containerManager.commit();
+        return result;
+    }
 
-        List<String> list = new ArrayList<>(existedFiles.size() + 1);
-        list.addAll(existedFiles);
-        list.add(newFileName);
-        Files.write(
-                INDEX_TMP,
-                list,
-                StandardOpenOption.WRITE,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING
-        );
-
-        Files.deleteIfExists(INDEX);
-
-        Files.move(INDEX_TMP, INDEX, StandardCopyOption.ATOMIC_MOVE);
+    /**
+     * Deletes sealed container, metadata must not reference it anymore.
+     */
+    public synchronized void retireContainer(@NotNull String name) throws IOException {
+        containerManager.retire(name);
+    }
 
-        this.segmentsMap = load(arena);
+    public void decompressFile(@NotNull MemorySegment decompressedFileMemorySegment,
+                               @NotNull CompressedFileInfo compressedFileInfo,
+                               @NotNull Map<Integer, SegmentMetadata> idToMetadataMap) {
+        decompressFile(decompressedFileMemorySegment, compressedFileInfo, idToMetadataMap, 1);
+    }
 
-        return result;
+    /**
+     * Restores extents planned by {@link RestorePlanner}, extents are split between {@code parallelism} threads
+     * by their size. {@code decompressedFileMemorySegment} must be accessible from other threads
+     * when {@code parallelism > 1}.
+     */
+    public void decompressFile(@NotNull MemorySegment decompressedFileMemorySegment,
+                               @NotNull CompressedFileInfo compressedFileInfo,
+                               @NotNull Map<Integer, SegmentMetadata> idToMetadataMap,
+                               int parallelism) {
+        copyExtents(decompressedFileMemorySegment, compressedFileInfo.fileSizeInBytes(),
+                RestorePlanner.plan(compressedFileInfo, idToMetadataMap), parallelism);
     }
 
+    /**
+     * Restores the file by locations of its segments, see {@link #canLocate}.
+     */
     public void decompressFile(@NotNull MemorySegment decompressedFileMemorySegment,
                                @NotNull CompressedFileInfo compressedFileInfo,
-                               @NotNull Map<Integer, SegmentMetadata> idToMetadataMap) {
-        List<Integer> metadataIds = compressedFileInfo.metadataIds();
-        long segmentSizeInBytes = compressedFileInfo.segmentSizeInBytes();
-        long fileSizeInBytes = compressedFileInfo.fileSizeInBytes();
-        long decompressedFileOffset = 0;
-        int count = 0;
-        for (Integer metadataId : metadataIds) {
+                               int parallelism) {
+        List<RestoreExtent> extents = RestorePlanner.plan(compressedFileInfo, SegmentOffsets.of(compressedFileInfo),
+                0, compressedFileInfo.fileSizeInBytes());
+        copyExtents(decompressedFileMemorySegment, compressedFileInfo.fileSizeInBytes(), extents, parallelism);
+    }
+
+    /**
+     * Returns true if the container holds {@code bytes} at the location of the segment and the stored segment
+     * has the same length. Segments stored without length are compared over the length of {@code bytes}.
+     */
+    public boolean matches(@NotNull SegmentMetadata segmentMetadata,
+                           @NotNull MemorySegment bytes) throws IOException {
+        if (segmentMetadata.getLength() != SegmentMetadata.UNKNOWN_LENGTH
+                && segmentMetadata.getLength() != bytes.byteSize()) {
+            return false;
+        }
+        try (ContainerMappingCache.Mapping container = containerManager.acquire(segmentMetadata.getFileName())) {
+            long from = segmentMetadata.getFileOffset();
+            long to = from + bytes.byteSize();
+            return to <= container.segment().byteSize()
+                    && MemorySegment.mismatch(container.segment(), from, to, bytes, 0, bytes.byteSize()) == -1;
+        }
+    }
+
+    /**
+     * Returns true if the file holds locations of its segments and all their containers exist.
+     */
+    public boolean canLocate(@NotNull CompressedFileInfo compressedFileInfo) {
+        SegmentLocations segmentLocations = compressedFileInfo.segmentLocations();
+        if (segmentLocations == null) {
+            return false;
+        }
+        for (String containerName : segmentLocations.containerNames()) {
+            if (!Files.exists(DiskStorageUtil.ofSegment(containerName))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void copyExtents(@NotNull MemorySegment decompressedFileMemorySegment,
+                             long fileSizeInBytes,
+                             @NotNull List<RestoreExtent> extents,
+                             int parallelism) {
+        int tasksCount = (int) Math.min(parallelism, (fileSizeInBytes + MIN_BYTES_PER_TASK - 1) / MIN_BYTES_PER_TASK);
+        if (tasksCount <= 1) {
+            copyExtents(decompressedFileMemorySegment, extents, 0, extents.size());
+            return;
+        }
+
+        long bytesPerTask = (fileSizeInBytes + tasksCount - 1) / tasksCount;
+        List<Future<?>> futures = new ArrayList<>(tasksCount);
+        int from = 0;
+        long taskBytes = 0;
+        for (int idx = 0; idx < extents.size(); ++idx) {
+            taskBytes += extents.get(idx).length();
+            if (taskBytes >= bytesPerTask || idx == extents.size() - 1) {
+                int rangeFrom = from;
+                int rangeTo = idx + 1;
+                futures.add(executorService.submit(
+                        () -> copyExtents(decompressedFileMemorySegment, extents, rangeFrom, rangeTo)));
+                from = rangeTo;
+                taskBytes = 0;
+            }
+        }
+        for (Future<?> future : futures) {
             try {
-                SegmentMetadata segmentMetadata = idToMetadataMap.get(metadataId);
-                String srcSegmentFileName = segmentMetadata.getFileName();
-                long srcSegmentOffset = segmentMetadata.getFileOffset();
-                MemorySegment srcSegment = segmentsMap.get(srcSegmentFileName);
-                long currentSegmentSizeInBytes;
-                if (decompressedFileOffset + segmentSizeInBytes > fileSizeInBytes) {
-                    currentSegmentSizeInBytes = fileSizeInBytes - decompressedFileOffset;
-//                    System.out.println(currentSegmentSizeInBytes);
-                } else {
-                    currentSegmentSizeInBytes = segmentSizeInBytes;
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted while restoring segments", e);
+            } catch (ExecutionException e) {
+                throw new StorageException("Fail to restore segments", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Copies {@code destination.byteSize()} bytes of the file starting at {@code offset} to {@code destination}.
+     */
+    public void read(@NotNull CompressedFileInfo compressedFileInfo,
+                     @NotNull SegmentOffsets segmentOffsets,
+                     @NotNull Map<Integer, SegmentMetadata> idToMetadataMap,
+                     long offset,
+                     @NotNull MemorySegment destination) {
+        List<RestoreExtent> extents = RestorePlanner.plan(
+                compressedFileInfo, segmentOffsets, idToMetadataMap, offset, destination.byteSize());
+        copyExtents(destination, extents, 0, extents.size());
+    }
+
+    /**
+     * Same as {@link #read(CompressedFileInfo, SegmentOffsets, Map, long, MemorySegment)}
+     * by locations of segments, see {@link #canLocate}.
+     */
+    public void read(@NotNull CompressedFileInfo compressedFileInfo,
+                     @NotNull SegmentOffsets segmentOffsets,
+                     long offset,
+                     @NotNull MemorySegment destination) {
+        List<RestoreExtent> extents = RestorePlanner.plan(
+                compressedFileInfo, segmentOffsets, offset, destination.byteSize());
+        copyExtents(destination, extents, 0, extents.size());
+    }
+
+    private void copyExtents(@NotNull MemorySegment decompressedFileMemorySegment,
+                             @NotNull List<RestoreExtent> extents,
+                             int from,
+                             int to) {
+        // Закреплен только текущий контейнер: соседние экстенты обычно из одного контейнера,
+        // а удерживать все пройденные значило бы не давать кешу вытеснять их до конца диапазона
+        ContainerMappingCache.Mapping srcContainer = null;
+        try {
+            for (int idx = from; idx < to; ++idx) {
+                RestoreExtent extent = extents.get(idx);
+                if (srcContainer == null || !srcContainer.name().equals(extent.containerName())) {
+                    if (srcContainer != null) {
+                        srcContainer.close();
+                        srcContainer = null;
+                    }
+                    srcContainer = containerManager.acquire(extent.containerName());
                 }
                 MemorySegment.copy(
-                        srcSegment,
-                        srcSegmentOffset,
+                        srcContainer.segment(),
+                        extent.sourceOffset(),
                         decompressedFileMemorySegment,
-                        decompressedFileOffset,
-                        currentSegmentSizeInBytes
+                        extent.destinationOffset(),
+                        extent.length()
                 );
-                decompressedFileOffset += currentSegmentSizeInBytes;
-                count++;
-            } catch (RuntimeException e) {
-                System.out.println("metadataId: " + metadataId + ", metadataIds: " + metadataIds.size() + ", count: " + count);
-                throw new StorageException("", e);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Fail to map segment container", e);
+        } finally {
+            if (srcContainer != null) {
+                srcContainer.close();
             }
         }
-//        System.out.println(decompressedFileOffset);
     }
 
 }
@@ -12,6 +12,7 @@ public class DiskStorageUtil {
     private static final Path INPUT_DATA_PATH = Path.of(BASE_DATA_PATH + File.separator + "input");
     private static final Path SEGMENTS_DATA_PATH = Path.of(BASE_DATA_PATH + File.separator + "segments");
     private static final Path COMPRESSED_DATA_PATH = Path.of(BASE_DATA_PATH + File.separator + "compressed");
+    private static final Path METADATA_DATA_PATH = Path.of(BASE_DATA_PATH + File.separator + "metadata");
     private static final Path DECOMPRESSED_DATA_PATH = Path.of(BASE_DATA_PATH + File.separator + "decompressed");
     private static final String COMPRESSED_FILE_POSTFIX = ".bin";
 
@@ -28,12 +29,25 @@ public class DiskStorageUtil {
         return SEGMENTS_DATA_PATH.resolve(Objects.requireNonNull(fileName));
     }
 
+    public static Path ofMetadata(@NotNull String fileName) {
+        return METADATA_DATA_PATH.resolve(Objects.requireNonNull(fileName));
+    }
+
     public static Path ofCompressed(@NotNull String fileName) {
         return COMPRESSED_DATA_PATH.resolve(Objects.requireNonNull(fileName) + COMPRESSED_FILE_POSTFIX);
     }
 
+    public static Path compressed() {
+        return COMPRESSED_DATA_PATH;
+    }
+
+    public static boolean isCompressed(@NotNull String fileName) {
+        return fileName.endsWith(COMPRESSED_FILE_POSTFIX);
+    }
+
     public static String getFileNameFromCompressed(@NotNull String fileName) {
-        return fileName.substring(0, fileName.indexOf(COMPRESSED_FILE_POSTFIX));
+        // Постфикс отрезается с конца, имя исходного файла само может его содержать
+        return fileName.substring(0, fileName.length() - COMPRESSED_FILE_POSTFIX.length());
     }
 
     public static Path ofDecompressed(@NotNull String fileName) {
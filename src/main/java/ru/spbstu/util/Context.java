@@ -1,6 +1,101 @@
 package ru.spbstu.util;
 
+import ru.spbstu.hash.ChunkingType;
 import ru.spbstu.hash.HashType;
+import ru.spbstu.hash.IngestMode;
+import ru.spbstu.storage.compressed.RecipeMode;
+
+/**
+ * For {@link ChunkingType#CONTENT_DEFINED} chunking {@code segmentSizeInBytes} is the average segment size.
+ * {@code memoryBudgetInBytes} bounds heap used by one store call, {@link #UNBOUNDED_MEMORY} processes the file at once.
+ * With {@code verifyMatches} a segment is reused only if its bytes equal the stored segment with the same hash,
+ * otherwise the store of the whole file is rejected with {@link ru.spbstu.exception.HashCollisionException},
+ * it guards a non-cryptographic {@code hashType} against collisions.
+ */
+public record Context(HashType hashType,
+                      int segmentSizeInBytes,
+                      ChunkingType chunkingType,
+                      int minSegmentSizeInBytes,
+                      int maxSegmentSizeInBytes,
+                      int hashParallelism,
+                      IngestMode ingestMode,
+                      long memoryBudgetInBytes,
+                      RecipeMode recipeMode,
+                      boolean verifyMatches) {
+
+    public static final long UNBOUNDED_MEMORY = 0;
+
+    private static final int DEFAULT_HASH_PARALLELISM = 1;
+
+    public Context {
+        if (minSegmentSizeInBytes <= 0
+                || minSegmentSizeInBytes > segmentSizeInBytes
+                || segmentSizeInBytes > maxSegmentSizeInBytes) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid segment sizes, min=%d, size=%d, max=%d",
+                    minSegmentSizeInBytes, segmentSizeInBytes, maxSegmentSizeInBytes));
+        }
+        if (hashParallelism <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid hash parallelism: %d", hashParallelism));
+        }
+        if (memoryBudgetInBytes < 0) {
+            throw new IllegalArgumentException(String.format("Invalid memory budget: %d", memoryBudgetInBytes));
+        }
+        if (recipeMode == null) {
+            throw new IllegalArgumentException("Recipe mode isn't set");
+        }
+    }
+
+    public Context(HashType hashType, int segmentSizeInBytes) {
+        this(hashType, segmentSizeInBytes, ChunkingType.FIXED, segmentSizeInBytes, segmentSizeInBytes,
+                DEFAULT_HASH_PARALLELISM, IngestMode.HEAP, UNBOUNDED_MEMORY, RecipeMode.IDS, false);
+    }
+
+    public static Context contentDefined(HashType hashType,
+                                         int minSegmentSizeInBytes,
+                                         int avgSegmentSizeInBytes,
+                                         int maxSegmentSizeInBytes) {
+        return new Context(
+                hashType,
+                avgSegmentSizeInBytes,
+                ChunkingType.CONTENT_DEFINED,
+                minSegmentSizeInBytes,
+                maxSegmentSizeInBytes,
+                DEFAULT_HASH_PARALLELISM,
+                IngestMode.HEAP,
+                UNBOUNDED_MEMORY,
+                RecipeMode.IDS,
+                false
+        );
+    }
+
+    public Context withHashParallelism(int hashParallelism) {
+        return new Context(hashType, segmentSizeInBytes, chunkingType, minSegmentSizeInBytes, maxSegmentSizeInBytes,
+                hashParallelism, ingestMode, memoryBudgetInBytes, recipeMode, verifyMatches);
+    }
+
+    public Context withIngestMode(IngestMode ingestMode) {
+        return new Context(hashType, segmentSizeInBytes, chunkingType, minSegmentSizeInBytes, maxSegmentSizeInBytes,
+                hashParallelism, ingestMode, memoryBudgetInBytes, recipeMode, verifyMatches);
+    }
+
+    public Context withMemoryBudget(long memoryBudgetInBytes) {
+        return new Context(hashType, segmentSizeInBytes, chunkingType, minSegmentSizeInBytes, maxSegmentSizeInBytes,
+                hashParallelism, ingestMode, memoryBudgetInBytes, recipeMode, verifyMatches);
+    }
+
+    public Context withRecipeMode(RecipeMode recipeMode) {
+        return new Context(hashType, segmentSizeInBytes, chunkingType, minSegmentSizeInBytes, maxSegmentSizeInBytes,
+                hashParallelism, ingestMode, memoryBudgetInBytes, recipeMode, verifyMatches);
+    }
+
+    public Context withVerifyMatches(boolean verifyMatches) {
+        return new Context(hashType, segmentSizeInBytes, chunkingType, minSegmentSizeInBytes, maxSegmentSizeInBytes,
+                hashParallelism, ingestMode, memoryBudgetInBytes, recipeMode, verifyMatches);
+    }
+
+    public boolean isMemoryBounded() {
+        return memoryBudgetInBytes != UNBOUNDED_MEMORY;
+    }
 
-public record Context(HashType hashType, int segmentSizeInBytes) {
 }
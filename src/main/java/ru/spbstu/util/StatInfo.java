@@ -1,18 +1,130 @@
 package ru.spbstu.util;
 
+import org.jetbrains.annotations.NotNull;
+import ru.spbstu.model.StoreResult;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of storing and restoring a dataset, files are accounted concurrently by workers.
+ * Throughput is computed from the wall-clock time of the whole pass, not from the sum of file times.
+ */
 public class StatInfo {
 
+    private static final double BYTES_IN_MEGABYTE = 1024.0 * 1024;
+
     // write stat info
-    public long maxBlockWriteTimeInMillis = Long.MIN_VALUE;
-    public long minBlockWriteTimeInMillis = Long.MAX_VALUE;
-    public long fullBlockWriteTimeInMillis;
-    public long duplicates;
-    public long unique;
+    private final LongAccumulator maxBlockWriteTimeInMillis = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    private final LongAccumulator minBlockWriteTimeInMillis = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAdder writtenFiles = new LongAdder();
+    private final LongAdder writtenBytes = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder unique = new LongAdder();
+    private volatile long fullBlockWriteTimeInMillis;
 
     // read stat info
-    public long maxBlockReadTimeInMillis = Long.MIN_VALUE;
-    public long minBlockReadTimeInMillis = Long.MAX_VALUE;
-    public long fullBlockReadTimeInMillis;
+    private final LongAccumulator maxBlockReadTimeInMillis = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    private final LongAccumulator minBlockReadTimeInMillis = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAdder readFiles = new LongAdder();
+    private final LongAdder readBytes = new LongAdder();
+    private volatile long fullBlockReadTimeInMillis;
+
+    public void addWrite(long timeInMillis,
+                         long sizeInBytes,
+                         @NotNull StoreResult storeResult) {
+        maxBlockWriteTimeInMillis.accumulate(timeInMillis);
+        minBlockWriteTimeInMillis.accumulate(timeInMillis);
+        writtenFiles.increment();
+        writtenBytes.add(sizeInBytes);
+        duplicates.add(storeResult.duplicateSegments());
+        unique.add(storeResult.uniqueSegments());
+    }
+
+    public void addRead(long timeInMillis,
+                        long sizeInBytes) {
+        maxBlockReadTimeInMillis.accumulate(timeInMillis);
+        minBlockReadTimeInMillis.accumulate(timeInMillis);
+        readFiles.increment();
+        readBytes.add(sizeInBytes);
+    }
+
+    public long getMaxBlockWriteTimeInMillis() {
+        return maxBlockWriteTimeInMillis.get();
+    }
+
+    public long getMinBlockWriteTimeInMillis() {
+        return minBlockWriteTimeInMillis.get();
+    }
+
+    public long getFullBlockWriteTimeInMillis() {
+        return fullBlockWriteTimeInMillis;
+    }
+
+    public void setFullBlockWriteTimeInMillis(long fullBlockWriteTimeInMillis) {
+        this.fullBlockWriteTimeInMillis = fullBlockWriteTimeInMillis;
+    }
+
+    public long getWrittenFiles() {
+        return writtenFiles.sum();
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public long getUnique() {
+        return unique.sum();
+    }
+
+    public double getWriteMegabytesPerSecond() {
+        return perSecond(getWrittenBytes() / BYTES_IN_MEGABYTE, fullBlockWriteTimeInMillis);
+    }
+
+    public double getWriteFilesPerSecond() {
+        return perSecond(getWrittenFiles(), fullBlockWriteTimeInMillis);
+    }
+
+    public long getMaxBlockReadTimeInMillis() {
+        return maxBlockReadTimeInMillis.get();
+    }
+
+    public long getMinBlockReadTimeInMillis() {
+        return minBlockReadTimeInMillis.get();
+    }
+
+    public long getFullBlockReadTimeInMillis() {
+        return fullBlockReadTimeInMillis;
+    }
+
+    public void setFullBlockReadTimeInMillis(long fullBlockReadTimeInMillis) {
+        this.fullBlockReadTimeInMillis = fullBlockReadTimeInMillis;
+    }
+
+    public long getReadFiles() {
+        return readFiles.sum();
+    }
+
+    public long getReadBytes() {
+        return readBytes.sum();
+    }
+
+    public double getReadMegabytesPerSecond() {
+        return perSecond(getReadBytes() / BYTES_IN_MEGABYTE, fullBlockReadTimeInMillis);
+    }
+
+    public double getReadFilesPerSecond() {
+        return perSecond(getReadFiles(), fullBlockReadTimeInMillis);
+    }
 
+    private static double perSecond(double amount,
+                                    long timeInMillis) {
+        // Меньше миллисекунды не измерить, считаем ее за одну
+        return amount * 1000 / Math.max(1, timeInMillis);
+    }
 
 }